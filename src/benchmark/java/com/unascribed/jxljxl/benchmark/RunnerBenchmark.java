@@ -0,0 +1,93 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.unascribed.jxljxl.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.unascribed.jxljxl.JXLEncoder;
+import com.unascribed.jxljxl.JXLPredefinedColorEncoding;
+import com.unascribed.jxljxl.JXLRunner;
+
+/**
+ * Compares libjxl's native thread runner against the ForkJoinPool-backed Java runner (and no
+ * runner at all) by repeatedly encoding a synthetic image.
+ */
+public class RunnerBenchmark {
+
+	private static final int SIZE = 2048;
+	private static final int WARMUP = 3;
+	private static final int ITERATIONS = 10;
+	
+	public static void main(String[] args) throws IOException {
+		var img = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		var rand = new Random(0x4A584C);
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				int r = (x*255)/SIZE;
+				int g = (y*255)/SIZE;
+				int b = ((x^y)&0xFF)/2+rand.nextInt(64);
+				img.setRGB(x, y, 0xFF000000|(r<<16)|(g<<8)|b);
+			}
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		System.out.println("Encoding a "+SIZE+"x"+SIZE+" image "+ITERATIONS+" times per runner ("+threads+" processors)");
+		try (var nativeRunner = JXLRunner.create(threads);
+				var javaRunner = JXLRunner.of(ForkJoinPool.commonPool(), threads)) {
+			run("native", nativeRunner, img);
+			run("java", javaRunner, img);
+			run("none", JXLRunner.none(), img);
+		}
+	}
+	
+	private static void run(String name, JXLRunner runner, BufferedImage img) throws IOException {
+		for (int i = 0; i < WARMUP; i++) {
+			encode(runner, img);
+		}
+		long start = System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			bytes += encode(runner, img);
+		}
+		long elapsed = System.nanoTime()-start;
+		System.out.printf("%-8s %8.2f ms/encode (%d bytes)%n", name, elapsed/1_000_000D/ITERATIONS, bytes/ITERATIONS);
+	}
+	
+	private static int encode(JXLRunner runner, BufferedImage img) throws IOException {
+		return JXLEncoder.create()
+			.runner(runner)
+			.size(img.getWidth(), img.getHeight())
+			.bitsPerSample(8)
+			.numChannels(3, 1)
+			.colorEncoding(JXLPredefinedColorEncoding.SRGB)
+			.newFrame()
+				.distance(1)
+				.commit(img)
+			.encode().length;
+	}
+	
+}
@@ -0,0 +1,326 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A service for encoding large numbers of images with a fixed number of worker threads.
+ * <p>
+ * Jobs are taken into a bounded queue; once it's full, {@link #submit} blocks until there's room,
+ * so producers can't run arbitrarily far ahead of the encoders. Small images are encoded one per
+ * worker with no parallel runner, which is the most efficient way to encode many images at once.
+ * Images of at least {@code largeImagePixels} pixels instead go to a separate lane, which encodes
+ * them one at a time with a runner spanning all the workers' worth of threads, so that a handful
+ * of huge images don't hold up the queue behind them. While a large image is waiting or being
+ * encoded, the workers don't start any new images, so the machine isn't oversubscribed; none of
+ * them are tied up waiting for it either, so they pick back up as soon as it's done.
+ * <p>
+ * Encoders submitted to a batch encoder have their runner and pool replaced, and must not be used
+ * by the caller afterward.
+ */
+public final class JXLBatchEncoder implements AutoCloseable {
+
+	/**
+	 * A snapshot of a batch encoder's statistics. Latency is measured from submission to
+	 * completion, and the percentiles cover the most recent 1024 jobs.
+	 */
+	public record JXLBatchStats(long submitted, long completed, long failed, int queueDepth,
+			double imagesPerSecond, double megapixelsPerSecond,
+			Duration latencyP50, Duration latencyP90, Duration latencyP99, Duration latencyMax) {}
+	
+	private static final int LATENCY_SAMPLES = 1024;
+	
+	private record Job(JXLEncoder encoder, CompletableFuture<byte[]> future, long submitted, long pixels) {}
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition changed = lock.newCondition();
+	private final ArrayDeque<Job> narrowJobs = new ArrayDeque<>();
+	private final ArrayDeque<Job> wideJobs = new ArrayDeque<>();
+	private final int queueCapacity;
+	private int runningNarrow = 0;
+	private boolean runningWide = false;
+	private boolean closed = false;
+	
+	private final long largeImagePixels;
+	private final Thread[] workers;
+	private final Thread wideLane;
+	private final JXLEncoderPool pool;
+	private final JXLRunner wideRunner;
+	
+	private final long startTime = System.nanoTime();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong pixelsEncoded = new AtomicLong();
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private int latencyCount = 0;
+	
+	/**
+	 * Create a new batch encoder.
+	 * @param workers the number of images to encode at once
+	 * @param queueCapacity the number of jobs that can be waiting before {@link #submit} blocks
+	 * @param largeImagePixels the size, in pixels, at which images are encoded with a wide runner
+	 * 		instead of on a single thread
+	 * @throws JXLException if libjxl fails to create the wide runner
+	 */
+	public JXLBatchEncoder(int workers, int queueCapacity, long largeImagePixels) throws JXLException {
+		if (workers <= 0) throw new IllegalArgumentException("Worker count must be positive");
+		if (queueCapacity <= 0) throw new IllegalArgumentException("Queue capacity must be positive");
+		this.queueCapacity = queueCapacity;
+		this.largeImagePixels = largeImagePixels;
+		this.pool = new JXLEncoderPool(workers);
+		this.wideRunner = workers > 1 ? JXLRunner.create(workers) : JXLRunner.none();
+		this.workers = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			this.workers[i] = startThread(this::workNarrow, "JXLJXL batch encoder #"+(i+1));
+		}
+		this.wideLane = startThread(this::workWide, "JXLJXL batch encoder (large images)");
+	}
+	
+	private static Thread startThread(Runnable r, String name) {
+		var t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+	
+	/**
+	 * Create a new batch encoder with one worker per available processor, a queue four times as
+	 * long, and a large image threshold of 16 megapixels.
+	 * @throws JXLException if libjxl fails to create the wide runner
+	 */
+	public JXLBatchEncoder() throws JXLException {
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors()*4, 16_000_000);
+	}
+	
+	/**
+	 * Queue the given encoder to be encoded into a byte array, waiting for room in the queue if
+	 * necessary.
+	 * @throws InterruptedException if interrupted while waiting for room in the queue
+	 * @throws IllegalStateException if this batch encoder has been closed
+	 */
+	public CompletableFuture<byte[]> submit(JXLEncoder encoder) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!closed && queuedJobs() >= queueCapacity) {
+				notFull.await();
+			}
+			return enqueue(encoder);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queue the given encoder to be encoded into a byte array if there's room in the queue within
+	 * the given timeout.
+	 * @return a future for the encoded image, or null if the queue stayed full
+	 * @throws InterruptedException if interrupted while waiting for room in the queue
+	 * @throws IllegalStateException if this batch encoder has been closed
+	 */
+	public CompletableFuture<byte[]> offer(JXLEncoder encoder, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!closed && queuedJobs() >= queueCapacity) {
+				if (nanos <= 0) return null;
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return enqueue(encoder);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// the closed check and the enqueue both happen under the lock, so close can't slip in between
+	// them and leave a job behind that no worker will ever pick up
+	private CompletableFuture<byte[]> enqueue(JXLEncoder encoder) {
+		if (closed) throw new IllegalStateException("This JXLBatchEncoder has been closed");
+		long pixels = (long)encoder.xsize*encoder.ysize;
+		var job = new Job(encoder, new CompletableFuture<>(), System.nanoTime(), pixels);
+		(pixels >= largeImagePixels ? wideJobs : narrowJobs).add(job);
+		submitted.incrementAndGet();
+		changed.signalAll();
+		return job.future();
+	}
+	
+	private int queuedJobs() {
+		return narrowJobs.size()+wideJobs.size();
+	}
+	
+	private void workNarrow() {
+		while (true) {
+			Job job;
+			lock.lock();
+			try {
+				// hold off while a large image is waiting or running, so it gets the whole machine
+				while (narrowJobs.isEmpty() || runningWide || !wideJobs.isEmpty()) {
+					if (closed && narrowJobs.isEmpty()) return;
+					changed.await();
+				}
+				job = narrowJobs.poll();
+				runningNarrow++;
+				notFull.signal();
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				run(job, JXLRunner.none());
+			} finally {
+				lock.lock();
+				try {
+					runningNarrow--;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+	
+	private void workWide() {
+		while (true) {
+			Job job;
+			lock.lock();
+			try {
+				// wait for the images already in flight on the workers to finish
+				while (wideJobs.isEmpty() || runningNarrow > 0) {
+					if (closed && wideJobs.isEmpty()) return;
+					changed.await();
+				}
+				job = wideJobs.poll();
+				runningWide = true;
+				notFull.signal();
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				run(job, wideRunner);
+			} finally {
+				lock.lock();
+				try {
+					runningWide = false;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+	
+	private void run(Job job, JXLRunner runner) {
+		try {
+			byte[] res = job.encoder()
+					.runner(runner)
+					.pool(pool)
+					.encode();
+			completed.incrementAndGet();
+			pixelsEncoded.addAndGet(job.pixels());
+			recordLatency(System.nanoTime()-job.submitted());
+			job.future().complete(res);
+		} catch (Throwable t) {
+			failed.incrementAndGet();
+			recordLatency(System.nanoTime()-job.submitted());
+			job.future().completeExceptionally(t);
+		}
+	}
+	
+	private synchronized void recordLatency(long nanos) {
+		latencies[latencyCount%LATENCY_SAMPLES] = nanos;
+		latencyCount++;
+	}
+	
+	/**
+	 * @return the number of jobs currently waiting in the queue
+	 */
+	public int queueDepth() {
+		lock.lock();
+		try {
+			return queuedJobs();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return a snapshot of this batch encoder's statistics
+	 */
+	public JXLBatchStats stats() {
+		long[] sorted;
+		synchronized (this) {
+			sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+		}
+		Arrays.sort(sorted);
+		double seconds = (System.nanoTime()-startTime)/1_000_000_000D;
+		long done = completed.get();
+		return new JXLBatchStats(submitted.get(), done, failed.get(), queueDepth(),
+				done/seconds, pixelsEncoded.get()/1_000_000D/seconds,
+				percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 1));
+	}
+	
+	private static Duration percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return Duration.ZERO;
+		int idx = (int)Math.ceil(p*sorted.length)-1;
+		return Duration.ofNanos(sorted[Math.max(0, Math.min(sorted.length-1, idx))]);
+	}
+	
+	/**
+	 * Stop accepting new jobs, wait for all queued jobs to finish, and release the native
+	 * resources shared by the workers.
+	 * @throws InterruptedException if interrupted while waiting for the workers to finish; the
+	 * 		remaining jobs still complete in the background
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+			notFull.signalAll();
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (var t : workers) {
+			t.join();
+		}
+		wideLane.join();
+		wideRunner.close();
+		pool.close();
+	}
+	
+}
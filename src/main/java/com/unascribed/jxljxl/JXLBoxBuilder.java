@@ -24,7 +24,17 @@
 
 package com.unascribed.jxljxl;
 
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class JXLBoxBuilder {
 
@@ -82,7 +92,13 @@ public class JXLBoxBuilder {
 	byte[] type;
 	boolean compressed;
 	
-	byte[] contents;
+	MemorySegment contents;
+	Path path;
+	/**
+	 * Memory owned by this box alone, released as soon as libjxl has taken its copy of the
+	 * contents.
+	 */
+	private Arena ownArena;
 	
 	JXLBoxBuilder(JXLEncoder owner) {
 		this.owner = owner;
@@ -113,13 +129,115 @@ public class JXLBoxBuilder {
 	 * returning the parent to allow continuing to build the JXL file.
 	 */
 	public JXLEncoder commit(byte[] contents) {
+		return commit(MemorySegment.ofArray(contents));
+	}
+	
+	/**
+	 * Commit this box with the given contents. Native segments are handed to libjxl as-is, and
+	 * must remain valid until the encode call (or until this method returns, if the encoder is
+	 * {@link JXLEncoder#streamTo(java.io.OutputStream) streaming}). Heap segments are copied
+	 * into native memory only when the box is encoded.
+	 */
+	public JXLEncoder commit(MemorySegment contents) {
 		this.contents = contents;
-		return commit();
+		return owner.boxCommitted(this);
 	}
 	
-	private JXLEncoder commit() {
-		owner.boxes.add(this);
-		return owner;
+	/**
+	 * Commit this box with the contents of the given file. The file is memory-mapped when the box
+	 * is encoded, rather than being read now, so even very large boxes never pass through the
+	 * Java heap.
+	 */
+	public JXLEncoder commit(Path file) {
+		this.path = file;
+		return owner.boxCommitted(this);
+	}
+	
+	/**
+	 * Commit this box with the remaining contents of the given channel, which are read straight
+	 * into native memory immediately. That memory belongs to the box, and is freed as soon as
+	 * libjxl has taken its own copy of the contents. The channel is not closed.
+	 * @throws IllegalArgumentException if the channel is in non-blocking mode
+	 */
+	public JXLEncoder commit(ReadableByteChannel channel) throws IOException {
+		if (channel instanceof SelectableChannel sc && !sc.isBlocking())
+			throw new IllegalArgumentException("Box contents can only be read from a channel in blocking mode");
+		// when the length is known up front, there's only one allocation and nothing to copy
+		long known = channel instanceof SeekableByteChannel sbc ? Math.max(0, sbc.size()-sbc.position()) : -1;
+		// encoding may happen on another thread, so the memory can't be confined to this one
+		var arena = Arena.openShared();
+		try {
+			var buf = arena.allocate(known != -1 ? known : 64*1024);
+			long len = 0;
+			while (known == -1 || len < known) {
+				if (len == buf.byteSize()) {
+					// a fresh arena per buffer, so each outgrown one is freed right away
+					var biggerArena = Arena.openShared();
+					var bigger = biggerArena.allocate(buf.byteSize()*2);
+					MemorySegment.copy(buf, 0, bigger, 0, len);
+					arena.close();
+					arena = biggerArena;
+					buf = bigger;
+				}
+				int read = channel.read(buf.asSlice(len).asByteBuffer());
+				if (read == -1) break;
+				len += read;
+			}
+			this.contents = buf.asSlice(0, len);
+			this.ownArena = arena;
+		} catch (Throwable t) {
+			arena.close();
+			throw t;
+		}
+		try {
+			return owner.boxCommitted(this);
+		} catch (Throwable t) {
+			release();
+			throw t;
+		}
+	}
+	
+	/**
+	 * Free any memory owned by this box. Called once libjxl has copied the contents, or when the
+	 * encoder is closed without encoding.
+	 */
+	void release() {
+		if (ownArena != null) {
+			ownArena.close();
+			ownArena = null;
+			contents = null;
+		}
+	}
+	
+	/**
+	 * @return a detached copy of this box, with its contents (if not a file) copied into memory
+	 * 		from the given allocator
+	 */
+	JXLBoxBuilder freeze(SegmentAllocator alloc) {
+		var cpy = new JXLBoxBuilder(null);
+		cpy.type = type;
+		cpy.compressed = compressed;
+		cpy.path = path;
+		if (contents != null) {
+			cpy.contents = alloc.allocate(contents.byteSize());
+			cpy.contents.copyFrom(contents);
+		}
+		return cpy;
+	}
+	
+	/**
+	 * @return the contents of this box in native memory, allocating from the given arena if needed
+	 */
+	MemorySegment load(Arena arena) throws IOException {
+		if (path != null) {
+			try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+				return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size(), arena.scope());
+			}
+		}
+		if (contents.isNative()) return contents;
+		var cpy = arena.allocate(contents.byteSize());
+		cpy.copyFrom(contents);
+		return cpy;
 	}
 	
 }
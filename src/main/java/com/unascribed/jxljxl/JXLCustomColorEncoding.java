@@ -24,6 +24,13 @@
 
 package com.unascribed.jxljxl;
 
+import static com.unascribed.jxljxl.panama.LibJxl.*;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import com.unascribed.jxljxl.panama.JxlColorEncoding;
+
 /**
  * Specifies a custom color encoding.
  */
@@ -110,4 +117,87 @@ public record JXLCustomColorEncoding(JXLColorSpace colorSpace, JXLWhitePoint whi
 		/** ICC-absolute */
 		ABSOLUTE,
 	}
+	
+	/**
+	 * Read a JxlColorEncoding struct filled in by libjxl.
+	 */
+	static JXLCustomColorEncoding fromNative(MemorySegment cenc) {
+		int cs = JxlColorEncoding.color_space$get(cenc);
+		JXLColorSpace colorSpace;
+		if (cs == JXL_COLOR_SPACE_RGB()) {
+			colorSpace = JXLColorSpace.RGB;
+		} else if (cs == JXL_COLOR_SPACE_GRAY()) {
+			colorSpace = JXLColorSpace.GRAY;
+		} else if (cs == JXL_COLOR_SPACE_XYB()) {
+			colorSpace = JXLColorSpace.XYB;
+		} else {
+			colorSpace = JXLColorSpace.UNKNOWN;
+		}
+		
+		int wp = JxlColorEncoding.white_point$get(cenc);
+		JXLWhitePoint whitePoint;
+		if (wp == JXL_WHITE_POINT_D65()) {
+			whitePoint = JXLWhitePoint.D65;
+		} else if (wp == JXL_WHITE_POINT_E()) {
+			whitePoint = JXLWhitePoint.E;
+		} else if (wp == JXL_WHITE_POINT_DCI()) {
+			whitePoint = JXLWhitePoint.DCI;
+		} else {
+			var xy = JxlColorEncoding.white_point_xy$slice(cenc);
+			whitePoint = new JXLWhitePoint(xy.get(ValueLayout.JAVA_DOUBLE, 0), xy.get(ValueLayout.JAVA_DOUBLE, 8));
+		}
+		
+		int pri = JxlColorEncoding.primaries$get(cenc);
+		JXLPrimaries primaries;
+		if (pri == JXL_PRIMARIES_SRGB()) {
+			primaries = JXLPrimaries.SRGB;
+		} else if (pri == JXL_PRIMARIES_2100()) {
+			primaries = JXLPrimaries.BT2100;
+		} else if (pri == JXL_PRIMARIES_P3()) {
+			primaries = JXLPrimaries.P3;
+		} else {
+			var red = JxlColorEncoding.primaries_red_xy$slice(cenc);
+			var green = JxlColorEncoding.primaries_green_xy$slice(cenc);
+			var blue = JxlColorEncoding.primaries_blue_xy$slice(cenc);
+			primaries = new JXLPrimaries(
+					red.get(ValueLayout.JAVA_DOUBLE, 0), red.get(ValueLayout.JAVA_DOUBLE, 8),
+					green.get(ValueLayout.JAVA_DOUBLE, 0), green.get(ValueLayout.JAVA_DOUBLE, 8),
+					blue.get(ValueLayout.JAVA_DOUBLE, 0), blue.get(ValueLayout.JAVA_DOUBLE, 8)
+				);
+		}
+		
+		int tf = JxlColorEncoding.transfer_function$get(cenc);
+		JXLTransferFunction transferFunction;
+		if (tf == JXL_TRANSFER_FUNCTION_709()) {
+			transferFunction = JXLPredefinedTransferFunction.SMPTE_709;
+		} else if (tf == JXL_TRANSFER_FUNCTION_LINEAR()) {
+			transferFunction = JXLPredefinedTransferFunction.LINEAR;
+		} else if (tf == JXL_TRANSFER_FUNCTION_SRGB()) {
+			transferFunction = JXLPredefinedTransferFunction.SRGB;
+		} else if (tf == JXL_TRANSFER_FUNCTION_PQ()) {
+			transferFunction = JXLPredefinedTransferFunction.PQ;
+		} else if (tf == JXL_TRANSFER_FUNCTION_DCI()) {
+			transferFunction = JXLPredefinedTransferFunction.DCI;
+		} else if (tf == JXL_TRANSFER_FUNCTION_HLG()) {
+			transferFunction = JXLPredefinedTransferFunction.HLG;
+		} else if (tf == JXL_TRANSFER_FUNCTION_GAMMA()) {
+			transferFunction = new JXLGammaTransferFunction(JxlColorEncoding.gamma$get(cenc));
+		} else {
+			transferFunction = JXLTransferFunction.UNKNOWN;
+		}
+		
+		int ri = JxlColorEncoding.rendering_intent$get(cenc);
+		JXLRenderingIntent intent;
+		if (ri == JXL_RENDERING_INTENT_PERCEPTUAL()) {
+			intent = JXLRenderingIntent.PERCEPTUAL;
+		} else if (ri == JXL_RENDERING_INTENT_SATURATION()) {
+			intent = JXLRenderingIntent.SATURATION;
+		} else if (ri == JXL_RENDERING_INTENT_ABSOLUTE()) {
+			intent = JXLRenderingIntent.ABSOLUTE;
+		} else {
+			intent = JXLRenderingIntent.RELATIVE;
+		}
+		
+		return new JXLCustomColorEncoding(colorSpace, whitePoint, primaries, transferFunction, intent);
+	}
 }
@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static com.unascribed.jxljxl.panama.LibJxl.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import com.unascribed.jxljxl.panama.JxlBasicInfo;
+import com.unascribed.jxljxl.panama.JxlColorEncoding;
+import com.unascribed.jxljxl.panama.JxlExtraChannelInfo;
+import com.unascribed.jxljxl.panama.JxlFrameHeader;
+import com.unascribed.jxljxl.panama.JxlPixelFormat;
+
+/**
+ * A native JxlDecoder handle along with all the scratch structs needed to drive it.
+ */
+final class JXLDecodeSession {
+
+	final Arena arena;
+	final MemorySegment dec;
+	final JXLMemoryManager memoryManager;
+	
+	final MemorySegment info;
+	final MemorySegment colorEncoding;
+	final MemorySegment extraChannelInfo;
+	final MemorySegment hdr;
+	final MemorySegment fmt;
+	final MemorySegment extraFmt;
+	final MemorySegment nameBuf;
+	final MemorySegment boxType;
+	final MemorySegment size;
+	
+	JXLDecodeSession(Arena arena, JXLMemoryManager memoryManager) throws JXLException {
+		long failures = memoryManager == null ? 0 : memoryManager.failedAllocations();
+		var dec = JxlDecoderCreate(memoryManager == null ? MemorySegment.NULL : memoryManager.struct(arena));
+		if (dec == null || dec.address() == 0) {
+			arena.close();
+			if (memoryManager != null && memoryManager.failedAllocations() != failures) {
+				throw new JXLException("Creating decoder failed: native memory budget of "+memoryManager.budget()+" bytes exceeded");
+			}
+			throw new JXLException("Creating decoder failed");
+		}
+		this.arena = arena;
+		this.dec = dec;
+		this.memoryManager = memoryManager;
+		this.info = JxlBasicInfo.allocate(arena);
+		this.colorEncoding = JxlColorEncoding.allocate(arena);
+		this.extraChannelInfo = JxlExtraChannelInfo.allocate(arena);
+		this.hdr = JxlFrameHeader.allocate(arena);
+		this.fmt = JxlPixelFormat.allocate(arena);
+		this.extraFmt = JxlPixelFormat.allocate(arena);
+		this.nameBuf = arena.allocate(1072); // maximum as imposed by libjxl
+		this.boxType = arena.allocate(4);
+		this.size = arena.allocate(ValueLayout.JAVA_LONG);
+	}
+	
+	/**
+	 * Return the decoder to the state it was in right after creation, releasing whatever libjxl
+	 * was holding onto for the previous image.
+	 */
+	void reset() {
+		JxlDecoderReset(dec);
+	}
+	
+	void destroy() {
+		JxlDecoderDestroy(dec);
+		arena.close();
+	}
+	
+}
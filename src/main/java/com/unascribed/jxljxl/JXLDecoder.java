@@ -0,0 +1,958 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static com.unascribed.jxljxl.panama.LibJxl.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentScope;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.unascribed.jxljxl.JXLExtraChannelBuilder.JXLExtraChannelType;
+import com.unascribed.jxljxl.JXLImageInfo.JXLExtraChannelInfo;
+import com.unascribed.jxljxl.panama.JxlAnimationHeader;
+import com.unascribed.jxljxl.panama.JxlBasicInfo;
+import com.unascribed.jxljxl.panama.JxlExtraChannelInfo;
+import com.unascribed.jxljxl.panama.JxlFrameHeader;
+import com.unascribed.jxljxl.panama.JxlImageOutDestroyCallback;
+import com.unascribed.jxljxl.panama.JxlImageOutInitCallback;
+import com.unascribed.jxljxl.panama.JxlImageOutRunCallback;
+import com.unascribed.jxljxl.panama.JxlLayerInfo;
+import com.unascribed.jxljxl.panama.JxlPixelFormat;
+
+/**
+ * Decodes JXL files, handing everything it finds to a {@link JXLDecodeListener} as soon as it's
+ * found.
+ * <p>
+ * Input is read incrementally through a fixed-size native window, so a file being decoded never
+ * needs to be held in memory in its entirety, and decoding starts as soon as the first bytes
+ * arrive. A JXLDecoder holds only settings, and may be used for any number of decodes, including
+ * concurrently from multiple threads, as long as its settings aren't changed in the meantime.
+ */
+public class JXLDecoder {
+	
+	/**
+	 * How often a progressive decode reports its progress. Each level also includes every level
+	 * above it.
+	 */
+	public enum JXLProgressiveDetail {
+		/**
+		 * After each completed frame. This is the same as a normal decode.
+		 */
+		FRAMES,
+		/**
+		 * After the DC of each frame is complete, giving a 1:8 downsampled preview.
+		 */
+		DC,
+		/**
+		 * After each AC pass that is the last pass for its resolution target.
+		 */
+		LAST_PASSES,
+		/**
+		 * After every AC pass.
+		 */
+		PASSES,
+		/**
+		 * During DC frames, whenever a lower resolution (1:32, 1:16) is complete.
+		 */
+		DC_PROGRESSIVE,
+		/**
+		 * After each completed group of DC.
+		 */
+		DC_GROUPS,
+		/**
+		 * After each completed group.
+		 */
+		GROUPS,
+		;
+		
+		int toNative() {
+			return switch (this) {
+				case FRAMES -> kFrames();
+				case DC -> kDC();
+				case LAST_PASSES -> kLastPasses();
+				case PASSES -> kPasses();
+				case DC_PROGRESSIVE -> kDCProgressive();
+				case DC_GROUPS -> kDCGroups();
+				case GROUPS -> kGroups();
+			};
+		}
+	}
+	
+	/**
+	 * Receives the results of a decode. Every method is called on the thread that called decode,
+	 * and exceptions thrown from them abort the decode. Segments passed to these methods are only
+	 * valid until the method returns.
+	 */
+	public interface JXLDecodeListener {
+		/**
+		 * Called once the image's header and color encoding have been read, before any frames.
+		 */
+		default void imageInfo(JXLImageInfo info) throws IOException {}
+		/**
+		 * Called once a frame's header has been read, before its pixels are decoded.
+		 */
+		default void frame(JXLFrameInfo frame) throws IOException {}
+		/**
+		 * Called once a frame has been fully decoded.
+		 * @param pixels the frame's pixels, in the format given to {@link JXLDecoder#pixelFormat}
+		 * @param extraChannels one segment per extra channel, each a single channel in the same
+		 * 		data type as the pixels, if {@link JXLDecoder#extraChannels(boolean) enabled};
+		 * 		otherwise empty
+		 */
+		default void image(JXLFrameInfo frame, MemorySegment pixels, List<MemorySegment> extraChannels) throws IOException {}
+		/**
+		 * Called during a {@link JXLDecoder#progressive progressive} decode whenever more of a
+		 * frame becomes available, with everything decoded so far rendered into the same buffers
+		 * {@link #image} will receive once the frame is complete.
+		 * @param downsampling how much lower the detail of the render is than the final image,
+		 * 		e.g. 8 once only the DC is available, or 1 if full detail has been reached
+		 */
+		default void progress(JXLFrameInfo frame, MemorySegment pixels, List<MemorySegment> extraChannels, int downsampling) throws IOException {}
+		/**
+		 * Called before a frame's pixels are decoded, to decide where they go. Returning a sink
+		 * makes libjxl hand the frame's pixels to it directly from its worker threads as they're
+		 * decoded, rather than collecting them into a full-frame buffer for {@link #image}, which
+		 * then isn't called for that frame. {@link #progress} isn't called for such frames either.
+		 * @return a sink for this frame's pixels, or {@code null} to receive them via
+		 * 		{@link #image} as usual
+		 */
+		default JXLRowSink rowSink(JXLFrameInfo frame) throws IOException { return null; }
+		/**
+		 * Called with the contents of each metadata box in the container, if
+		 * {@link JXLDecoder#boxes(boolean) enabled}. Boxes holding the codestream itself are
+		 * skipped.
+		 * @param type the box's FourCC
+		 */
+		default void box(String type, MemorySegment contents) throws IOException {}
+	}
+	
+	/**
+	 * Receives a frame's pixels from libjxl's worker threads, a run of pixels at a time, as they're
+	 * decoded. Runs are always horizontal, and never overlap.
+	 * @see JXLDecodeListener#rowSink
+	 */
+	public interface JXLRowSink {
+		/**
+		 * Called before any pixels are delivered.
+		 * @param threads the number of threads that may deliver pixels; every {@code threadId}
+		 * 		passed to {@link #pixels} will be less than this, so it can be used to index
+		 * 		per-thread scratch space
+		 */
+		default void start(int threads) throws IOException {}
+		/**
+		 * Called from one of libjxl's worker threads with a run of decoded pixels, in the format
+		 * given to {@link JXLDecoder#pixelFormat}. Calls from different threads happen
+		 * concurrently. The segment is only valid until this method returns.
+		 * <p>
+		 * libjxl has no way to be told that something went wrong here, so if this method throws,
+		 * the rest of the frame's pixels are dropped and the exception is rethrown from the
+		 * decode call once libjxl returns control.
+		 * @param x the x coordinate of the first pixel of the run
+		 * @param y the row the run is in
+		 * @param numPixels the number of pixels in the run
+		 */
+		void pixels(int threadId, int x, int y, int numPixels, MemorySegment pixels) throws IOException;
+		/**
+		 * Called on the decoding thread once every pixel of the frame has been delivered.
+		 * @param extraChannels one segment per extra channel, if
+		 * 		{@link JXLDecoder#extraChannels(boolean) enabled}; otherwise empty
+		 */
+		default void end(List<MemorySegment> extraChannels) throws IOException {}
+	}
+	
+	private JXLRunner runner = null;
+	private JXLMemoryManager memoryManager = null;
+	private JXLDecoderPool pool = null;
+	private int inputWindow = 64*1024;
+	
+	private int numChannels = -1;
+	private JXLDataType dataType = JXLDataType.UINT8;
+	private boolean extraChannels = false;
+	private boolean coalescing = true;
+	private boolean keepOrientation = false;
+	private boolean unpremultiplyAlpha = false;
+	private boolean renderSpotColors = true;
+	private boolean boxes = false;
+	private boolean decompressBoxes = true;
+	private JXLProgressiveDetail progressiveDetail = null;
+	
+	private JXLDecoder() {}
+	
+	public static JXLDecoder create() {
+		return new JXLDecoder();
+	}
+	
+	/**
+	 * Use the given runner to spread decoding across threads, rather than the default shared
+	 * runner.
+	 * @see JXLRunner
+	 */
+	public JXLDecoder runner(JXLRunner runner) {
+		this.runner = runner;
+		return this;
+	}
+	
+	/**
+	 * Make libjxl allocate all of its memory for decodes through the given memory manager.
+	 * @see JXLMemoryManager
+	 */
+	public JXLDecoder memoryManager(JXLMemoryManager memoryManager) {
+		this.memoryManager = memoryManager;
+		return this;
+	}
+	
+	/**
+	 * Use native decoders from the given pool rather than creating and destroying a new one for
+	 * every decode. Pass null to go back to the default of using a fresh decoder each time.
+	 * Strongly recommended when {@link #probe(Path) probing} many files.
+	 */
+	public JXLDecoder pool(JXLDecoderPool pool) {
+		this.pool = pool;
+		return this;
+	}
+	
+	/**
+	 * Set how many bytes of input are read at a time when decoding from a stream or channel. The
+	 * window only grows if libjxl needs a larger contiguous piece of the file than this to make
+	 * progress. Defaults to 64 KiB.
+	 */
+	public JXLDecoder inputWindow(int bytes) {
+		if (bytes <= 0) throw new IllegalArgumentException("Input window must be positive");
+		this.inputWindow = bytes;
+		return this;
+	}
+	
+	/**
+	 * Set the format decoded pixels are returned in.
+	 * @param numChannels 1 for gray, 2 for gray+alpha, 3 for RGB, or 4 for RGBA; or -1 to match
+	 * 		the image, i.e. its color channels plus alpha if it has any
+	 * @param dataType the type of each sample
+	 */
+	public JXLDecoder pixelFormat(int numChannels, JXLDataType dataType) {
+		if (numChannels != -1 && (numChannels < 1 || numChannels > 4)) throw new IllegalArgumentException("numChannels must be between 1 and 4, or -1");
+		this.numChannels = numChannels;
+		this.dataType = dataType;
+		return this;
+	}
+	
+	/**
+	 * Whether to also return every extra channel of each frame (including alpha) separately.
+	 * Defaults to false.
+	 */
+	public JXLDecoder extraChannels(boolean extraChannels) {
+		this.extraChannels = extraChannels;
+		return this;
+	}
+	
+	/**
+	 * Whether to blend frames together and skip frames with zero duration, returning only the
+	 * frames as they'd be displayed. When disabled, each frame is returned as it was encoded,
+	 * with its own size and offset. Defaults to true.
+	 */
+	public JXLDecoder coalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+		return this;
+	}
+	
+	/**
+	 * Whether to return pixels as they were encoded, rather than applying the image's
+	 * orientation. Defaults to false.
+	 */
+	public JXLDecoder keepOrientation(boolean keepOrientation) {
+		this.keepOrientation = keepOrientation;
+		return this;
+	}
+	
+	/**
+	 * Whether to undo alpha premultiplication for images that use it. Defaults to false.
+	 */
+	public JXLDecoder unpremultiplyAlpha(boolean unpremultiplyAlpha) {
+		this.unpremultiplyAlpha = unpremultiplyAlpha;
+		return this;
+	}
+	
+	/**
+	 * Whether to render spot colors into the color channels. Defaults to true.
+	 */
+	public JXLDecoder renderSpotColors(boolean renderSpotColors) {
+		this.renderSpotColors = renderSpotColors;
+		return this;
+	}
+	
+	/**
+	 * Whether to return the contents of metadata boxes, such as EXIF and XMP, via
+	 * {@link JXLDecodeListener#box}. Defaults to false.
+	 */
+	public JXLDecoder boxes(boolean boxes) {
+		this.boxes = boxes;
+		return this;
+	}
+	
+	/**
+	 * Whether Brotli-compressed boxes should be decompressed and reported as the type they
+	 * contain. Defaults to true.
+	 */
+	public JXLDecoder decompressBoxes(boolean decompressBoxes) {
+		this.decompressBoxes = decompressBoxes;
+		return this;
+	}
+	
+	/**
+	 * Report intermediate renders of each frame to {@link JXLDecodeListener#progress} as decoding
+	 * proceeds, at the given level of detail. For example, {@link JXLProgressiveDetail#DC DC}
+	 * gives a low-resolution render of each frame long before the rest of it has been decoded,
+	 * which is most useful when decoding from a slow stream. Pass null to disable, which is the
+	 * default.
+	 */
+	public JXLDecoder progressive(JXLProgressiveDetail detail) {
+		this.progressiveDetail = detail;
+		return this;
+	}
+	
+	/**
+	 * Decode a JXL file from the given stream, which is read no further than the end of the file
+	 * and is not closed.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if the file is invalid or truncated
+	 */
+	public void decode(InputStream in, JXLDecodeListener listener) throws IOException {
+		decode(Channels.newChannel(in), listener);
+	}
+	
+	/**
+	 * Decode a JXL file from the given channel, which is not closed.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if the file is invalid or truncated
+	 * @throws IllegalArgumentException if the channel is in non-blocking mode
+	 */
+	public void decode(ReadableByteChannel in, JXLDecodeListener listener) throws IOException {
+		try (var arena = Arena.openConfined()) {
+			run(new StreamInput(in, arena, inputWindow), arena, listener, false);
+		}
+	}
+	
+	/**
+	 * Decode the given JXL file. The file is memory-mapped and handed to libjxl as-is, so the page
+	 * cache holds the only copy of the compressed data.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if the file is invalid or truncated
+	 */
+	public void decode(Path file, JXLDecodeListener listener) throws IOException {
+		try (var arena = Arena.openConfined(); var ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			var data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size(), arena.scope());
+			run(new SegmentInput(data), arena, listener, false);
+		}
+	}
+	
+	/**
+	 * Decode a complete JXL file held in the given segment. Native segments are handed to libjxl
+	 * as-is; heap segments are copied into native memory first.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if the file is invalid or truncated
+	 */
+	public void decode(MemorySegment data, JXLDecodeListener listener) throws IOException {
+		try (var arena = Arena.openConfined()) {
+			if (!data.isNative()) {
+				var cpy = arena.allocate(data.byteSize());
+				cpy.copyFrom(data);
+				data = cpy;
+			}
+			run(new SegmentInput(data), arena, listener, false);
+		}
+	}
+	
+	/**
+	 * Read just the header and color encoding of the given JXL file, without decoding any pixel
+	 * data. Only as much of the file as libjxl says it needs is read.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if the file is invalid or truncated
+	 */
+	public JXLImageInfo probe(Path file) throws IOException {
+		try (var ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			return probe(ch);
+		}
+	}
+	
+	/**
+	 * Read just the header and color encoding of a JXL file from the given stream, without
+	 * decoding any pixel data. The stream is read no further than libjxl says it needs, and is not
+	 * closed.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if the file is invalid or truncated
+	 */
+	public JXLImageInfo probe(InputStream in) throws IOException {
+		return probe(Channels.newChannel(in));
+	}
+	
+	/**
+	 * Read just the header and color encoding of a JXL file from the given channel, without
+	 * decoding any pixel data. The channel is read no further than libjxl says it needs, and is
+	 * not closed.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if the file is invalid or truncated
+	 * @throws IllegalArgumentException if the channel is in non-blocking mode
+	 */
+	public JXLImageInfo probe(ReadableByteChannel in) throws IOException {
+		try (var arena = Arena.openConfined()) {
+			return run(new StreamInput(in, arena, PROBE_WINDOW), arena, null, true);
+		}
+	}
+	
+	/**
+	 * Read just the header and color encoding of a JXL file held in the given segment, without
+	 * decoding any pixel data.
+	 * @throws JXLException if the file is invalid or truncated
+	 */
+	public JXLImageInfo probe(MemorySegment data) throws IOException {
+		try (var arena = Arena.openConfined()) {
+			if (!data.isNative()) {
+				// there's no need to copy any more than the header
+				return run(new StreamInput(new SegmentChannel(data), arena, PROBE_WINDOW), arena, null, true);
+			}
+			return run(new SegmentInput(data), arena, null, true);
+		}
+	}
+	
+	/**
+	 * @return the image info, if probing
+	 */
+	private JXLImageInfo run(Input input, Arena scratch, JXLDecodeListener listener, boolean probe) throws IOException {
+		try (var active = new ActiveDecode(input, scratch, listener, probe)) {
+			try {
+				active.run();
+				return active.info;
+			} catch (Throwable t) {
+				active.checkBudget(t);
+				throw t;
+			}
+		}
+	}
+	
+	// basic info is usually only a couple dozen bytes, and even large ICC profiles are rare
+	private static final int PROBE_WINDOW = 4096;
+	
+	/**
+	 * Somewhere for a decode to get its compressed bytes from.
+	 */
+	private interface Input {
+		/**
+		 * Give the decoder more input, in response to JXL_DEC_NEED_MORE_INPUT.
+		 * @param want how many more bytes to read if reading incrementally, or 0 for as many as
+		 * 		are convenient
+		 */
+		void refill(MemorySegment dec, long want) throws IOException;
+	}
+	
+	/**
+	 * Feeds a channel to the decoder through a native window, moving whatever libjxl hasn't
+	 * consumed yet to the front before each read.
+	 */
+	private static final class StreamInput implements Input {
+		private final ReadableByteChannel in;
+		private final Arena arena;
+		private MemorySegment window;
+		private long filled = 0;
+		private boolean eof = false;
+		
+		StreamInput(ReadableByteChannel in, Arena arena, int size) {
+			// a non-blocking channel can have nothing to give, and we'd spin until it did
+			if (in instanceof SelectableChannel sc && !sc.isBlocking())
+				throw new IllegalArgumentException("Input channel must be in blocking mode");
+			this.in = in;
+			this.arena = arena;
+			this.window = arena.allocate(size);
+		}
+		
+		@Override
+		public void refill(MemorySegment dec, long want) throws IOException {
+			long remaining = JxlDecoderReleaseInput(dec);
+			if (eof) throw new JXLException("Decoding failed due to unexpected EOF");
+			if (remaining > 0) {
+				MemorySegment.copy(window, filled-remaining, window, 0, remaining);
+			}
+			filled = remaining;
+			long need = filled + Math.max(want, 1);
+			if (need > window.byteSize()) {
+				// libjxl needs more than fits in the window at once
+				var bigger = arena.allocate(Math.max(need, window.byteSize()*2));
+				MemorySegment.copy(window, 0, bigger, 0, filled);
+				window = bigger;
+			}
+			long end = want > 0 ? need : window.byteSize();
+			ByteBuffer buf = window.asSlice(filled, end-filled).asByteBuffer();
+			while (true) {
+				int read = in.read(buf);
+				if (read == -1) {
+					eof = true;
+					break;
+				}
+				if (read > 0) {
+					filled += read;
+					break;
+				}
+			}
+			check(JxlDecoderSetInput(dec, window, filled));
+			if (eof) JxlDecoderCloseInput(dec);
+		}
+	}
+	
+	/**
+	 * Feeds a complete file to the decoder in one go.
+	 */
+	private static final class SegmentInput implements Input {
+		private final MemorySegment data;
+		private boolean given = false;
+		
+		SegmentInput(MemorySegment data) {
+			this.data = data;
+		}
+		
+		@Override
+		public void refill(MemorySegment dec, long want) throws IOException {
+			JxlDecoderReleaseInput(dec);
+			if (given) throw new JXLException("Decoding failed due to unexpected EOF");
+			given = true;
+			check(JxlDecoderSetInput(dec, data, data.byteSize()));
+			JxlDecoderCloseInput(dec);
+		}
+	}
+	
+	/**
+	 * Presents a heap segment as a channel, so that probes can copy as little of it as possible.
+	 */
+	private static final class SegmentChannel implements ReadableByteChannel {
+		private final MemorySegment data;
+		private long pos = 0;
+		
+		SegmentChannel(MemorySegment data) {
+			this.data = data;
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) {
+			if (pos == data.byteSize()) return -1;
+			int n = (int)Math.min(dst.remaining(), data.byteSize()-pos);
+			MemorySegment.ofBuffer(dst).copyFrom(data.asSlice(pos, n));
+			dst.position(dst.position()+n);
+			pos += n;
+			return n;
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public void close() {}
+	}
+	
+	/**
+	 * Routes libjxl's image out callbacks to whichever {@link JXLRowSink} the current frame of a
+	 * decode is using.
+	 */
+	private static final class RowSinkState {
+		static final MemorySegment INIT = JxlImageOutInitCallback.allocate(RowSinkState::init, SegmentScope.global());
+		static final MemorySegment RUN = JxlImageOutRunCallback.allocate(RowSinkState::run, SegmentScope.global());
+		static final MemorySegment DESTROY = JxlImageOutDestroyCallback.allocate(RowSinkState::destroy, SegmentScope.global());
+		
+		final MemorySegment opaque = Opaques.register(this);
+		volatile JXLRowSink sink;
+		volatile int bytesPerPixel;
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		
+		void fail(Throwable t) {
+			failure.compareAndSet(null, t);
+		}
+		
+		void rethrow() throws IOException {
+			var t = failure.getAndSet(null);
+			if (t == null) return;
+			sink = null;
+			if (t instanceof IOException e) throw e;
+			if (t instanceof RuntimeException e) throw e;
+			if (t instanceof Error e) throw e;
+			throw new IOException(t);
+		}
+		
+		// throwing out of an upcall kills the JVM, so everything must be caught in these
+		
+		private static MemorySegment init(MemorySegment initOpaque, long threads, long pixelsPerThread) {
+			var self = Opaques.get(initOpaque, RowSinkState.class);
+			if (self == null) return MemorySegment.NULL;
+			try {
+				var sink = self.sink;
+				if (sink != null) sink.start((int)threads);
+			} catch (Throwable t) {
+				self.fail(t);
+			}
+			// the same state serves as the run opaque
+			return initOpaque;
+		}
+		
+		private static void run(MemorySegment runOpaque, long threadId, long x, long y, long numPixels, MemorySegment pixels) {
+			var self = Opaques.get(runOpaque, RowSinkState.class);
+			if (self == null || self.failure.get() != null) return;
+			try {
+				var sink = self.sink;
+				if (sink == null) return;
+				var seg = MemorySegment.ofAddress(pixels.address(), numPixels*self.bytesPerPixel);
+				sink.pixels((int)threadId, (int)x, (int)y, (int)numPixels, seg);
+			} catch (Throwable t) {
+				self.fail(t);
+			}
+		}
+		
+		private static void destroy(MemorySegment runOpaque) {}
+	}
+	
+	private final class ActiveDecode implements AutoCloseable {
+		final Input input;
+		final Arena scratch;
+		final JXLDecodeListener listener;
+		final boolean probe;
+		final JXLDecoderPool pool = JXLDecoder.this.pool;
+		final JXLDecodeSession session;
+		final MemorySegment dec;
+		final JXLRunner runner = JXLDecoder.this.runner == null ? JXLRunner.getDefault() : JXLDecoder.this.runner;
+		boolean runnerAcquired = false;
+		final long failuresAtStart;
+		
+		final List<JXLExtraChannelInfo> extraChannelInfo = new ArrayList<>();
+		boolean haveBasicInfo = false;
+		JXLImageInfo info;
+		int frameIndex = 0;
+		JXLFrameInfo frame;
+		int channels;
+		
+		JXLRowSink sink;
+		RowSinkState sinkState;
+		
+		MemorySegment pixels;
+		long pixelsSize;
+		MemorySegment extra;
+		final List<MemorySegment> extraSlices = new ArrayList<>();
+		
+		MemorySegment boxBuf;
+		long boxFilled;
+		String boxType;
+		
+		ActiveDecode(Input input, Arena scratch, JXLDecodeListener listener, boolean probe) throws JXLException {
+			this.input = input;
+			this.scratch = scratch;
+			this.listener = listener;
+			this.probe = probe;
+			this.session = pool == null ? new JXLDecodeSession(Arena.openConfined(), memoryManager) : pool.acquire();
+			this.dec = session.dec;
+			this.failuresAtStart = session.memoryManager == null ? 0 : session.memoryManager.failedAllocations();
+		}
+		
+		/**
+		 * libjxl reports a refused allocation as a generic error, so check if the memory manager
+		 * refused anything during this decode and say so if it did.
+		 */
+		void checkBudget(Throwable cause) throws JXLException {
+			var mm = session.memoryManager;
+			if (mm != null && mm.failedAllocations() != failuresAtStart) {
+				var e = new JXLException("Native memory budget of "+mm.budget()+" bytes exceeded");
+				e.initCause(cause);
+				throw e;
+			}
+		}
+		
+		void run() throws IOException {
+			if (probe) {
+				check(JxlDecoderSubscribeEvents(dec, JXL_DEC_BASIC_INFO() | JXL_DEC_COLOR_ENCODING()));
+			} else {
+				int events = JXL_DEC_BASIC_INFO() | JXL_DEC_COLOR_ENCODING() | JXL_DEC_FRAME() | JXL_DEC_FULL_IMAGE();
+				if (boxes) events |= JXL_DEC_BOX();
+				if (progressiveDetail != null) events |= JXL_DEC_FRAME_PROGRESSION();
+				check(JxlDecoderSubscribeEvents(dec, events));
+				if (progressiveDetail != null) check(JxlDecoderSetProgressiveDetail(dec, progressiveDetail.toNative()));
+				runnerAcquired = runner.acquire();
+				if (runnerAcquired) check(JxlDecoderSetParallelRunner(dec, runner.function(), runner.opaque()));
+				check(JxlDecoderSetCoalescing(dec, coalescing ? 1 : 0));
+				check(JxlDecoderSetKeepOrientation(dec, keepOrientation ? 1 : 0));
+				check(JxlDecoderSetUnpremultiplyAlpha(dec, unpremultiplyAlpha ? 1 : 0));
+				check(JxlDecoderSetRenderSpotcolors(dec, renderSpotColors ? 1 : 0));
+				if (boxes) check(JxlDecoderSetDecompressBoxes(dec, decompressBoxes ? 1 : 0));
+			}
+			
+			while (true) {
+				int event = JxlDecoderProcessInput(dec);
+				if (sinkState != null) sinkState.rethrow();
+				if (event == JXL_DEC_SUCCESS()) {
+					finishBox();
+					return;
+				} else if (event == JXL_DEC_ERROR()) {
+					throw new JXLException("Decoding failed"+NO_MORE_INFO);
+				} else if (event == JXL_DEC_NEED_MORE_INPUT()) {
+					input.refill(dec, probe && !haveBasicInfo ? JxlDecoderSizeHintBasicInfo(dec) : 0);
+				} else if (event == JXL_DEC_BASIC_INFO()) {
+					readBasicInfo();
+					haveBasicInfo = true;
+				} else if (event == JXL_DEC_COLOR_ENCODING()) {
+					info = imageInfo();
+					if (probe) return;
+					listener.imageInfo(info);
+				} else if (event == JXL_DEC_FRAME()) {
+					frame = frameInfo();
+					listener.frame(frame);
+				} else if (event == JXL_DEC_NEED_IMAGE_OUT_BUFFER()) {
+					setOutputBuffers();
+				} else if (event == JXL_DEC_FRAME_PROGRESSION()) {
+					// fails if there's nothing new to show yet, which is nothing to worry about
+					if (sink == null && JxlDecoderFlushImage(dec) == JXL_DEC_SUCCESS()) {
+						listener.progress(frame, pixels.asSlice(0, pixelsSize), extraSlices, (int)JxlDecoderGetIntendedDownsamplingRatio(dec));
+					}
+				} else if (event == JXL_DEC_FULL_IMAGE()) {
+					if (sink != null) {
+						var s = sink;
+						sink = null;
+						sinkState.sink = null;
+						s.end(extraSlices);
+					} else {
+						listener.image(frame, pixels.asSlice(0, pixelsSize), extraSlices);
+					}
+				} else if (event == JXL_DEC_BOX()) {
+					finishBox();
+					startBox();
+				} else if (event == JXL_DEC_BOX_NEED_MORE_OUTPUT()) {
+					growBox();
+				} else {
+					throw new JXLException("Unknown event 0x"+Integer.toHexString(event)+" from decoder");
+				}
+			}
+		}
+		
+		private void readBasicInfo() throws JXLException {
+			var info = session.info;
+			check(JxlDecoderGetBasicInfo(dec, info));
+			
+			var einfo = session.extraChannelInfo;
+			for (int i = 0; i < JxlBasicInfo.num_extra_channels$get(info); i++) {
+				check(JxlDecoderGetExtraChannelInfo(dec, i, einfo));
+				int nl = JxlExtraChannelInfo.name_length$get(einfo);
+				String name = null;
+				if (nl > 0) {
+					check(JxlDecoderGetExtraChannelName(dec, i, session.nameBuf, nl+1));
+					name = session.nameBuf.getUtf8String(0);
+				}
+				extraChannelInfo.add(new JXLExtraChannelInfo(
+						JXLExtraChannelType.fromNative(JxlExtraChannelInfo.type$get(einfo)),
+						JxlExtraChannelInfo.bits_per_sample$get(einfo),
+						JxlExtraChannelInfo.exponent_bits_per_sample$get(einfo),
+						JxlExtraChannelInfo.dim_shift$get(einfo),
+						name,
+						JxlExtraChannelInfo.alpha_premultiplied$get(einfo) != 0,
+						JxlExtraChannelInfo.spot_color$slice(einfo).toArray(ValueLayout.JAVA_FLOAT),
+						JxlExtraChannelInfo.cfa_channel$get(einfo)
+					));
+			}
+			
+			channels = numChannels;
+			if (channels == -1) {
+				channels = JxlBasicInfo.num_color_channels$get(info) + (JxlBasicInfo.alpha_bits$get(info) != 0 ? 1 : 0);
+			}
+			loadFormat(session.fmt, channels);
+			loadFormat(session.extraFmt, 1);
+		}
+		
+		private void loadFormat(MemorySegment fmt, int channels) {
+			JxlPixelFormat.num_channels$set(fmt, channels);
+			JxlPixelFormat.data_type$set(fmt, switch (dataType) {
+				case FLOAT32 -> JXL_TYPE_FLOAT();
+				case UINT8 -> JXL_TYPE_UINT8();
+				case UINT16 -> JXL_TYPE_UINT16();
+				case FLOAT16 -> JXL_TYPE_FLOAT16();
+			});
+			JxlPixelFormat.endianness$set(fmt, JXL_NATIVE_ENDIAN());
+			JxlPixelFormat.align$set(fmt, 0);
+		}
+		
+		private JXLImageInfo imageInfo() throws JXLException {
+			var info = session.info;
+			var anim = JxlBasicInfo.animation$slice(info);
+			return new JXLImageInfo(
+					JxlBasicInfo.xsize$get(info), JxlBasicInfo.ysize$get(info),
+					JxlBasicInfo.bits_per_sample$get(info), JxlBasicInfo.exponent_bits_per_sample$get(info),
+					JxlBasicInfo.num_color_channels$get(info),
+					JxlBasicInfo.alpha_bits$get(info), JxlBasicInfo.alpha_premultiplied$get(info) != 0,
+					JXLOrientation.fromNative(JxlBasicInfo.orientation$get(info)),
+					JxlBasicInfo.intensity_target$get(info),
+					JxlBasicInfo.uses_original_profile$get(info) != 0,
+					JxlBasicInfo.have_animation$get(info) != 0,
+					JxlAnimationHeader.tps_numerator$get(anim),
+					JxlAnimationHeader.tps_denominator$get(anim),
+					JxlAnimationHeader.num_loops$get(anim),
+					colorEncoding(),
+					extraChannelInfo
+				);
+		}
+		
+		/**
+		 * @return the color encoding of the decoded pixel data, as a structured encoding if libjxl
+		 * 		can describe it as one, or else as an ICC profile
+		 */
+		private JXLColorEncoding colorEncoding() throws JXLException {
+			int target = JXL_COLOR_PROFILE_TARGET_DATA();
+			if (JxlDecoderGetColorAsEncodedProfile(dec, target, session.colorEncoding) == JXL_DEC_SUCCESS()) {
+				return JXLCustomColorEncoding.fromNative(session.colorEncoding);
+			}
+			check(JxlDecoderGetICCProfileSize(dec, target, session.size));
+			long size = session.size.get(ValueLayout.JAVA_LONG, 0);
+			try (var tmp = Arena.openConfined()) {
+				var icc = tmp.allocate(size);
+				check(JxlDecoderGetColorAsICCProfile(dec, target, icc, size));
+				return new JXLICCColorEncoding(icc.toArray(ValueLayout.JAVA_BYTE));
+			}
+		}
+		
+		private JXLFrameInfo frameInfo() throws JXLException {
+			var hdr = session.hdr;
+			check(JxlDecoderGetFrameHeader(dec, hdr));
+			var layer = JxlFrameHeader.layer_info$slice(hdr);
+			int nl = JxlFrameHeader.name_length$get(hdr);
+			String name = null;
+			if (nl > 0) {
+				check(JxlDecoderGetFrameName(dec, session.nameBuf, nl+1));
+				name = session.nameBuf.getUtf8String(0);
+			}
+			return new JXLFrameInfo(frameIndex++, name,
+					JxlFrameHeader.duration$get(hdr), JxlFrameHeader.timecode$get(hdr),
+					JxlLayerInfo.crop_x0$get(layer), JxlLayerInfo.crop_y0$get(layer),
+					JxlLayerInfo.xsize$get(layer), JxlLayerInfo.ysize$get(layer),
+					JxlFrameHeader.is_last$get(hdr) != 0);
+		}
+		
+		/**
+		 * @return a segment of at least the given size, reusing {@code old} if it's big enough;
+		 * 		new segments are at least twice the size of the old one, so that frames of slowly
+		 * 		increasing size don't leave a trail of buffers behind in the scratch arena
+		 */
+		private MemorySegment ensure(MemorySegment old, long size) {
+			if (old != null && old.byteSize() >= size) return old;
+			return scratch.allocate(old == null ? size : Math.max(size, old.byteSize()*2));
+		}
+		
+		private void setOutputBuffers() throws IOException {
+			var size = session.size;
+			sink = listener.rowSink(frame);
+			if (sink != null) {
+				if (sinkState == null) sinkState = new RowSinkState();
+				sinkState.sink = sink;
+				sinkState.bytesPerPixel = channels*dataType.bytes;
+				check(JxlDecoderSetMultithreadedImageOutCallback(dec, session.fmt,
+						RowSinkState.INIT, RowSinkState.RUN, RowSinkState.DESTROY, sinkState.opaque));
+			} else {
+				check(JxlDecoderImageOutBufferSize(dec, session.fmt, size));
+				pixelsSize = size.get(ValueLayout.JAVA_LONG, 0);
+				pixels = ensure(pixels, pixelsSize);
+				check(JxlDecoderSetImageOutBuffer(dec, session.fmt, pixels, pixelsSize));
+			}
+			
+			extraSlices.clear();
+			if (!extraChannels || extraChannelInfo.isEmpty()) return;
+			long[] sizes = new long[extraChannelInfo.size()];
+			long total = 0;
+			for (int i = 0; i < sizes.length; i++) {
+				check(JxlDecoderExtraChannelBufferSize(dec, session.extraFmt, size, i));
+				sizes[i] = size.get(ValueLayout.JAVA_LONG, 0);
+				total += sizes[i];
+			}
+			extra = ensure(extra, total);
+			long ofs = 0;
+			for (int i = 0; i < sizes.length; i++) {
+				var slice = extra.asSlice(ofs, sizes[i]);
+				check(JxlDecoderSetExtraChannelBuffer(dec, session.extraFmt, slice, sizes[i], i));
+				extraSlices.add(slice);
+				ofs += sizes[i];
+			}
+		}
+		
+		private void startBox() throws JXLException {
+			check(JxlDecoderGetBoxType(dec, session.boxType, decompressBoxes ? 1 : 0));
+			String type = new String(session.boxType.toArray(ValueLayout.JAVA_BYTE), StandardCharsets.ISO_8859_1);
+			// no sense in making a second copy of the codestream
+			if (type.equals("jxlc") || type.equals("jxlp")) return;
+			boxType = type;
+			boxBuf = ensure(boxBuf, 64*1024);
+			boxFilled = 0;
+			check(JxlDecoderSetBoxBuffer(dec, boxBuf, boxBuf.byteSize()));
+		}
+		
+		private void growBox() throws JXLException {
+			if (boxType == null) return;
+			boxFilled = boxBuf.byteSize() - JxlDecoderReleaseBoxBuffer(dec);
+			var bigger = scratch.allocate(boxBuf.byteSize()*2);
+			MemorySegment.copy(boxBuf, 0, bigger, 0, boxFilled);
+			boxBuf = bigger;
+			var rest = boxBuf.asSlice(boxFilled);
+			check(JxlDecoderSetBoxBuffer(dec, rest, rest.byteSize()));
+		}
+		
+		private void finishBox() throws IOException {
+			if (boxType == null) return;
+			boxFilled = boxBuf.byteSize() - JxlDecoderReleaseBoxBuffer(dec);
+			var type = boxType;
+			boxType = null;
+			listener.box(type, boxBuf.asSlice(0, boxFilled));
+		}
+		
+		@Override
+		public void close() {
+			if (sinkState != null) Opaques.unregister(sinkState.opaque);
+			if (pool == null) {
+				session.destroy();
+			} else {
+				pool.release(session);
+			}
+			if (runnerAcquired) runner.release();
+		}
+	}
+	
+	private static final String NO_MORE_INFO = " (no further detail is available, try compiling libjxl with -DJXL_DEBUG_ON_ERROR)";
+	
+	private static void check(int res) throws JXLException {
+		if (res == JXL_DEC_SUCCESS()) return;
+		if (res == JXL_DEC_ERROR()) throw new JXLException("libjxl returned a generic error"+NO_MORE_INFO);
+		throw new JXLException("libjxl returned unexpected status 0x"+Integer.toHexString(res)+NO_MORE_INFO);
+	}
+	
+}
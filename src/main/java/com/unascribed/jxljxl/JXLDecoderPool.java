@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.unascribed.jxljxl;
+
+import java.lang.foreign.Arena;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of native libjxl decoders and their scratch memory. Decoders are recycled with
+ * JxlDecoderReset rather than being created and destroyed for every image, which makes up most
+ * of the cost of {@link JXLDecoder#probe(java.nio.file.Path) probing} a file.
+ * <p>
+ * Pools are thread-safe and may be shared by any number of {@link JXLDecoder}s.
+ * @see JXLDecoder#pool(JXLDecoderPool)
+ */
+public final class JXLDecoderPool implements AutoCloseable {
+
+	private final int maxIdle;
+	private final JXLMemoryManager memoryManager;
+	private final ConcurrentLinkedDeque<JXLDecodeSession> idle = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private volatile boolean closed = false;
+	
+	/**
+	 * Create a new pool that will keep at most {@code maxIdle} decoders around while they aren't
+	 * in use. Decodes beyond that many at once are still permitted, but their decoders will be
+	 * destroyed afterward instead of being pooled.
+	 */
+	public JXLDecoderPool(int maxIdle) {
+		this(maxIdle, null);
+	}
+	
+	/**
+	 * Create a new pool that will keep at most {@code maxIdle} decoders around while they aren't
+	 * in use, and whose decoders all allocate through the given memory manager. Note that idle
+	 * decoders may still hold on to some memory.
+	 * @see JXLMemoryManager
+	 */
+	public JXLDecoderPool(int maxIdle, JXLMemoryManager memoryManager) {
+		if (maxIdle < 0) throw new IllegalArgumentException("maxIdle cannot be negative");
+		this.maxIdle = maxIdle;
+		this.memoryManager = memoryManager;
+	}
+	
+	/**
+	 * Create a new pool that keeps one idle decoder around per available processor.
+	 */
+	public JXLDecoderPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	JXLDecodeSession acquire() throws JXLException {
+		if (closed) throw new IllegalStateException("This JXLDecoderPool has been closed");
+		var s = idle.pollFirst();
+		if (s != null) {
+			idleCount.decrementAndGet();
+			return s;
+		}
+		// sessions in the pool get handed between threads, so their memory can't be confined
+		return new JXLDecodeSession(Arena.openShared(), memoryManager);
+	}
+	
+	void release(JXLDecodeSession s) {
+		s.reset();
+		if (closed || idleCount.incrementAndGet() > maxIdle) {
+			idleCount.decrementAndGet();
+			s.destroy();
+			return;
+		}
+		idle.offerFirst(s);
+		if (closed) evictAll();
+	}
+	
+	/**
+	 * @return the number of decoders currently idle in this pool
+	 */
+	public int idleCount() {
+		return idleCount.get();
+	}
+	
+	private void evictAll() {
+		JXLDecodeSession s;
+		while ((s = idle.pollFirst()) != null) {
+			idleCount.decrementAndGet();
+			s.destroy();
+		}
+	}
+	
+	/**
+	 * Destroy all idle decoders. Decoders currently in use will be destroyed when their decode
+	 * finishes, and no further decodes can be started using this pool.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		evictAll();
+	}
+	
+}
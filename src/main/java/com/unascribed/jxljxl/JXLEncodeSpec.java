@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+
+/**
+ * An immutable snapshot of a {@link JXLEncoder}'s settings — basic info, color encoding, boxes
+ * and {@link JXLEncoder#frameDefaults() frame defaults} — created with {@link JXLEncoder#toSpec()}.
+ * <p>
+ * When encoding many images with the same settings, create a spec once and then use
+ * {@link #newEncoder()} for each image. The settings are validated and converted into the
+ * structs libjxl wants when the spec is created, so each encoder only has to hand them over.
+ * Specs are safe to share between threads; the encoders they create are not.
+ */
+public final class JXLEncodeSpec {
+
+	/**
+	 * The closed encoder this spec was created from. Only its settings are read.
+	 */
+	final JXLEncoder template;
+	
+	final MemorySegment info;
+	final MemorySegment colorEncoding;
+	final MemorySegment icc;
+	final List<JXLBoxBuilder> boxes;
+	
+	JXLEncodeSpec(JXLEncoder template, MemorySegment info, MemorySegment colorEncoding, MemorySegment icc, List<JXLBoxBuilder> boxes) {
+		this.template = template;
+		this.info = info;
+		this.colorEncoding = colorEncoding;
+		this.icc = icc;
+		this.boxes = boxes;
+	}
+	
+	/**
+	 * Create a new encoder with the settings and boxes of this spec. Frames started with
+	 * {@link JXLEncoder#newFrame()} begin with this spec's frame defaults.
+	 * <p>
+	 * The returned encoder can be configured further like any other. Changing any of its image
+	 * settings (size, channels, color encoding, etc) is allowed, but means that encoder no longer
+	 * benefits from the prebuilt structs.
+	 */
+	public JXLEncoder newEncoder() {
+		return new JXLEncoder(this);
+	}
+	
+	/**
+	 * Encode the given image as the only frame of a new file with this spec's settings.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 */
+	public byte[] encode(BufferedImage img) throws IOException {
+		return newEncoder().newFrame().commit(img).encode();
+	}
+	
+	/**
+	 * @return the width of images encoded with this spec
+	 */
+	public int xsize() {
+		return template.xsize;
+	}
+	
+	/**
+	 * @return the height of images encoded with this spec
+	 */
+	public int ysize() {
+		return template.ysize;
+	}
+	
+}
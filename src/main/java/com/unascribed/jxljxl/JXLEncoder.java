@@ -26,20 +26,35 @@ package com.unascribed.jxljxl;
 
 import static com.unascribed.jxljxl.panama.LibJxl.*;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.SegmentAllocator;
 import java.lang.foreign.SegmentScope;
 import java.lang.foreign.ValueLayout;
 import java.lang.foreign.ValueLayout.OfByte;
 import java.lang.foreign.ValueLayout.OfDouble;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import com.unascribed.jxljxl.JXLBoxBuilder.JXLWellKnownBoxType;
 import com.unascribed.jxljxl.JXLCustomColorEncoding.JXLGammaTransferFunction;
@@ -49,7 +64,6 @@ import com.unascribed.jxljxl.JXLCustomColorEncoding.JXLTransferFunction;
 import com.unascribed.jxljxl.JXLCustomColorEncoding.JXLWhitePoint;
 import com.unascribed.jxljxl.JXLFrameBuilder.JXLBuffering;
 import com.unascribed.jxljxl.JXLFrameBuilder.JXLFrameData;
-import com.unascribed.jxljxl.panama.FunctionAddresses;
 import com.unascribed.jxljxl.panama.JxlAnimationHeader;
 import com.unascribed.jxljxl.panama.JxlBasicInfo;
 import com.unascribed.jxljxl.panama.JxlBitDepth;
@@ -62,7 +76,7 @@ import com.unascribed.jxljxl.panama.JxlPixelFormat;
 import com.unascribed.jxljxl.panama.JxlPreviewHeader;
 import com.unascribed.jxljxl.panama.LibJxl;
 
-public class JXLEncoder {
+public class JXLEncoder implements AutoCloseable {
 	
 	// JxlEncoder {
 		private Boolean useContainer = null;
@@ -106,9 +120,92 @@ public class JXLEncoder {
 	
 	final List<JXLBoxBuilder> boxes = new ArrayList<>();
 	final List<JXLFrameBuilder> frames = new ArrayList<>();
+	// frames that are holding pixel data in their own arenas while streaming
+	final List<JXLFrameBuilder> staged = new ArrayList<>();
+	
+	private int outputChunkSize = -1;
+	private JXLEncoderPool pool = null;
+	private JXLRunner runner = null;
+	private JXLMemoryManager memoryManager = null;
+	private JXLStagingPool stagingPool = null;
+	private final List<JXLStagingPool.Buffer> borrowed = new ArrayList<>();
+	
+	private ActiveEncode stream = null;
+	private boolean expectBoxes = false;
+	private boolean boxesClosed = false;
+	
+	private JXLFrameBuilder frameDefaults = null;
+	/**
+	 * The spec this encoder was created from, if any, whose prebuilt native structs are used in
+	 * place of building our own. Changing any of the settings the spec captured drops it.
+	 */
+	private JXLEncodeSpec spec = null;
+	
+	/**
+	 * All native memory this encoder allocates for itself comes from here, so that it can be freed
+	 * as soon as the encoder is done rather than whenever the GC gets around to it. Shared rather
+	 * than confined, as encodes may be run on another thread via {@link #encodeAsync}.
+	 */
+	private Arena arena = Arena.openShared();
 	
 	private JXLEncoder() {}
 	
+	/**
+	 * Create an encoder with the settings captured by the given spec.
+	 */
+	JXLEncoder(JXLEncodeSpec spec) {
+		this.spec = spec;
+		copySettingsFrom(spec.template);
+		boxes.addAll(spec.boxes);
+	}
+	
+	/**
+	 * Copy every setting, but not boxes or frames, from the given encoder.
+	 */
+	private void copySettingsFrom(JXLEncoder t) {
+		useContainer = t.useContainer;
+		codestreamLevel = t.codestreamLevel;
+		storeJpegMetadata = t.storeJpegMetadata;
+		allowExpertOptions = t.allowExpertOptions;
+		colorEncoding = t.colorEncoding;
+		xsize = t.xsize;
+		ysize = t.ysize;
+		bitsPerSample = t.bitsPerSample;
+		exponentBitsPerSample = t.exponentBitsPerSample;
+		intensityTarget = t.intensityTarget;
+		minNits = t.minNits;
+		relativeToMaxDisplay = t.relativeToMaxDisplay;
+		linearBelow = t.linearBelow;
+		usesOriginalProfile = t.usesOriginalProfile;
+		havePreview = t.havePreview;
+		haveAnimation = t.haveAnimation;
+		orientation = t.orientation;
+		numColorChannels = t.numColorChannels;
+		numExtraChannels = t.numExtraChannels;
+		alphaBits = t.alphaBits;
+		alphaExponentBits = t.alphaExponentBits;
+		alphaPremultiplied = t.alphaPremultiplied;
+		previewXsize = t.previewXsize;
+		previewYsize = t.previewYsize;
+		tpsNumerator = t.tpsNumerator;
+		tpsDenominator = t.tpsDenominator;
+		numLoops = t.numLoops;
+		haveTimecodes = t.haveTimecodes;
+		intrinsicXsize = t.intrinsicXsize;
+		intrinsicYsize = t.intrinsicYsize;
+		outputChunkSize = t.outputChunkSize;
+		pool = t.pool;
+		runner = t.runner;
+		memoryManager = t.memoryManager;
+		stagingPool = t.stagingPool;
+		expectBoxes = t.expectBoxes;
+		boxesClosed = t.boxesClosed;
+		if (t.frameDefaults != null) {
+			frameDefaults = new JXLFrameBuilder(this);
+			frameDefaults.copySettingsFrom(t.frameDefaults);
+		}
+	}
+	
 	public static JXLEncoder create() {
 		return new JXLEncoder();
 	}
@@ -123,6 +220,7 @@ public class JXLEncoder {
 	 * By default this setting is disabled.
 	 */
 	public JXLEncoder withContainer() {
+		spec = null;
 		this.useContainer = true;
 		return this;
 	}
@@ -152,6 +250,7 @@ public class JXLEncoder {
 	 * internal encoding choices to those compatible with the level setting.
 	 */
 	public JXLEncoder codestreamLevel(int level) {
+		spec = null;
 		this.codestreamLevel = level;
 		return this;
 	}
@@ -163,6 +262,7 @@ public class JXLEncoder {
 	 * reconstruct the JPEG codestream.
 	 */
 	public JXLEncoder storeJpegMetadata(boolean store) {
+		spec = null;
 		this.storeJpegMetadata = store;
 		return this;
 	}
@@ -175,6 +275,7 @@ public class JXLEncoder {
 	 * @see JXLFrameBuilder#effort(int)
 	 */
 	public JXLEncoder allowExpertOptions() {
+		spec = null;
 		this.allowExpertOptions = true;
 		return this;
 	}
@@ -186,6 +287,7 @@ public class JXLEncoder {
 	 * @see JXLICCColorEncoding
 	 */
 	public JXLEncoder colorEncoding(JXLColorEncoding encoding) {
+		spec = null;
 		this.colorEncoding = encoding;
 		return this;
 	}
@@ -194,6 +296,7 @@ public class JXLEncoder {
 	 * Size of the image in pixels, before applying orientation.
 	 */
 	public JXLEncoder size(int xsize, int ysize) {
+		spec = null;
 		this.xsize = xsize;
 		this.ysize = ysize;
 		return this;
@@ -215,6 +318,7 @@ public class JXLEncoder {
 	 *            based on the color encoding.
 	 */
 	public JXLEncoder intensityRange(float minNits, float intensityTarget) {
+		spec = null;
 		this.minNits = minNits;
 		this.intensityTarget = intensityTarget;
 		return this;
@@ -225,6 +329,7 @@ public class JXLEncoder {
 	 * strictly below this, in terms of an absolute brightness [nits].
 	 */
 	public JXLEncoder linearBelowAbsolute(float nits) {
+		spec = null;
 		this.relativeToMaxDisplay = false;
 		this.linearBelow = nits;
 		return this;
@@ -235,17 +340,20 @@ public class JXLEncoder {
 	 * strictly below this, in terms of a ratio [0, 1] of the maximum display brightness [nits].
 	 */
 	public JXLEncoder linearBelowRelative(float displayRatio) {
+		spec = null;
 		this.relativeToMaxDisplay = true;
 		this.linearBelow = displayRatio;
 		return this;
 	}
 	
 	public JXLEncoder bitsPerSample(int bitsPerSample) {
+		spec = null;
 		this.bitsPerSample = bitsPerSample;
 		return this;
 	}
 	
 	public JXLEncoder withFloatingSamples(int exponentBits) {
+		spec = null;
 		if (exponentBits == 0) throw new IllegalArgumentException("exponentBits must not be 0");
 		this.exponentBitsPerSample = exponentBits;
 		return this;
@@ -265,6 +373,7 @@ public class JXLEncoder {
 	 * profile after decoding.
 	 */
 	public JXLEncoder usesOriginalProfile(boolean b) {
+		spec = null;
 		this.usesOriginalProfile = b;
 		return this;
 	}
@@ -274,6 +383,7 @@ public class JXLEncoder {
 	 * given size.
 	 */
 	public JXLEncoder withPreview(int xsize, int ysize) {
+		spec = null;
 		this.havePreview = true;
 		this.previewXsize = xsize;
 		this.previewYsize = ysize;
@@ -284,6 +394,7 @@ public class JXLEncoder {
 	 * Explicitly requests no preview be added.
 	 */
 	public JXLEncoder withoutPreview() {
+		spec = null;
 		this.havePreview = false;
 		return this;
 	}
@@ -343,6 +454,7 @@ public class JXLEncoder {
 	 * {@code tpsNumerator/tpsDenominator}.
 	 */
 	public JXLAnimationConfigurator withAnimation(int tpsNumerator, int tpsDenominator) {
+		spec = null;
 		this.haveAnimation = true;
 		this.tpsNumerator = tpsNumerator;
 		this.tpsDenominator = tpsDenominator;
@@ -355,6 +467,7 @@ public class JXLEncoder {
 	 */
 	// TODO is this method actually useful in any way? lol
 	public JXLAnimationConfigurator withAnimation(int unitsPerTick, TimeUnit unit) {
+		spec = null;
 		this.haveAnimation = true;
 		long n = unitsPerTick;
 		long d = unit.convert(1, TimeUnit.SECONDS);
@@ -377,6 +490,7 @@ public class JXLEncoder {
 	 * Explicitly disable animation.
 	 */
 	public JXLEncoder withoutAnimation() {
+		spec = null;
 		this.haveAnimation = false;
 		return this;
 	}
@@ -385,6 +499,7 @@ public class JXLEncoder {
 	 * Specify a rotation for this image to be applied after decoding.
 	 */
 	public JXLEncoder orientiation(JXLOrientation orientation) {
+		spec = null;
 		this.orientation = orientation;
 		return this;
 	}
@@ -403,6 +518,7 @@ public class JXLEncoder {
 	 *            colors, and so on.
 	 */
 	public JXLEncoder numChannels(int color, int extra) {
+		spec = null;
 		this.numColorChannels = color;
 		this.numExtraChannels = extra;
 		return this;
@@ -412,6 +528,7 @@ public class JXLEncoder {
 	 * Bit depth of the encoded alpha channel, or 0 if there is no alpha channel.
 	 */
 	public JXLEncoder bitsPerAlphaSample(int bitsPerSample) {
+		spec = null;
 		this.alphaBits = bitsPerSample;
 		return this;
 	}
@@ -420,6 +537,7 @@ public class JXLEncoder {
 	 * Alpha channel floating point exponent bits, or 0 if they are unsigned.
 	 */
 	public JXLEncoder withFloatingAlphaSamples(int exponentBits) {
+		spec = null;
 		if (exponentBits == 0) throw new IllegalArgumentException("exponentBits must not be 0");
 		this.alphaExponentBits = exponentBits;
 		return this;
@@ -429,6 +547,7 @@ public class JXLEncoder {
 	 * Enables premultiplied alpha. Only used if there is a main alpha channel.
 	 */
 	public JXLEncoder withPremultipliedAlpha() {
+		spec = null;
 		this.alphaPremultiplied = true;
 		return this;
 	}
@@ -437,6 +556,7 @@ public class JXLEncoder {
 	 * Disables premultiplied alpha. Only used if there is a main alpha channel.
 	 */
 	public JXLEncoder withStraightAlpha() {
+		spec = null;
 		this.alphaPremultiplied = false;
 		return this;
 	}
@@ -448,10 +568,68 @@ public class JXLEncoder {
 	 * intrinsic dimensions.
 	 */
 	public JXLEncoder intrinsicSize(int xsize, int ysize) {
+		spec = null;
 		this.intrinsicXsize = xsize;
 		this.intrinsicYsize = ysize;
 		return this;
 	}
+	
+	/**
+	 * Sets the parallel runner used to spread encoding work across threads. By default,
+	 * {@link JXLRunner#getDefault()} is used. Pass {@link JXLRunner#none()} to encode on the
+	 * calling thread only.
+	 */
+	public JXLEncoder runner(JXLRunner runner) {
+		this.runner = runner;
+		return this;
+	}
+	
+	/**
+	 * Use native encoders from the given pool rather than creating and destroying a new one for
+	 * every encode. Pass null to go back to the default of using a fresh encoder each time.
+	 */
+	public JXLEncoder pool(JXLEncoderPool pool) {
+		this.pool = pool;
+		return this;
+	}
+	
+	/**
+	 * Copy committed pixel data into buffers borrowed from the given pool, rather than allocating
+	 * new ones for every frame. The buffers are returned once the encode finishes, or as soon as
+	 * each frame is encoded when {@link #streamTo(OutputStream) streaming}. Pass null to go back
+	 * to allocating fresh buffers.
+	 */
+	public JXLEncoder stagingPool(JXLStagingPool stagingPool) {
+		this.stagingPool = stagingPool;
+		return this;
+	}
+	
+	/**
+	 * Route libjxl's native allocations through the given memory manager, to keep track of them
+	 * and optionally limit them. Pass null to go back to the default of plain malloc.
+	 * <p>
+	 * This has no effect when a {@link #pool(JXLEncoderPool) pool} is in use, as pooled encoders
+	 * were already created with the pool's own memory manager.
+	 */
+	public JXLEncoder memoryManager(JXLMemoryManager memoryManager) {
+		this.memoryManager = memoryManager;
+		return this;
+	}
+	
+	/**
+	 * Sets the size of the native buffer that encoded output is drained through on its way to the
+	 * destination passed to {@link #encodeToStream}, {@link #encodeTo(WritableByteChannel)} or
+	 * {@link #encodeTo(Consumer)}.
+	 * <p>
+	 * By default, the buffer starts at 8 KiB and doubles (up to 1 MiB) every time libjxl fills it
+	 * completely, so small images stay cheap and large ones don't need thousands of round-trips.
+	 * Setting an explicit size disables this growth. Use -1 to return to the default behavior.
+	 */
+	public JXLEncoder outputChunkSize(int bytes) {
+		if (bytes != -1 && bytes <= 0) throw new IllegalArgumentException("Output chunk size must be positive");
+		this.outputChunkSize = bytes;
+		return this;
+	}
 
 	
 	/**
@@ -504,6 +682,7 @@ public class JXLEncoder {
 	 * on the {@link JXLBoxBuilder#compressed() compressed} parameter.
 	 */
 	public JXLBoxBuilder addBox(String typeFourcc) {
+		checkOpen();
 		return new JXLBoxBuilder(this).type(typeFourcc);
 	}
 	
@@ -511,37 +690,176 @@ public class JXLEncoder {
 	 * @see #addBox(String)
 	 */
 	public JXLBoxBuilder addBox(JXLWellKnownBoxType type) {
+		checkOpen();
 		return new JXLBoxBuilder(this).type(type);
 	}
 	
+	/**
+	 * Declare that boxes will be added while {@link #streamTo(OutputStream) streaming}, even if
+	 * none have been added by the time streaming starts. Boxes committed while streaming are
+	 * written out immediately, between the frames committed before and after them.
+	 */
+	public JXLEncoder expectBoxes() {
+		this.expectBoxes = true;
+		return this;
+	}
+	
+	/**
+	 * Declare that no more boxes will be added. This is implied once all input has been
+	 * provided, but calling it while streaming allows libjxl to finish the last box early, and
+	 * then no longer use the box format for the remaining frames' codestream if nothing else
+	 * requires it.
+	 */
+	public JXLEncoder closeBoxes() {
+		checkOpen();
+		if (stream != null) {
+			if (stream.usesBoxes) JxlEncoderCloseBoxes(stream.session.enc);
+		} else {
+			boxesClosed = true;
+		}
+		return this;
+	}
+	
 
 	/**
 	 * Start defining a new image frame with no name and no duration.
 	 */
 	public JXLFrameBuilder newFrame() {
-		return new JXLFrameBuilder(this);
+		checkOpen();
+		var frame = new JXLFrameBuilder(this);
+		if (frameDefaults != null) frame.copySettingsFrom(frameDefaults);
+		return frame;
 	}
 	/**
 	 * Start defining a new image frame with the given name and no duration.
 	 */
 	public JXLFrameBuilder newFrame(String name) {
-		return new JXLFrameBuilder(this).name(name);
+		return newFrame().name(name);
 	}
 	/**
 	 * Start defining a new image frame with no name and the given duration.
 	 */
 	public JXLFrameBuilder newFrame(int duration) {
-		return new JXLFrameBuilder(this).duration(duration);
+		return newFrame().duration(duration);
 	}
 	/**
 	 * Start defining a new image frame with the given name and given duration.
 	 */
 	public JXLFrameBuilder newFrame(String name, int duration) {
-		return new JXLFrameBuilder(this).name(name).duration(duration);
+		return newFrame().name(name).duration(duration);
+	}
+	
+	/**
+	 * Returns a frame builder whose settings are used as the starting point for every frame
+	 * subsequently started with {@link #newFrame()}, such as distance, effort and blending. Pixel
+	 * data and extra channels are not carried over, and the returned builder itself cannot be
+	 * committed.
+	 */
+	public JXLFrameBuilder frameDefaults() {
+		checkOpen();
+		if (frameDefaults == null) frameDefaults = new JXLFrameBuilder(this);
+		return frameDefaults;
+	}
+	
+	/**
+	 * Capture this encoder's settings, boxes and {@link #frameDefaults() frame defaults} into an
+	 * immutable {@link JXLEncodeSpec} that can create any number of encoders with the same
+	 * settings, from any thread. The settings are validated and converted into libjxl's structs
+	 * once, here, rather than on every encode.
+	 * <p>
+	 * Box contents are copied, so the spec doesn't depend on this encoder or on memory the
+	 * boxes were committed with. This encoder is closed afterward.
+	 * 
+	 * @throws IllegalStateException if any frames have been committed or the encoder is streaming
+	 */
+	public JXLEncodeSpec toSpec() {
+		validate();
+		if (!frames.isEmpty()) throw new IllegalStateException("Cannot create a spec from an encoder with committed frames");
+		var alloc = SegmentAllocator.nativeAllocator(SegmentScope.auto());
+		var info = JxlBasicInfo.allocate(alloc);
+		fillBasicInfo(info);
+		MemorySegment cenc = null;
+		MemorySegment icc = null;
+		if (colorEncoding instanceof JXLICCColorEncoding i) {
+			icc = alloc.allocateArray(ValueLayout.JAVA_BYTE, i.data());
+		} else {
+			cenc = JxlColorEncoding.allocate(alloc);
+			fillColorEncoding(cenc);
+		}
+		var frozen = new ArrayList<JXLBoxBuilder>(boxes.size());
+		for (var box : boxes) {
+			frozen.add(box.freeze(alloc));
+		}
+		// snapshot the settings, so that later changes to this encoder can't leak into the spec
+		var template = new JXLEncoder();
+		template.copySettingsFrom(this);
+		template.close();
+		close();
+		return new JXLEncodeSpec(template, info, cenc, icc, List.copyOf(frozen));
+	}
+	
+	/**
+	 * Free all native memory held by this encoder, including the pixel data of any committed
+	 * frames, and abort the stream if one is in progress. Encoding also closes the encoder once
+	 * it's done. Closing an encoder more than once has no effect, but any other use of a closed
+	 * encoder throws an {@link IllegalStateException}.
+	 */
+	@Override
+	public void close() {
+		if (arena == null) return;
+		if (stream != null) {
+			var active = stream;
+			stream = null;
+			active.close();
+		}
+		for (var frame : List.copyOf(staged)) {
+			frame.releaseStaging();
+		}
+		for (var buf : borrowed) {
+			buf.release();
+		}
+		borrowed.clear();
+		for (var box : boxes) {
+			box.release();
+		}
+		for (var frame : frames) {
+			frame.data = null;
+			frame.extraChannelData.clear();
+		}
+		frames.clear();
+		arena.close();
+		arena = null;
+	}
+	
+	private Arena arena() {
+		checkOpen();
+		return arena;
+	}
+	
+	private void checkOpen() {
+		if (arena == null) throw new IllegalStateException("This JXLEncoder has been closed");
 	}
-
-	private static final MemorySegment jxl_runner = JxlThreadParallelRunnerCreate(MemorySegment.NULL, Runtime.getRuntime().availableProcessors()/2);
 	
+	/**
+	 * Allocate somewhere to stage pixel data for the given frame. While streaming, the memory
+	 * belongs to the frame and is released as soon as it's been encoded; otherwise, pixel data
+	 * must stick around until the encode call.
+	 */
+	MemorySegment stage(JXLFrameBuilder frame, long size) {
+		checkOpen();
+		if (stream != null && frame.staging == null && frame.borrowed.isEmpty()) {
+			staged.add(frame);
+		}
+		if (stagingPool != null) {
+			var buf = stagingPool.borrow(size);
+			(stream == null ? borrowed : frame.borrowed).add(buf);
+			return buf.segment.asSlice(0, size);
+		}
+		if (stream == null) return arena.allocate(size);
+		if (frame.staging == null) frame.staging = Arena.openShared();
+		return frame.staging.allocate(size);
+	}
+
 	private long nullableBoolint(Boolean b) {
 		return b == null ? -1 : b ? 1 : 0;
 	}
@@ -585,8 +903,316 @@ public class JXLEncoder {
 	 * @throws JXLException if an error is encountered while encoding
 	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured
 	 */
-	@SuppressWarnings("deprecation")
 	public void encodeToStream(OutputStream out) throws IOException, JXLException {
+		encode(new ChunkedOutput(streamSink(out)));
+	}
+	
+	/**
+	 * Encode a JXL file to the given channel. Encoded output is written to the channel straight
+	 * out of native memory, without being copied onto the Java heap first.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured, or if the
+	 * 		channel is in non-blocking mode
+	 */
+	public void encodeTo(WritableByteChannel out) throws IOException, JXLException {
+		encode(new ChunkedOutput(channelSink(out)));
+	}
+	
+	/**
+	 * Encode a JXL file, handing each chunk of output to the given consumer as it's produced. The
+	 * buffers are read-only views of native memory that will be reused for the next chunk, so they
+	 * are only valid for the duration of the call; consumers that need to retain the data must copy
+	 * it.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured
+	 * @see #outputChunkSize(int)
+	 */
+	public void encodeTo(Consumer<ByteBuffer> out) throws IOException, JXLException {
+		encode(new ChunkedOutput(chunk -> out.accept(chunk.asByteBuffer().asReadOnlyBuffer())));
+	}
+	
+	/**
+	 * Encode a JXL file into native memory allocated from the given arena. The returned segment
+	 * is exactly as large as the encoded file, though the allocation behind it may be up to twice
+	 * that size.
+	 * <p>
+	 * libjxl writes into a native buffer allocated from the arena that doubles in size whenever it
+	 * runs out of room, and the returned segment is a slice of that buffer, so the encoded data is
+	 * never copied once it's done. Arenas can't free individual allocations, so any smaller buffers
+	 * that were outgrown along the way stay allocated until the arena is closed; if that's a
+	 * concern for a long-lived arena, use a dedicated one per encode.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured
+	 */
+	public MemorySegment encodeToSegment(Arena arena) throws IOException, JXLException {
+		var output = new GrowingOutput(arena);
+		encode(output);
+		return output.result();
+	}
+	
+	/**
+	 * Encode a JXL file to the given path, replacing it if it already exists.
+	 * <p>
+	 * The file is memory-mapped in large windows and libjxl writes directly into the mapping, so
+	 * the encoded data is never copied through a user-space buffer. Once encoding finishes, the
+	 * file is truncated to the size of the encoded data.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured
+	 */
+	public void encodeToFile(Path path) throws IOException, JXLException {
+		try (var ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+				var output = new MappedOutput(ch)) {
+			encode(output);
+		}
+	}
+	
+	/**
+	 * Start encoding to the given stream immediately, rather than waiting for an encode call.
+	 * <p>
+	 * The basic info, color encoding and any boxes added so far are sent to libjxl right away, so
+	 * all of this encoder's settings must be final by the time this is called. From then on, each
+	 * frame is handed to libjxl as soon as it's committed and the resulting output is written out
+	 * immediately, so only one frame's pixels need to be held in memory at a time. Call
+	 * {@link #finishStream()} once the last frame has been committed.
+	 * <p>
+	 * While streaming, errors encountered while committing a frame are thrown as
+	 * {@link UncheckedIOException}s and abort the stream.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured
+	 */
+	public JXLEncoder streamTo(OutputStream out) throws IOException, JXLException {
+		startStream(new ChunkedOutput(streamSink(out)));
+		return this;
+	}
+	
+	/**
+	 * Start encoding to the given channel immediately, rather than waiting for an encode call.
+	 * @see #streamTo(OutputStream)
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured, or if the
+	 * 		channel is in non-blocking mode
+	 */
+	public JXLEncoder streamTo(WritableByteChannel out) throws IOException, JXLException {
+		startStream(new ChunkedOutput(channelSink(out)));
+		return this;
+	}
+	
+	/**
+	 * Finish a stream started with {@link #streamTo(OutputStream) streamTo}, closing the frames
+	 * and writing out the remainder of the file.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalStateException if this JXLEncoder is not streaming
+	 */
+	public void finishStream() throws IOException, JXLException {
+		if (stream == null) throw new IllegalStateException("This JXLEncoder is not streaming");
+		try (var active = stream) {
+			stream = null;
+			try {
+				finish(active);
+			} catch (Throwable t) {
+				active.checkBudget(t);
+				throw t;
+			}
+		} finally {
+			close();
+		}
+	}
+	
+	private void startStream(NativeOutput output) throws IOException, JXLException {
+		validate();
+		var active = begin(output);
+		try {
+			for (var frame : frames) {
+				addFrame(active, frame);
+			}
+			frames.clear();
+			drain(active);
+		} catch (Throwable t) {
+			active.close();
+			active.checkBudget(t);
+			throw t;
+		}
+		stream = active;
+	}
+	
+	/**
+	 * Called by a frame builder when it's committed. Normally this just remembers the frame for
+	 * later, but when streaming, the frame is encoded immediately.
+	 */
+	JXLEncoder frameCommitted(JXLFrameBuilder frame) {
+		checkOpen();
+		if (frame == frameDefaults) {
+			frame.releaseStaging();
+			throw new IllegalStateException("Frame defaults cannot be committed");
+		}
+		if (stream == null) {
+			frames.add(frame);
+			return this;
+		}
+		try {
+			addFrame(stream, frame);
+			drain(stream);
+		} catch (IOException | RuntimeException e) {
+			frame.releaseStaging();
+			throw abortStream(e);
+		}
+		// libjxl has its own copy now
+		frame.data = null;
+		frame.stripSource = null;
+		frame.frameSupplier = null;
+		frame.extraChannelData.clear();
+		frame.releaseStaging();
+		return this;
+	}
+	
+	/**
+	 * Called by a box builder when it's committed. Like frames, boxes are encoded immediately
+	 * when streaming.
+	 */
+	JXLEncoder boxCommitted(JXLBoxBuilder box) {
+		checkOpen();
+		if (stream == null) {
+			boxes.add(box);
+			return this;
+		}
+		if (!stream.usesBoxes) throw new IllegalStateException("Boxes can only be added while streaming if expectBoxes was called before streaming started");
+		try {
+			addBox(stream, box);
+			drain(stream);
+		} catch (IOException | RuntimeException e) {
+			throw abortStream(e);
+		}
+		return this;
+	}
+	
+	/**
+	 * Tear down the current stream after a failure.
+	 * @return the exception to throw
+	 */
+	private RuntimeException abortStream(Exception e) {
+		var active = stream;
+		stream = null;
+		active.close();
+		try {
+			active.checkBudget(e);
+		} catch (JXLException je) {
+			return new UncheckedIOException(je);
+		}
+		if (e instanceof IOException ioe) return new UncheckedIOException(ioe);
+		return (RuntimeException)e;
+	}
+	
+	private void addBox(ActiveEncode active, JXLBoxBuilder box) throws IOException {
+		// libjxl copies box contents when they're added, so they don't need to live any longer
+		try (var arena = Arena.openConfined()) {
+			var type = arena.allocateArray(ValueLayout.JAVA_BYTE, box.type);
+			var contents = box.load(arena);
+			check(JxlEncoderAddBox(active.session.enc, type, contents, contents.byteSize(), box.compressed ? 1 : 0));
+		} finally {
+			box.release();
+		}
+	}
+	
+	private void encode(NativeOutput output) throws IOException, JXLException {
+		validate();
+		try (var active = begin(output)) {
+			try {
+				for (var frame : frames) {
+					addFrame(active, frame);
+				}
+				finish(active);
+			} catch (Throwable t) {
+				active.checkBudget(t);
+				throw t;
+			}
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * The state of an encode in progress: a native encoder that has been configured with this
+	 * JXLEncoder's settings, and is ready to have frames added to it.
+	 */
+	private final class ActiveEncode implements AutoCloseable {
+		final SegmentAllocator alloc = arena;
+		final NativeOutput output;
+		final JXLEncodeSession session;
+		final JXLRunner runner = JXLEncoder.this.runner == null ? JXLRunner.getDefault() : JXLEncoder.this.runner;
+		boolean runnerAcquired = false;
+		boolean usesBoxes = false;
+		final long failuresAtStart;
+		private MemorySegment frameBuffer;
+		private JXLStagingPool.Buffer borrowedFrameBuffer;
+		
+		ActiveEncode(NativeOutput output) throws JXLException {
+			this.output = output;
+			// shared, like the pool's sessions, as a stream's frames can be committed from any thread
+			this.session = pool == null ? new JXLEncodeSession(Arena.openShared(), memoryManager) : pool.acquire();
+			this.failuresAtStart = session.memoryManager == null ? 0 : session.memoryManager.failedAllocations();
+		}
+		
+		/**
+		 * libjxl reports a refused allocation as a generic error, so check if the memory manager
+		 * refused anything during this encode and say so if it did.
+		 */
+		void checkBudget(Throwable cause) throws JXLException {
+			var mm = session.memoryManager;
+			if (mm != null && mm.failedAllocations() != failuresAtStart) {
+				var e = new JXLException("Native memory budget of "+mm.budget()+" bytes exceeded");
+				e.initCause(cause);
+				throw e;
+			}
+		}
+		
+		/**
+		 * @return a buffer for supplied frames to be rendered into, which is reused for every
+		 * 		frame of this encode that fits in it
+		 */
+		MemorySegment frameBuffer(long size) {
+			if (frameBuffer == null || frameBuffer.byteSize() < size) {
+				if (borrowedFrameBuffer != null) {
+					borrowedFrameBuffer.release();
+					borrowedFrameBuffer = null;
+				}
+				if (stagingPool != null) {
+					borrowedFrameBuffer = stagingPool.borrow(size);
+					frameBuffer = borrowedFrameBuffer.segment;
+				} else {
+					frameBuffer = alloc.allocate(size);
+				}
+			}
+			return frameBuffer.asSlice(0, size);
+		}
+		
+		@Override
+		public void close() {
+			if (pool == null) {
+				session.destroy();
+			} else {
+				pool.release(session);
+			}
+			if (runnerAcquired) runner.release();
+			if (borrowedFrameBuffer != null) borrowedFrameBuffer.release();
+		}
+	}
+	
+	/**
+	 * Check that this encoder's settings make sense, before anything is committed to encoding.
+	 */
+	private void validate() {
+		checkOpen();
+		if (stream != null) throw new IllegalStateException("This JXLEncoder is already streaming");
+		// a spec's settings were validated when it was created, and can't have changed since
+		if (spec != null) return;
 		if (colorEncoding == null) throw new IllegalArgumentException("colorEncoding must be set");
 		if (xsize == -1) throw new IllegalArgumentException("xsize must be set");
 		if (ysize == -1) throw new IllegalArgumentException("ysize must be set");
@@ -602,310 +1228,558 @@ public class JXLEncoder {
 			if (tpsDenominator == -1) throw new IllegalArgumentException("When haveAnimation is true, tpsDenominator must be set");
 			if (numLoops == -1) throw new IllegalArgumentException("When haveAnimation is true, numLoops must be set");
 		}
-		var alloc = SegmentAllocator.nativeAllocator(SegmentScope.auto());
-		var enc = JxlEncoderCreate(MemorySegment.NULL);
+	}
+	
+	/**
+	 * Start a new native encode using this encoder's settings, which must have been validated.
+	 */
+	@SuppressWarnings("deprecation")
+	private ActiveEncode begin(NativeOutput output) throws IOException, JXLException {
+		var active = new ActiveEncode(output);
+		var alloc = active.alloc;
+		var session = active.session;
+		var enc = session.enc;
 		try {
-			if (enc == null || enc.address() == 0) throw new JXLException("Creating encoder failed");
-			
 			applyBoolintUnlessNull(LibJxl::JxlEncoderUseContainer, enc, useContainer);
 			JxlEncoderSetCodestreamLevel(enc, codestreamLevel);
 			applyBoolintUnlessNull(LibJxl::JxlEncoderStoreJPEGMetadata, enc, storeJpegMetadata);
 			if (allowExpertOptions) JxlEncoderAllowExpertOptions(enc);
 			
-			if (!boxes.isEmpty()) {
-				JxlEncoderUseBoxes(enc);
+			if (!boxes.isEmpty() || expectBoxes) {
+				check(JxlEncoderUseBoxes(enc));
+				active.usesBoxes = true;
 				for (var box : boxes) {
-					JxlEncoderAddBox(enc, MemorySegment.ofArray(box.type), MemorySegment.ofArray(box.contents), box.contents.length, box.compressed ? 1 : 0);
+					addBox(active, box);
 				}
+				if (boxesClosed) JxlEncoderCloseBoxes(enc);
 			}
 			
-			var info = JxlBasicInfo.allocate(alloc);
-			JxlEncoderInitBasicInfo(info);
-			JxlBasicInfo.xsize$set(info, xsize);
-			JxlBasicInfo.ysize$set(info, ysize);
-			JxlBasicInfo.bits_per_sample$set(info, bitsPerSample);
-			JxlBasicInfo.exponent_bits_per_sample$set(info, exponentBitsPerSample);
-			applyUnlessNull(JxlBasicInfo::intensity_target$set, info, intensityTarget);
-			applyUnlessNull(JxlBasicInfo::min_nits$set, info, minNits);
-			applyBoolintUnlessNull(JxlBasicInfo::relative_to_max_display$set, info, relativeToMaxDisplay);
-			applyUnlessNull(JxlBasicInfo::linear_below$set, info, linearBelow);
-			applyBoolintUnlessNull(JxlBasicInfo::uses_original_profile$set, info, usesOriginalProfile);
-			applyBoolintUnlessNull(JxlBasicInfo::have_preview$set, info, havePreview);
-			if (havePreview == Boolean.TRUE) {
-				var hdr = JxlBasicInfo.preview$slice(info);
-				JxlPreviewHeader.xsize$set(hdr, previewXsize);
-				JxlPreviewHeader.ysize$set(hdr, previewYsize);
+			if (spec != null) {
+				check(JxlEncoderSetBasicInfo(enc, spec.info));
+				if (spec.icc != null) {
+					JxlEncoderSetICCProfile(enc, spec.icc, spec.icc.byteSize());
+				} else {
+					check(JxlEncoderSetColorEncoding(enc, spec.colorEncoding));
+				}
+			} else {
+				var info = session.info;
+				fillBasicInfo(info);
+				check(JxlEncoderSetBasicInfo(enc, info));
+				
+				if (colorEncoding instanceof JXLICCColorEncoding icc) {
+					var data = alloc.allocate(icc.data().length);
+					data.copyFrom(MemorySegment.ofArray(icc.data()));
+					JxlEncoderSetICCProfile(enc, data, data.byteSize());
+				} else {
+					var cenc = session.colorEncoding;
+					fillColorEncoding(cenc);
+					check(JxlEncoderSetColorEncoding(enc, cenc));
+				}
 			}
-			applyBoolintUnlessNull(JxlBasicInfo::have_animation$set, info, havePreview);
-			if (haveAnimation == Boolean.TRUE) {
-				var hdr = JxlBasicInfo.animation$slice(info);
-				JxlAnimationHeader.tps_numerator$set(hdr, tpsNumerator);
-				JxlAnimationHeader.tps_denominator$set(hdr, tpsDenominator);
-				JxlAnimationHeader.num_loops$set(hdr, numLoops);
-				applyBoolintUnlessNull(JxlAnimationHeader::have_timecodes$set, hdr, haveTimecodes);
+			active.runnerAcquired = active.runner.acquire();
+			if (active.runnerAcquired) check(JxlEncoderSetParallelRunner(enc, active.runner.function(), active.runner.opaque()));
+		} catch (Throwable t) {
+			active.close();
+			active.checkBudget(t);
+			throw t;
+		}
+		return active;
+	}
+	
+	/**
+	 * Populate the given JxlBasicInfo struct from this encoder's settings.
+	 */
+	private void fillBasicInfo(MemorySegment info) {
+		JxlEncoderInitBasicInfo(info);
+		JxlBasicInfo.xsize$set(info, xsize);
+		JxlBasicInfo.ysize$set(info, ysize);
+		JxlBasicInfo.bits_per_sample$set(info, bitsPerSample);
+		JxlBasicInfo.exponent_bits_per_sample$set(info, exponentBitsPerSample);
+		applyUnlessNull(JxlBasicInfo::intensity_target$set, info, intensityTarget);
+		applyUnlessNull(JxlBasicInfo::min_nits$set, info, minNits);
+		applyBoolintUnlessNull(JxlBasicInfo::relative_to_max_display$set, info, relativeToMaxDisplay);
+		applyUnlessNull(JxlBasicInfo::linear_below$set, info, linearBelow);
+		applyBoolintUnlessNull(JxlBasicInfo::uses_original_profile$set, info, usesOriginalProfile);
+		applyBoolintUnlessNull(JxlBasicInfo::have_preview$set, info, havePreview);
+		if (havePreview == Boolean.TRUE) {
+			var hdr = JxlBasicInfo.preview$slice(info);
+			JxlPreviewHeader.xsize$set(hdr, previewXsize);
+			JxlPreviewHeader.ysize$set(hdr, previewYsize);
+		}
+		applyBoolintUnlessNull(JxlBasicInfo::have_animation$set, info, haveAnimation);
+		if (haveAnimation == Boolean.TRUE) {
+			var hdr = JxlBasicInfo.animation$slice(info);
+			JxlAnimationHeader.tps_numerator$set(hdr, tpsNumerator);
+			JxlAnimationHeader.tps_denominator$set(hdr, tpsDenominator);
+			JxlAnimationHeader.num_loops$set(hdr, numLoops);
+			applyBoolintUnlessNull(JxlAnimationHeader::have_timecodes$set, hdr, haveTimecodes);
+		}
+		JxlBasicInfo.orientation$set(info, switch (orientation) {
+			case ANTI_TRANSPOSE -> JXL_ORIENT_ANTI_TRANSPOSE();
+			case FLIP_HORIZONTAL -> JXL_ORIENT_FLIP_HORIZONTAL();
+			case FLIP_VERTICAL -> JXL_ORIENT_FLIP_VERTICAL();
+			case IDENTITY -> JXL_ORIENT_IDENTITY();
+			case ROTATE_180 -> JXL_ORIENT_ROTATE_180();
+			case ROTATE_90_CCW -> JXL_ORIENT_ROTATE_90_CCW();
+			case ROTATE_90_CW -> JXL_ORIENT_ROTATE_90_CW();
+			case TRANSPOSE -> JXL_ORIENT_TRANSPOSE();
+		});
+		JxlBasicInfo.num_color_channels$set(info, numColorChannels);
+		JxlBasicInfo.num_extra_channels$set(info, numExtraChannels);
+		applyUnlessM1(JxlBasicInfo::alpha_bits$set, info, alphaBits);
+		JxlBasicInfo.alpha_exponent_bits$set(info, alphaExponentBits);
+		applyBoolintUnlessNull(JxlBasicInfo::alpha_premultiplied$set, info, alphaPremultiplied);
+		applyUnlessM1(JxlBasicInfo::intrinsic_xsize$set, info, intrinsicXsize);
+		applyUnlessM1(JxlBasicInfo::intrinsic_ysize$set, info, intrinsicYsize);
+	}
+	
+	/**
+	 * Populate the given JxlColorEncoding struct from this encoder's color encoding, which must not
+	 * be an ICC profile.
+	 */
+	@SuppressWarnings("deprecation")
+	private void fillColorEncoding(MemorySegment cenc) {
+		cenc.fill((byte)0);
+		if (colorEncoding instanceof JXLPredefinedColorEncoding p) {
+			switch (p) {
+				case LINEAR_SRGB -> JxlColorEncodingSetToLinearSRGB(cenc, 0);
+				case LINEAR_SRGB_GRAY -> JxlColorEncodingSetToLinearSRGB(cenc, 1);
+				case SRGB -> JxlColorEncodingSetToSRGB(cenc, 0);
+				case SRGB_GRAY -> JxlColorEncodingSetToSRGB(cenc, 1);
 			}
-			JxlBasicInfo.orientation$set(info, switch (orientation) {
-				case ANTI_TRANSPOSE -> JXL_ORIENT_ANTI_TRANSPOSE();
-				case FLIP_HORIZONTAL -> JXL_ORIENT_FLIP_HORIZONTAL();
-				case FLIP_VERTICAL -> JXL_ORIENT_FLIP_VERTICAL();
-				case IDENTITY -> JXL_ORIENT_IDENTITY();
-				case ROTATE_180 -> JXL_ORIENT_ROTATE_180();
-				case ROTATE_90_CCW -> JXL_ORIENT_ROTATE_90_CCW();
-				case ROTATE_90_CW -> JXL_ORIENT_ROTATE_90_CW();
-				case TRANSPOSE -> JXL_ORIENT_TRANSPOSE();
+		} else if (colorEncoding instanceof JXLCustomColorEncoding c) {
+			JxlColorEncoding.color_space$set(cenc, switch (c.colorSpace()) {
+				case GRAY -> JXL_COLOR_SPACE_GRAY();
+				case RGB -> JXL_COLOR_SPACE_RGB();
+				case XYB -> JXL_COLOR_SPACE_XYB();
+				case UNKNOWN -> JXL_COLOR_SPACE_UNKNOWN();
 			});
-			JxlBasicInfo.num_color_channels$set(info, numColorChannels);
-			JxlBasicInfo.num_extra_channels$set(info, numExtraChannels);
-			applyUnlessM1(JxlBasicInfo::alpha_bits$set, info, alphaBits);
-			JxlBasicInfo.alpha_exponent_bits$set(info, alphaExponentBits);
-			applyBoolintUnlessNull(JxlBasicInfo::alpha_premultiplied$set, info, alphaPremultiplied);
-			applyUnlessM1(JxlBasicInfo::intrinsic_xsize$set, info, intrinsicXsize);
-			applyUnlessM1(JxlBasicInfo::intrinsic_ysize$set, info, intrinsicYsize);
-			check(JxlEncoderSetBasicInfo(enc, info));
-			
-			 if (colorEncoding instanceof JXLICCColorEncoding icc) {
-				var data = alloc.allocate(icc.data().length);
-				data.copyFrom(MemorySegment.ofArray(icc.data()));
-				JxlEncoderSetICCProfile(enc, data, data.byteSize());
+			var jwp = c.whitePoint();
+			int wp;
+			if (jwp == JXLWhitePoint.D65) {
+				wp = JXL_WHITE_POINT_D65();
+			} else if (jwp == JXLWhitePoint.E) {
+				wp = JXL_WHITE_POINT_E();
+			} else if (jwp == JXLWhitePoint.DCI) {
+				wp = JXL_WHITE_POINT_DCI();
 			} else {
-				var cenc = JxlColorEncoding.allocate(alloc);
-				if (colorEncoding instanceof JXLPredefinedColorEncoding p) {
-					switch (p) {
-						case LINEAR_SRGB -> JxlColorEncodingSetToLinearSRGB(cenc, 0);
-						case LINEAR_SRGB_GRAY -> JxlColorEncodingSetToLinearSRGB(cenc, 1);
-						case SRGB -> JxlColorEncodingSetToSRGB(cenc, 0);
-						case SRGB_GRAY -> JxlColorEncodingSetToSRGB(cenc, 1);
-					}
-				} else if (colorEncoding instanceof JXLCustomColorEncoding c) {
-					JxlColorEncoding.color_space$set(cenc, switch (c.colorSpace()) {
-						case GRAY -> JXL_COLOR_SPACE_GRAY();
-						case RGB -> JXL_COLOR_SPACE_RGB();
-						case XYB -> JXL_COLOR_SPACE_XYB();
-						case UNKNOWN -> JXL_COLOR_SPACE_UNKNOWN();
-					});
-					var jwp = c.whitePoint();
-					int wp;
-					if (jwp == JXLWhitePoint.D65) {
-						wp = JXL_WHITE_POINT_D65();
-					} else if (jwp == JXLWhitePoint.E) {
-						wp = JXL_WHITE_POINT_E();
-					} else if (jwp == JXLWhitePoint.DCI) {
-						wp = JXL_WHITE_POINT_DCI();
-					} else {
-						wp = JXL_WHITE_POINT_CUSTOM();
-					}
-					JxlColorEncoding.white_point$set(cenc, wp);
-					if (wp == JXL_WHITE_POINT_CUSTOM()) {
-						var xy = JxlColorEncoding.white_point_xy$slice(cenc);
-						xy.set(OfDouble.JAVA_DOUBLE, 0, jwp.x());
-						xy.set(OfDouble.JAVA_DOUBLE, 8, jwp.y());
-					}
-					var jpri = c.primaries();
-					int pri;
-					if (jpri == JXLPrimaries.SRGB) {
-						pri = JXL_PRIMARIES_SRGB();
-					} else if (jpri == JXLPrimaries.BT2100) {
-						pri = JXL_PRIMARIES_2100();
-					} else if (jpri == JXLPrimaries.P3) {
-						pri = JXL_PRIMARIES_P3();
-					} else {
-						pri = JXL_PRIMARIES_CUSTOM();
-					}
-					JxlColorEncoding.primaries$set(cenc, pri);
-					if (pri == JXL_PRIMARIES_CUSTOM()) {
-						var redxy = JxlColorEncoding.primaries_red_xy$slice(cenc);
-						redxy.set(ValueLayout.JAVA_DOUBLE, 0, jpri.redX());
-						redxy.set(ValueLayout.JAVA_DOUBLE, 8, jpri.redY());
-						var greenxy = JxlColorEncoding.primaries_green_xy$slice(cenc);
-						greenxy.set(ValueLayout.JAVA_DOUBLE, 0, jpri.greenX());
-						greenxy.set(ValueLayout.JAVA_DOUBLE, 8, jpri.greenY());
-						var bluexy = JxlColorEncoding.primaries_blue_xy$slice(cenc);
-						bluexy.set(ValueLayout.JAVA_DOUBLE, 0, jpri.blueX());
-						bluexy.set(ValueLayout.JAVA_DOUBLE, 8, jpri.blueY());
-					}
-					if (c.transferFunction() instanceof JXLPredefinedTransferFunction f) {
-						JxlColorEncoding.transfer_function$set(cenc, switch (f) {
-							case SMPTE_709 -> JXL_TRANSFER_FUNCTION_709();
-							case LINEAR -> JXL_TRANSFER_FUNCTION_LINEAR();
-							case SRGB -> JXL_TRANSFER_FUNCTION_SRGB();
-							case PQ -> JXL_TRANSFER_FUNCTION_PQ();
-							case DCI -> JXL_TRANSFER_FUNCTION_DCI();
-							case HLG -> JXL_TRANSFER_FUNCTION_HLG();
-						});
-					} else if (c.transferFunction() == JXLTransferFunction.UNKNOWN) {
-						JxlColorEncoding.transfer_function$set(cenc, JXL_TRANSFER_FUNCTION_UNKNOWN());
-					} else if (c.transferFunction() instanceof JXLGammaTransferFunction g) {
-						JxlColorEncoding.transfer_function$set(cenc, JXL_TRANSFER_FUNCTION_GAMMA());
-						JxlColorEncoding.gamma$set(cenc, g.gamma());
-					}
-					JxlColorEncoding.rendering_intent$set(cenc, switch (c.intent()) {
-						case ABSOLUTE -> JXL_RENDERING_INTENT_ABSOLUTE();
-						case PERCEPTUAL -> JXL_RENDERING_INTENT_PERCEPTUAL();
-						case RELATIVE -> JXL_RENDERING_INTENT_RELATIVE();
-						case SATURATION -> JXL_RENDERING_INTENT_SATURATION();
-					});
-				}
-				check(JxlEncoderSetColorEncoding(enc, cenc));
+				wp = JXL_WHITE_POINT_CUSTOM();
 			}
-			check(JxlEncoderSetParallelRunner(enc, FunctionAddresses.JxlThreadParallelRunner$ADDR, jxl_runner));
-
-			var fmt = JxlPixelFormat.allocate(alloc);
-			var hdr = JxlFrameHeader.allocate(alloc);
-			var bitDepth = JxlBitDepth.allocate(alloc);
-			var nameBuf = alloc.allocate(1072); // maximum as imposed by libjxl
-			var extraChannelInfo = JxlExtraChannelInfo.allocate(alloc);
-			var standaloneBlendInfo = JxlBlendInfo.allocate(alloc);
-			for (var frame : frames) {
-				var set = JxlEncoderFrameSettingsCreate(enc, MemorySegment.NULL);
-				var layerInfo = JxlFrameHeader.layer_info$slice(hdr);
-				var blendInfo = JxlLayerInfo.blend_info$slice(layerInfo);
-				JxlEncoderInitFrameHeader(hdr);
-				JxlEncoderInitBlendInfo(blendInfo);
-				
-				JxlFrameHeader.duration$set(hdr, frame.duration);
-				JxlFrameHeader.timecode$set(hdr, frame.timecode);
-				
-				JxlLayerInfo.have_crop$set(layerInfo, frame.haveCrop ? 1 : 0);
-				JxlLayerInfo.crop_x0$set(layerInfo, frame.cropX);
-				JxlLayerInfo.crop_y0$set(layerInfo, frame.cropY);
-				JxlLayerInfo.xsize$set(layerInfo, frame.haveCrop ? frame.xsize : xsize);
-				JxlLayerInfo.ysize$set(layerInfo, frame.haveCrop ? frame.ysize : ysize);
-				JxlLayerInfo.save_as_reference$set(layerInfo, frame.saveAsReference);
-				
-				JxlBlendInfo.blendmode$set(blendInfo, switch (frame.blendMode) {
-					case REPLACE -> JXL_BLEND_REPLACE();
-					case ADD -> JXL_BLEND_ADD();
-					case BLEND -> JXL_BLEND_BLEND();
-					case MULADD -> JXL_BLEND_MULADD();
-					case MUL -> JXL_BLEND_MUL();
-				});
-				JxlBlendInfo.source$set(blendInfo, frame.source);
-				JxlBlendInfo.alpha$set(blendInfo, frame.alpha);
-				JxlBlendInfo.clamp$set(blendInfo, frame.clamp ? 1 : 0);
-				
-				check(JxlEncoderSetFrameHeader(set, hdr));
-				if (frame.name != null) {
-					var strseg = MemorySegment.ofArray(frame.name.getBytes(StandardCharsets.UTF_8));
-					nameBuf.copyFrom(strseg);
-					nameBuf.set(OfByte.JAVA_BYTE, strseg.byteSize(), (byte)0);
-					check(JxlEncoderSetFrameName(set, nameBuf));
-				}
-				JxlBitDepth.type$set(bitDepth, switch (frame.bitDepthType) {
-					case FROM_PIXEL_FORMAT -> JXL_BIT_DEPTH_FROM_PIXEL_FORMAT();
-					case FROM_CODESTREAM -> JXL_BIT_DEPTH_FROM_CODESTREAM();
+			JxlColorEncoding.white_point$set(cenc, wp);
+			if (wp == JXL_WHITE_POINT_CUSTOM()) {
+				var xy = JxlColorEncoding.white_point_xy$slice(cenc);
+				xy.set(OfDouble.JAVA_DOUBLE, 0, jwp.x());
+				xy.set(OfDouble.JAVA_DOUBLE, 8, jwp.y());
+			}
+			var jpri = c.primaries();
+			int pri;
+			if (jpri == JXLPrimaries.SRGB) {
+				pri = JXL_PRIMARIES_SRGB();
+			} else if (jpri == JXLPrimaries.BT2100) {
+				pri = JXL_PRIMARIES_2100();
+			} else if (jpri == JXLPrimaries.P3) {
+				pri = JXL_PRIMARIES_P3();
+			} else {
+				pri = JXL_PRIMARIES_CUSTOM();
+			}
+			JxlColorEncoding.primaries$set(cenc, pri);
+			if (pri == JXL_PRIMARIES_CUSTOM()) {
+				var redxy = JxlColorEncoding.primaries_red_xy$slice(cenc);
+				redxy.set(ValueLayout.JAVA_DOUBLE, 0, jpri.redX());
+				redxy.set(ValueLayout.JAVA_DOUBLE, 8, jpri.redY());
+				var greenxy = JxlColorEncoding.primaries_green_xy$slice(cenc);
+				greenxy.set(ValueLayout.JAVA_DOUBLE, 0, jpri.greenX());
+				greenxy.set(ValueLayout.JAVA_DOUBLE, 8, jpri.greenY());
+				var bluexy = JxlColorEncoding.primaries_blue_xy$slice(cenc);
+				bluexy.set(ValueLayout.JAVA_DOUBLE, 0, jpri.blueX());
+				bluexy.set(ValueLayout.JAVA_DOUBLE, 8, jpri.blueY());
+			}
+			if (c.transferFunction() instanceof JXLPredefinedTransferFunction f) {
+				JxlColorEncoding.transfer_function$set(cenc, switch (f) {
+					case SMPTE_709 -> JXL_TRANSFER_FUNCTION_709();
+					case LINEAR -> JXL_TRANSFER_FUNCTION_LINEAR();
+					case SRGB -> JXL_TRANSFER_FUNCTION_SRGB();
+					case PQ -> JXL_TRANSFER_FUNCTION_PQ();
+					case DCI -> JXL_TRANSFER_FUNCTION_DCI();
+					case HLG -> JXL_TRANSFER_FUNCTION_HLG();
 				});
-				check(JxlEncoderSetFrameBitDepth(set, bitDepth));
+			} else if (c.transferFunction() == JXLTransferFunction.UNKNOWN) {
+				JxlColorEncoding.transfer_function$set(cenc, JXL_TRANSFER_FUNCTION_UNKNOWN());
+			} else if (c.transferFunction() instanceof JXLGammaTransferFunction g) {
+				JxlColorEncoding.transfer_function$set(cenc, JXL_TRANSFER_FUNCTION_GAMMA());
+				JxlColorEncoding.gamma$set(cenc, g.gamma());
+			}
+			JxlColorEncoding.rendering_intent$set(cenc, switch (c.intent()) {
+				case ABSOLUTE -> JXL_RENDERING_INTENT_ABSOLUTE();
+				case PERCEPTUAL -> JXL_RENDERING_INTENT_PERCEPTUAL();
+				case RELATIVE -> JXL_RENDERING_INTENT_RELATIVE();
+				case SATURATION -> JXL_RENDERING_INTENT_SATURATION();
+			});
+		}
+	}
+	
+	@SuppressWarnings("deprecation")
+	private void addFrame(ActiveEncode active, JXLFrameBuilder frame) throws IOException, JXLException {
+		var alloc = active.alloc;
+		var session = active.session;
+		var enc = session.enc;
+		var fmt = session.fmt;
+		var hdr = session.hdr;
+		var bitDepth = session.bitDepth;
+		var nameBuf = session.nameBuf;
+		var extraChannelInfo = session.extraChannelInfo;
+		var standaloneBlendInfo = session.standaloneBlendInfo;
+		var set = JxlEncoderFrameSettingsCreate(enc, MemorySegment.NULL);
+		var layerInfo = JxlFrameHeader.layer_info$slice(hdr);
+		var blendInfo = JxlLayerInfo.blend_info$slice(layerInfo);
+		JxlEncoderInitFrameHeader(hdr);
+		JxlEncoderInitBlendInfo(blendInfo);
+		
+		JxlFrameHeader.duration$set(hdr, frame.duration);
+		JxlFrameHeader.timecode$set(hdr, frame.timecode);
+		
+		JxlLayerInfo.have_crop$set(layerInfo, frame.haveCrop ? 1 : 0);
+		JxlLayerInfo.crop_x0$set(layerInfo, frame.cropX);
+		JxlLayerInfo.crop_y0$set(layerInfo, frame.cropY);
+		JxlLayerInfo.xsize$set(layerInfo, frame.haveCrop ? frame.xsize : xsize);
+		JxlLayerInfo.ysize$set(layerInfo, frame.haveCrop ? frame.ysize : ysize);
+		JxlLayerInfo.save_as_reference$set(layerInfo, frame.saveAsReference);
+		
+		JxlBlendInfo.blendmode$set(blendInfo, switch (frame.blendMode) {
+			case REPLACE -> JXL_BLEND_REPLACE();
+			case ADD -> JXL_BLEND_ADD();
+			case BLEND -> JXL_BLEND_BLEND();
+			case MULADD -> JXL_BLEND_MULADD();
+			case MUL -> JXL_BLEND_MUL();
+		});
+		JxlBlendInfo.source$set(blendInfo, frame.source);
+		JxlBlendInfo.alpha$set(blendInfo, frame.alpha);
+		JxlBlendInfo.clamp$set(blendInfo, frame.clamp ? 1 : 0);
+		
+		check(JxlEncoderSetFrameHeader(set, hdr));
+		if (frame.name != null) {
+			var strseg = MemorySegment.ofArray(frame.name.getBytes(StandardCharsets.UTF_8));
+			nameBuf.copyFrom(strseg);
+			nameBuf.set(OfByte.JAVA_BYTE, strseg.byteSize(), (byte)0);
+			check(JxlEncoderSetFrameName(set, nameBuf));
+		}
+		JxlBitDepth.type$set(bitDepth, switch (frame.bitDepthType) {
+			case FROM_PIXEL_FORMAT -> JXL_BIT_DEPTH_FROM_PIXEL_FORMAT();
+			case FROM_CODESTREAM -> JXL_BIT_DEPTH_FROM_CODESTREAM();
+		});
+		check(JxlEncoderSetFrameBitDepth(set, bitDepth));
 
-				if (frame.distance <= 0) {
-					check(JxlEncoderSetFrameLossless(set, 1));
-				} else {
-					check(JxlEncoderSetFrameDistance(set, frame.distance));
-				}
-				
-				// JxlEncoderFrameSettingsSetOption
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_EFFORT(), frame.effort));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_DECODING_SPEED(), frame.decodingSpeed));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_RESAMPLING(), frame.resampling));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_EXTRA_CHANNEL_RESAMPLING(), frame.extraChannelResampling));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_ALREADY_DOWNSAMPLED(), frame.alreadyDownsampled ? 1 : 0));
-				check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_PHOTON_NOISE(), frame.photonNoise));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_DOTS(), nullableBoolint(frame.dots)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PATCHES(), nullableBoolint(frame.patches)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_EPF(), frame.epf.ordinal()-1));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GABORISH(), nullableBoolint(frame.gaborish)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR(), frame.modular));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_KEEP_INVISIBLE(), nullableBoolint(frame.keepInvisible)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GROUP_ORDER(), frame.groupOrder));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GROUP_ORDER_CENTER_X(), frame.groupOrderCenterX));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GROUP_ORDER_CENTER_Y(), frame.groupOrderCenterY));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_RESPONSIVE(), nullableBoolint(frame.responsive)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PROGRESSIVE_AC(), nullableBoolint(frame.progressiveAc)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_QPROGRESSIVE_AC(), nullableBoolint(frame.qprogressiveAc)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PROGRESSIVE_DC(), frame.progressiveDc.ordinal()-1));
-				check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_CHANNEL_COLORS_GLOBAL_PERCENT(), frame.channelColorsGlobalPercent));
-				check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_CHANNEL_COLORS_GROUP_PERCENT(), frame.channelColorsGroupPercent));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PALETTE_COLORS(), frame.paletteColors));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_LOSSY_PALETTE(), nullableBoolint(frame.lossyPalette)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_COLOR_TRANSFORM(), frame.colorTransform.ordinal()-1));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_COLOR_SPACE(), frame.modularColorSpace));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_GROUP_SIZE(), frame.modularGroupSize.ordinal()-1));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_PREDICTOR(), frame.modularPredictor.ordinal()-1));
-				check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_MODULAR_MA_TREE_LEARNING_PERCENT(), frame.modularMaTreeLearningPercent));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_NB_PREV_CHANNELS(), frame.modularNbPrevChannels));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_JPEG_RECON_CFL(), nullableBoolint(frame.jpegReconCfl)));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_INDEX_BOX(), frame.indexBox ? 1 : 0));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_BROTLI_EFFORT(), frame.brotliEffort));
-				check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_JPEG_COMPRESS_BOXES(), nullableBoolint(frame.jpegCompressBoxes)));
-				// don't check, this is a new option and may be unavailable
-				if (frame.buffering != JXLBuffering.AUTO)
-					JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_BUFFERING(), frame.buffering.ordinal()-1);
-				
-				int i = 0;
-				for (var ex : frame.extraChannels) {
-					JxlEncoderInitExtraChannelInfo(ex.type.toNative(), extraChannelInfo);
-					var nameUtf = ex.name == null ? null : alloc.allocateUtf8String(ex.name);
-					JxlExtraChannelInfo.bits_per_sample$set(extraChannelInfo, ex.bitsPerSample);
-					JxlExtraChannelInfo.exponent_bits_per_sample$set(extraChannelInfo, ex.exponentBitsPerSample);
-					if (ex.dimShift != -1)
-						JxlExtraChannelInfo.dim_shift$set(extraChannelInfo, ex.dimShift);
-					JxlExtraChannelInfo.alpha_premultiplied$set(extraChannelInfo, ex.alphaPremultiplied ? 1 : 0);
-					if (ex.spotColor != null)
-						JxlExtraChannelInfo.spot_color$slice(extraChannelInfo).copyFrom(MemorySegment.ofArray(ex.spotColor));
-					if (ex.cfaChannel != -1)
-						JxlExtraChannelInfo.cfa_channel$set(extraChannelInfo, ex.cfaChannel);
-					// is this needed? this api is so weird
-					JxlExtraChannelInfo.name_length$set(extraChannelInfo, nameUtf == null ? 0 : (int)nameUtf.byteSize());
-					check(JxlEncoderSetExtraChannelInfo(enc, i, extraChannelInfo));
-					
-					JxlBlendInfo.blendmode$set(standaloneBlendInfo, switch (ex.blendMode) {
-						case REPLACE -> JXL_BLEND_REPLACE();
-						case ADD -> JXL_BLEND_ADD();
-						case BLEND -> JXL_BLEND_BLEND();
-						case MULADD -> JXL_BLEND_MULADD();
-						case MUL -> JXL_BLEND_MUL();
-					});
-					JxlBlendInfo.source$set(standaloneBlendInfo, ex.source);
-					JxlBlendInfo.alpha$set(standaloneBlendInfo, ex.alpha);
-					JxlBlendInfo.clamp$set(standaloneBlendInfo, ex.clamp ? 1 : 0);
-					check(JxlEncoderSetExtraChannelBlendInfo(set, i, standaloneBlendInfo));
-					if (nameUtf != null)
-						check(JxlEncoderSetExtraChannelName(enc, i, nameUtf, nameUtf.byteSize()-1));
-					i++;
-				}
-				
-				if (frame.isJpeg) {
-					check(JxlEncoderAddJPEGFrame(set, frame.data.data(), frame.data.data().byteSize()));
-				} else {
-					loadInto(frame.data, fmt);
-					check(JxlEncoderAddImageFrame(set, fmt, frame.data.data(), frame.data.data().byteSize()));
+		if (frame.distance <= 0) {
+			check(JxlEncoderSetFrameLossless(set, 1));
+		} else {
+			check(JxlEncoderSetFrameDistance(set, frame.distance));
+		}
+		
+		// JxlEncoderFrameSettingsSetOption
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_EFFORT(), frame.effort));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_DECODING_SPEED(), frame.decodingSpeed));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_RESAMPLING(), frame.resampling));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_EXTRA_CHANNEL_RESAMPLING(), frame.extraChannelResampling));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_ALREADY_DOWNSAMPLED(), frame.alreadyDownsampled ? 1 : 0));
+		check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_PHOTON_NOISE(), frame.photonNoise));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_DOTS(), nullableBoolint(frame.dots)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PATCHES(), nullableBoolint(frame.patches)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_EPF(), frame.epf.ordinal()-1));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GABORISH(), nullableBoolint(frame.gaborish)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR(), frame.modular));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_KEEP_INVISIBLE(), nullableBoolint(frame.keepInvisible)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GROUP_ORDER(), frame.groupOrder));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GROUP_ORDER_CENTER_X(), frame.groupOrderCenterX));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_GROUP_ORDER_CENTER_Y(), frame.groupOrderCenterY));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_RESPONSIVE(), nullableBoolint(frame.responsive)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PROGRESSIVE_AC(), nullableBoolint(frame.progressiveAc)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_QPROGRESSIVE_AC(), nullableBoolint(frame.qprogressiveAc)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PROGRESSIVE_DC(), frame.progressiveDc.ordinal()-1));
+		check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_CHANNEL_COLORS_GLOBAL_PERCENT(), frame.channelColorsGlobalPercent));
+		check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_CHANNEL_COLORS_GROUP_PERCENT(), frame.channelColorsGroupPercent));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_PALETTE_COLORS(), frame.paletteColors));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_LOSSY_PALETTE(), nullableBoolint(frame.lossyPalette)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_COLOR_TRANSFORM(), frame.colorTransform.ordinal()-1));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_COLOR_SPACE(), frame.modularColorSpace));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_GROUP_SIZE(), frame.modularGroupSize.ordinal()-1));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_PREDICTOR(), frame.modularPredictor.ordinal()-1));
+		check(JxlEncoderFrameSettingsSetFloatOption(set, JXL_ENC_FRAME_SETTING_MODULAR_MA_TREE_LEARNING_PERCENT(), frame.modularMaTreeLearningPercent));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_MODULAR_NB_PREV_CHANNELS(), frame.modularNbPrevChannels));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_JPEG_RECON_CFL(), nullableBoolint(frame.jpegReconCfl)));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_INDEX_BOX(), frame.indexBox ? 1 : 0));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_BROTLI_EFFORT(), frame.brotliEffort));
+		check(JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_JPEG_COMPRESS_BOXES(), nullableBoolint(frame.jpegCompressBoxes)));
+		// don't check, this is a new option and may be unavailable
+		if (frame.buffering != JXLBuffering.AUTO)
+			JxlEncoderFrameSettingsSetOption(set, JXL_ENC_FRAME_SETTING_BUFFERING(), frame.buffering.ordinal()-1);
+		
+		int i = 0;
+		for (var ex : frame.extraChannels) {
+			JxlEncoderInitExtraChannelInfo(ex.type.toNative(), extraChannelInfo);
+			var nameUtf = ex.name == null ? null : alloc.allocateUtf8String(ex.name);
+			JxlExtraChannelInfo.bits_per_sample$set(extraChannelInfo, ex.bitsPerSample);
+			JxlExtraChannelInfo.exponent_bits_per_sample$set(extraChannelInfo, ex.exponentBitsPerSample);
+			if (ex.dimShift != -1)
+				JxlExtraChannelInfo.dim_shift$set(extraChannelInfo, ex.dimShift);
+			JxlExtraChannelInfo.alpha_premultiplied$set(extraChannelInfo, ex.alphaPremultiplied ? 1 : 0);
+			if (ex.spotColor != null)
+				JxlExtraChannelInfo.spot_color$slice(extraChannelInfo).copyFrom(MemorySegment.ofArray(ex.spotColor));
+			if (ex.cfaChannel != -1)
+				JxlExtraChannelInfo.cfa_channel$set(extraChannelInfo, ex.cfaChannel);
+			// is this needed? this api is so weird
+			JxlExtraChannelInfo.name_length$set(extraChannelInfo, nameUtf == null ? 0 : (int)nameUtf.byteSize());
+			check(JxlEncoderSetExtraChannelInfo(enc, i, extraChannelInfo));
+			
+			JxlBlendInfo.blendmode$set(standaloneBlendInfo, switch (ex.blendMode) {
+				case REPLACE -> JXL_BLEND_REPLACE();
+				case ADD -> JXL_BLEND_ADD();
+				case BLEND -> JXL_BLEND_BLEND();
+				case MULADD -> JXL_BLEND_MULADD();
+				case MUL -> JXL_BLEND_MUL();
+			});
+			JxlBlendInfo.source$set(standaloneBlendInfo, ex.source);
+			JxlBlendInfo.alpha$set(standaloneBlendInfo, ex.alpha);
+			JxlBlendInfo.clamp$set(standaloneBlendInfo, ex.clamp ? 1 : 0);
+			check(JxlEncoderSetExtraChannelBlendInfo(set, i, standaloneBlendInfo));
+			if (nameUtf != null)
+				check(JxlEncoderSetExtraChannelName(enc, i, nameUtf, nameUtf.byteSize()-1));
+			i++;
+		}
+		
+		if (frame.isJpeg) {
+			check(JxlEncoderAddJPEGFrame(set, frame.data.data(), frame.data.data().byteSize()));
+		} else if (frame.stripSource != null) {
+			loadInto(frame.data, fmt);
+			check(JxlEncoderChunkedImageFrameStart(set));
+			var d = frame.data;
+			long rowBytes = frame.rowBytes(d.numChannels(), d.dataType(), d.align());
+			int h = frame.frameHeight();
+			try (var arena = Arena.openConfined()) {
+				var strip = arena.allocate(rowBytes*Math.min(frame.stripHeight, h));
+				for (int y = 0; y < h; y += frame.stripHeight) {
+					int rows = Math.min(frame.stripHeight, h-y);
+					var dest = strip.asSlice(0, rowBytes*rows);
+					frame.stripSource.fill(y, rows, dest);
+					check(JxlEncoderChunkedImageFrameAddPart(set, 0, y, fmt, dest, dest.byteSize()));
 				}
+			}
+		} else if (frame.frameSupplier != null) {
+			loadInto(frame.data, fmt);
+			var d = frame.data;
+			var buf = active.frameBuffer(frame.rowBytes(d.numChannels(), d.dataType(), d.align())*frame.frameHeight());
+			frame.frameSupplier.fill(buf);
+			// libjxl copies the pixels, so the buffer is free for the next frame after this
+			check(JxlEncoderAddImageFrame(set, fmt, buf, buf.byteSize()));
+		} else {
+			loadInto(frame.data, fmt);
+			check(JxlEncoderAddImageFrame(set, fmt, frame.data.data(), frame.data.data().byteSize()));
+		}
 
-				i = 0;
-				for (var extra : frame.extraChannelData) {
-					loadInto(extra, fmt);
-					check(JxlEncoderSetExtraChannelBuffer(set, fmt, extra.data(), extra.data().byteSize(), i));
-					i++;
-				}
+		i = 0;
+		for (var extra : frame.extraChannelData) {
+			loadInto(extra, fmt);
+			check(JxlEncoderSetExtraChannelBuffer(set, fmt, extra.data(), extra.data().byteSize(), i));
+			i++;
+		}
+	}
+	
+	/**
+	 * Tell libjxl no more input is coming, and write out everything it has left.
+	 */
+	private void finish(ActiveEncode active) throws IOException {
+		JxlEncoderCloseInput(active.session.enc);
+		drain(active);
+		active.output.finish();
+	}
+	
+	/**
+	 * Run JxlEncoderProcessOutput until libjxl reports it has nothing more to give us, writing
+	 * directly into the windows offered by the given output.
+	 */
+	private void drain(ActiveEncode active) throws IOException {
+		var output = active.output;
+		var enc = active.session.enc;
+		var next = active.session.next;
+		var avail = active.session.avail;
+		while (true) {
+			var window = output.window();
+			next.set(ValueLayout.ADDRESS, 0, window);
+			avail.set(ValueLayout.JAVA_LONG, 0, window.byteSize());
+			int res = JxlEncoderProcessOutput(enc, next, avail);
+			if (res == JXL_ENC_ERROR()) {
+				throw new JXLException("JXL encoding failed"+NO_MORE_INFO);
 			}
-			JxlEncoderCloseInput(enc);
-			var buf = alloc.allocate(8192);
-			var avail = alloc.allocate(ValueLayout.JAVA_LONG, 8192);
-			var ptr = alloc.allocate(ValueLayout.ADDRESS, buf);
-			while (true) {
-				int res = JxlEncoderProcessOutput(enc, ptr, avail);
-				if (res == JXL_ENC_ERROR()) {
-					throw new JXLException("JXL encoding failed"+NO_MORE_INFO);
-				}
-				long len = 8192-avail.get(ValueLayout.JAVA_LONG, 0);
-				out.write(buf.asSlice(0, len).toArray(ValueLayout.JAVA_BYTE));
-				avail.set(ValueLayout.JAVA_LONG, 0, 8192);
-				ptr.set(ValueLayout.ADDRESS, 0, buf);
-				if (res == JXL_ENC_SUCCESS()) {
-					break;
-				}
+			output.advance(window.byteSize()-avail.get(ValueLayout.JAVA_LONG, 0));
+			if (res == JXL_ENC_SUCCESS()) {
+				break;
 			}
-		} finally {
-			JxlEncoderDestroy(enc);
+		}
+	}
+	
+	/**
+	 * A destination for encoded output. libjxl writes straight into the region returned by
+	 * {@link #window}, and {@link #advance} is then told how many bytes of it were used.
+	 */
+	interface NativeOutput {
+		MemorySegment window() throws IOException;
+		void advance(long written) throws IOException;
+		default void finish() throws IOException {}
+	}
+	
+	private interface ChunkSink {
+		void accept(MemorySegment chunk) throws IOException;
+	}
+	
+	private static ChunkSink streamSink(OutputStream out) {
+		return new ChunkSink() {
+			private byte[] scratch = new byte[0];
+			
+			@Override
+			public void accept(MemorySegment chunk) throws IOException {
+				int len = (int)chunk.byteSize();
+				if (scratch.length < len) scratch = new byte[len];
+				MemorySegment.copy(chunk, ValueLayout.JAVA_BYTE, 0, scratch, 0, len);
+				out.write(scratch, 0, len);
+			}
+		};
+	}
+	
+	private static ChunkSink channelSink(WritableByteChannel out) {
+		// a non-blocking channel can accept nothing at all, and we'd spin until it had room
+		if (out instanceof SelectableChannel sc && !sc.isBlocking())
+			throw new IllegalArgumentException("Output channel must be in blocking mode");
+		return chunk -> {
+			var bb = chunk.asByteBuffer();
+			while (bb.hasRemaining()) {
+				out.write(bb);
+			}
+		};
+	}
+	
+	private static final int DEFAULT_CHUNK_SIZE = 8192;
+	private static final int MAX_ADAPTIVE_CHUNK_SIZE = 1024*1024;
+	
+	/**
+	 * Drains output through a single reused native buffer, handing each filled region to a sink.
+	 */
+	private final class ChunkedOutput implements NativeOutput {
+		private final ChunkSink sink;
+		private final boolean adaptive = outputChunkSize == -1;
+		private MemorySegment buf;
+		
+		ChunkedOutput(ChunkSink sink) {
+			this.sink = sink;
+			this.buf = arena().allocate(adaptive ? DEFAULT_CHUNK_SIZE : outputChunkSize);
+		}
+		
+		@Override
+		public MemorySegment window() {
+			return buf;
+		}
+		
+		@Override
+		public void advance(long written) throws IOException {
+			if (written > 0) sink.accept(buf.asSlice(0, written));
+			if (adaptive && written == buf.byteSize() && buf.byteSize() < MAX_ADAPTIVE_CHUNK_SIZE) {
+				buf = arena().allocate(buf.byteSize()*2);
+			}
+		}
+	}
+	
+	private static final long MIN_GROWING_SIZE = 64*1024;
+	private static final long MAX_INITIAL_GROWING_SIZE = 64*1024*1024;
+	
+	/**
+	 * Accumulates all output in one native buffer, doubling it whenever libjxl runs out of room.
+	 */
+	private final class GrowingOutput implements NativeOutput {
+		private final Arena arena;
+		private MemorySegment buf;
+		private long pos = 0;
+		
+		GrowingOutput(Arena arena) {
+			this.arena = arena;
+			// a quarter byte per pixel is a decent guess for a typical lossy image
+			long guess = ((long)xsize*ysize)/4;
+			this.buf = arena.allocate(Math.max(MIN_GROWING_SIZE, Math.min(guess, MAX_INITIAL_GROWING_SIZE)));
+		}
+		
+		@Override
+		public MemorySegment window() {
+			return buf.asSlice(pos);
+		}
+		
+		@Override
+		public void advance(long written) {
+			pos += written;
+			if (pos == buf.byteSize()) {
+				var bigger = arena.allocate(buf.byteSize()*2);
+				bigger.copyFrom(buf);
+				buf = bigger;
+			}
+		}
+		
+		MemorySegment result() {
+			return buf.asSlice(0, pos);
+		}
+	}
+	
+	private static final long MIN_MAP_WINDOW_SIZE = 1024*1024;
+	private static final long MAX_MAP_WINDOW_SIZE = 64*1024*1024;
+	
+	/**
+	 * Writes output into successive memory-mapped windows of a file, each twice the size of the
+	 * last (up to 64 MiB), and unmaps each one as soon as it's full.
+	 */
+	private final class MappedOutput implements NativeOutput, AutoCloseable {
+		private final FileChannel ch;
+		private Arena arena;
+		private MemorySegment map;
+		private long mapStart = 0;
+		private long mapPos = 0;
+		private long windowSize;
+		
+		MappedOutput(FileChannel ch) {
+			this.ch = ch;
+			long guess = ((long)xsize*ysize)/4;
+			this.windowSize = Math.max(MIN_MAP_WINDOW_SIZE, Math.min(guess, MAX_MAP_WINDOW_SIZE));
+		}
+		
+		@Override
+		public MemorySegment window() throws IOException {
+			if (map == null || mapPos == map.byteSize()) {
+				long start = map == null ? 0 : mapStart+map.byteSize();
+				unmap();
+				arena = Arena.openConfined();
+				map = ch.map(FileChannel.MapMode.READ_WRITE, start, windowSize, arena.scope());
+				mapStart = start;
+				mapPos = 0;
+				windowSize = Math.min(windowSize*2, MAX_MAP_WINDOW_SIZE);
+			}
+			return map.asSlice(mapPos);
+		}
+		
+		@Override
+		public void advance(long written) {
+			mapPos += written;
+		}
+		
+		@Override
+		public void finish() throws IOException {
+			unmap();
+			ch.truncate(mapStart+mapPos);
+		}
+		
+		private void unmap() {
+			if (arena != null) {
+				arena.close();
+				arena = null;
+			}
+		}
+		
+		@Override
+		public void close() {
+			unmap();
 		}
 	}
 	
@@ -925,10 +1799,119 @@ public class JXLEncoder {
 		JxlPixelFormat.align$set(fmt, data.align());
 	}
 
+	/**
+	 * Encode a JXL file into a byte array.
+	 * @throws IOException if an IO error occurs
+	 * @throws JXLException if an error is encountered while encoding
+	 * @throws IllegalArgumentException if this JXLEncoder has been misconfigured
+	 */
 	public byte[] encode() throws IOException {
-		var baos = new ByteArrayOutputStream();
-		encodeToStream(baos);
-		return baos.toByteArray();
+		try (var scratch = Arena.openConfined()) {
+			var output = new GrowingOutput(scratch);
+			encode(output);
+			return output.result().toArray(ValueLayout.JAVA_BYTE);
+		}
+	}
+	
+	/**
+	 * Encode a JXL file into a byte array on the shared default encode executor.
+	 * <p>
+	 * This JXLEncoder must not be modified until the returned future completes.
+	 * @see #encodeAsync(Executor)
+	 * @see #newEncodeExecutor(int)
+	 */
+	public CompletableFuture<byte[]> encodeAsync() {
+		return encodeAsync(getDefaultExecutor());
+	}
+	
+	/**
+	 * Encode a JXL file into a byte array on the given executor.
+	 * <p>
+	 * The native encode pins whatever thread it runs on for its entire duration, so this should
+	 * be a platform-thread executor — calling the blocking encode methods from a virtual thread
+	 * ties up its carrier thread until libjxl returns. The executor is what bounds the number of
+	 * concurrent native encodes; {@link #newEncodeExecutor(int)} creates a suitable one.
+	 * <p>
+	 * This JXLEncoder must not be modified until the returned future completes. Failures are
+	 * reported through the future, not thrown.
+	 */
+	public CompletableFuture<byte[]> encodeAsync(Executor executor) {
+		return supplyAsync(this::encode, executor);
+	}
+	
+	/**
+	 * Encode a JXL file into native memory allocated from the given arena, on the shared default
+	 * encode executor. The arena must be accessible from other threads, such as a shared or
+	 * global arena.
+	 * @see #encodeToSegment(Arena)
+	 * @see #encodeAsync(Executor)
+	 */
+	public CompletableFuture<MemorySegment> encodeToSegmentAsync(Arena arena) {
+		return encodeToSegmentAsync(arena, getDefaultExecutor());
+	}
+	
+	/**
+	 * Encode a JXL file into native memory allocated from the given arena, on the given executor.
+	 * The arena must be accessible from the executor's threads, such as a shared or global arena.
+	 * @see #encodeToSegment(Arena)
+	 * @see #encodeAsync(Executor)
+	 */
+	public CompletableFuture<MemorySegment> encodeToSegmentAsync(Arena arena, Executor executor) {
+		return supplyAsync(() -> encodeToSegment(arena), executor);
+	}
+	
+	private interface EncodeTask<T> {
+		T run() throws IOException, JXLException;
+	}
+	
+	private <T> CompletableFuture<T> supplyAsync(EncodeTask<T> task, Executor executor) {
+		checkOpen();
+		if (stream != null) throw new IllegalStateException("Cannot encode while streaming");
+		var future = new CompletableFuture<T>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(task.run());
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	private static final Object defaultExecutorLock = new Object();
+	private static ExecutorService defaultExecutor;
+	
+	private static ExecutorService getDefaultExecutor() {
+		synchronized (defaultExecutorLock) {
+			if (defaultExecutor == null) {
+				defaultExecutor = newEncodeExecutor(Math.max(1, Runtime.getRuntime().availableProcessors()/2));
+			}
+			return defaultExecutor;
+		}
+	}
+	
+	/**
+	 * Create an executor suitable for {@link #encodeAsync(Executor)}, which runs at most
+	 * {@code maxConcurrent} encodes at once on daemon platform threads. Further encodes wait in an
+	 * unbounded queue. Idle threads are retired after 30 seconds.
+	 * <p>
+	 * Keep in mind that each encode may also use a {@link JXLRunner} with its own threads.
+	 */
+	public static ExecutorService newEncodeExecutor(int maxConcurrent) {
+		if (maxConcurrent <= 0) throw new IllegalArgumentException("Concurrency must be positive");
+		var counter = new AtomicInteger();
+		var exec = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				r -> {
+					var t = new Thread(r, "JXLJXL encode thread #"+counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		exec.allowCoreThreadTimeOut(true);
+		return exec;
 	}
 	
 }
@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.unascribed.jxljxl;
+
+import java.lang.foreign.Arena;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of native libjxl encoders and their scratch memory. Encoders are recycled with
+ * JxlEncoderReset rather than being created and destroyed for every image, which makes up a
+ * large part of the cost of encoding small images.
+ * <p>
+ * Pools are thread-safe and may be shared by any number of {@link JXLEncoder}s.
+ * @see JXLEncoder#pool(JXLEncoderPool)
+ */
+public final class JXLEncoderPool implements AutoCloseable {
+
+	private final int maxIdle;
+	private final JXLMemoryManager memoryManager;
+	private final ConcurrentLinkedDeque<JXLEncodeSession> idle = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private volatile boolean closed = false;
+	
+	/**
+	 * Create a new pool that will keep at most {@code maxIdle} encoders around while they aren't
+	 * in use. Encodes beyond that many at once are still permitted, but their encoders will be
+	 * destroyed afterward instead of being pooled.
+	 */
+	public JXLEncoderPool(int maxIdle) {
+		this(maxIdle, null);
+	}
+	
+	/**
+	 * Create a new pool that will keep at most {@code maxIdle} encoders around while they aren't
+	 * in use, and whose encoders all allocate through the given memory manager. Note that idle
+	 * encoders may still hold on to some memory.
+	 * @see JXLMemoryManager
+	 */
+	public JXLEncoderPool(int maxIdle, JXLMemoryManager memoryManager) {
+		if (maxIdle < 0) throw new IllegalArgumentException("maxIdle cannot be negative");
+		this.maxIdle = maxIdle;
+		this.memoryManager = memoryManager;
+	}
+	
+	/**
+	 * Create a new pool that keeps one idle encoder around per available processor.
+	 */
+	public JXLEncoderPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	JXLEncodeSession acquire() throws JXLException {
+		if (closed) throw new IllegalStateException("This JXLEncoderPool has been closed");
+		var s = idle.pollFirst();
+		if (s != null) {
+			idleCount.decrementAndGet();
+			return s;
+		}
+		// sessions in the pool get handed between threads, so their memory can't be confined
+		return new JXLEncodeSession(Arena.openShared(), memoryManager);
+	}
+	
+	void release(JXLEncodeSession s) {
+		s.reset();
+		if (closed || idleCount.incrementAndGet() > maxIdle) {
+			idleCount.decrementAndGet();
+			s.destroy();
+			return;
+		}
+		idle.offerFirst(s);
+		if (closed) evictAll();
+	}
+	
+	/**
+	 * @return the number of encoders currently idle in this pool
+	 */
+	public int idleCount() {
+		return idleCount.get();
+	}
+	
+	private void evictAll() {
+		JXLEncodeSession s;
+		while ((s = idle.pollFirst()) != null) {
+			idleCount.decrementAndGet();
+			s.destroy();
+		}
+	}
+	
+	/**
+	 * Destroy all idle encoders. Encoders currently in use will be destroyed when their encode
+	 * finishes, and no further encodes can be started using this pool.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		evictAll();
+	}
+	
+}
@@ -25,13 +25,11 @@
 package com.unascribed.jxljxl;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
-import java.lang.foreign.SegmentAllocator;
-import java.lang.foreign.SegmentScope;
-import java.lang.foreign.ValueLayout;
 import java.nio.Buffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -223,6 +221,15 @@ public class JXLFrameBuilder {
 	// AddImageFrame
 	JXLFrameData data;
 	
+	// ChunkedImageFrameStart
+	JXLStripSource stripSource;
+	int stripHeight;
+	
+	JXLFrameSupplier frameSupplier;
+	
+	Arena staging;
+	final List<JXLStagingPool.Buffer> borrowed = new ArrayList<>();
+	
 	// SetExtraChannelBuffer
 	final List<JXLExtraChannelBuilder> extraChannels = new ArrayList<>();
 	final List<JXLFrameData> extraChannelData = new ArrayList<>();
@@ -237,6 +244,61 @@ public class JXLFrameBuilder {
 		this.owner = owner;
 	}
 	
+	/**
+	 * Copy every setting, but not pixel data or extra channels, from the given frame.
+	 */
+	void copySettingsFrom(JXLFrameBuilder o) {
+		duration = o.duration;
+		timecode = o.timecode;
+		haveCrop = o.haveCrop;
+		cropX = o.cropX;
+		cropY = o.cropY;
+		xsize = o.xsize;
+		ysize = o.ysize;
+		saveAsReference = o.saveAsReference;
+		blendMode = o.blendMode;
+		source = o.source;
+		alpha = o.alpha;
+		clamp = o.clamp;
+		effort = o.effort;
+		decodingSpeed = o.decodingSpeed;
+		resampling = o.resampling;
+		extraChannelResampling = o.extraChannelResampling;
+		alreadyDownsampled = o.alreadyDownsampled;
+		photonNoise = o.photonNoise;
+		dots = o.dots;
+		patches = o.patches;
+		epf = o.epf;
+		gaborish = o.gaborish;
+		modular = o.modular;
+		keepInvisible = o.keepInvisible;
+		groupOrder = o.groupOrder;
+		groupOrderCenterX = o.groupOrderCenterX;
+		groupOrderCenterY = o.groupOrderCenterY;
+		responsive = o.responsive;
+		progressiveAc = o.progressiveAc;
+		qprogressiveAc = o.qprogressiveAc;
+		progressiveDc = o.progressiveDc;
+		channelColorsGlobalPercent = o.channelColorsGlobalPercent;
+		channelColorsGroupPercent = o.channelColorsGroupPercent;
+		paletteColors = o.paletteColors;
+		lossyPalette = o.lossyPalette;
+		colorTransform = o.colorTransform;
+		modularColorSpace = o.modularColorSpace;
+		modularGroupSize = o.modularGroupSize;
+		modularPredictor = o.modularPredictor;
+		modularMaTreeLearningPercent = o.modularMaTreeLearningPercent;
+		modularNbPrevChannels = o.modularNbPrevChannels;
+		jpegReconCfl = o.jpegReconCfl;
+		indexBox = o.indexBox;
+		brotliEffort = o.brotliEffort;
+		jpegCompressBoxes = o.jpegCompressBoxes;
+		buffering = o.buffering;
+		distance = o.distance;
+		bitDepthType = o.bitDepthType;
+		name = o.name;
+	}
+	
 	// simple setters
 	
 	JXLFrameBuilder name(String name) {
@@ -834,8 +896,39 @@ public class JXLFrameBuilder {
 		return commit(channels, dataType, endianness, align, MemorySegment.ofArray(data));
 	}
 	
+	/**
+	 * Commit this frame to the encoder with the samples from the given AWT Raster, without any
+	 * conversion to 8 bits. Byte, unsigned short and float samples are committed as
+	 * {@link JXLDataType#UINT8 UINT8}, {@link JXLDataType#UINT16 UINT16} and
+	 * {@link JXLDataType#FLOAT32 FLOAT32} respectively, and double samples are narrowed to
+	 * FLOAT32. Each band becomes a channel, in band order, so the raster must have between 1 and 4
+	 * bands matching the encoder's channel configuration.
+	 * <p>
+	 * Pixel data is taken from the raster starting at its minimum coordinates, offset by the
+	 * crop position if this frame has a crop.
+	 * @throws IllegalArgumentException if the raster does not use a component sample model (i.e.
+	 * 		its samples are packed together) or has an unsupported data buffer
+	 */
+	public JXLEncoder commit(Raster raster) {
+		int x = raster.getMinX()+(haveCrop ? cropX : 0);
+		int y = raster.getMinY()+(haveCrop ? cropY : 0);
+		var res = RasterStaging.commitComponents(this, raster, x, y, frameWidth(), frameHeight());
+		if (res == null) throw new IllegalArgumentException("Unsupported raster layout; only component sample models with byte, ushort, float or double data are supported");
+		return res;
+	}
+	
 	/**
 	 * Commit this frame to the encoder with the frame data from the given AWT BufferedImage.
+	 * <p>
+	 * Images of the types INT_ARGB(_PRE), INT_RGB, INT_BGR, 3BYTE_BGR, 4BYTE_ABGR(_PRE),
+	 * BYTE_GRAY and USHORT_GRAY are copied directly out of their rasters. Types without alpha
+	 * are committed with 3 channels, and gray types with 1 (at 16 bits for USHORT_GRAY), so
+	 * the encoder's channel configuration must match the image. Custom images with a component
+	 * color model, such as 16-bit PNGs, are committed as-is in the same way as
+	 * {@link #commit(Raster)}. Images of other types are converted to 8-bit ARGB first.
+	 * <p>
+	 * If this frame has a crop, only the cropped region is read from the image, with rows copied
+	 * straight out of the raster.
 	 */
 	public JXLEncoder commit(BufferedImage img) {
 		if (img.isAlphaPremultiplied() != owner.alphaPremultiplied) {
@@ -845,29 +938,21 @@ public class JXLFrameBuilder {
 				throw new IllegalArgumentException("Cannot add a premultiplied alpha image to a straight alpha JXL");
 			}
 		}
+		var res = RasterStaging.commit(this, img, haveCrop ? cropX : 0, haveCrop ? cropY : 0, frameWidth(), frameHeight());
+		if (res != null) return res;
 		if (haveCrop) {
 			int[] data = new int[xsize*ysize];
 			img.getRGB(cropX, cropY, xsize, ysize, data, 0, xsize);
 			return commit(4, 0, data);
 		}
-		return switch (img.getType()) {
-			case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE ->
-				commit(4, 0, ((DataBufferInt)img.getRaster().getDataBuffer()).getData());
-			default -> {
-				int[] data = new int[img.getWidth()*img.getHeight()];
-				img.getRGB(0, 0, img.getWidth(), img.getHeight(), data, 0, img.getWidth());
-				yield commit(4, 0, data);
-			}
-		};
+		int[] data = new int[img.getWidth()*img.getHeight()];
+		img.getRGB(0, 0, img.getWidth(), img.getHeight(), data, 0, img.getWidth());
+		return commit(4, 0, data);
 	}
 	
-	private static final ValueLayout.OfInt SWAPPED_INT = ValueLayout.JAVA_INT.withOrder(ByteOrder.BIG_ENDIAN);
-	
 	MemorySegment swapped(int[] arr) {
-		var cpy = SegmentAllocator.nativeAllocator(SegmentScope.auto()).allocate(arr.length*4);
-		for (int i = 0; i < arr.length; i++) {
-			cpy.set(SWAPPED_INT, i*4, Integer.rotateLeft(arr[i], 8));
-		}
+		var cpy = owner.stage(this, arr.length*4L);
+		Swizzle.argbToRgba(arr, cpy, true);
 		return cpy;
 	}
 
@@ -879,14 +964,77 @@ public class JXLFrameBuilder {
 	}
 	
 	/**
-	 * Commit this frame to the encoder with the given frame data.
+	 * Commit this frame to the encoder with the given frame data. If the encoder is
+	 * {@link JXLEncoder#streamTo(java.io.OutputStream) streaming}, the frame is encoded
+	 * immediately.
 	 */
 	public JXLEncoder commit(int channels, JXLDataType dataType, JXLByteOrder endianness, int align, MemorySegment data) {
 		checkDataSize(channels, dataType, align, data);
 		
 		this.data = new JXLFrameData(channels, dataType, endianness, align, ensureNative(data));
-		owner.frames.add(this);
-		return owner;
+		return owner.frameCommitted(this);
+	}
+
+	/**
+	 * Supplies the pixels of a frame when the encoder gets to it.
+	 * @see JXLFrameBuilder#commit(int, JXLDataType, JXLByteOrder, int, JXLFrameSupplier)
+	 */
+	@FunctionalInterface
+	public interface JXLFrameSupplier {
+		/**
+		 * Fill {@code dest} with this frame's pixel data, in the format that was given when the
+		 * frame was committed. The segment is reused for the next frame once this method
+		 * returns.
+		 */
+		void fill(MemorySegment dest) throws IOException;
+	}
+	
+	/**
+	 * Commit this frame to the encoder, with its pixel data to be rendered by the given supplier
+	 * only once the encoder reaches this frame. All supplied frames in an encode share one
+	 * native buffer, so animations with many frames can be encoded without holding all of their
+	 * pixels in memory at once.
+	 * <p>
+	 * The supplier is called during the encode call, or immediately if the encoder is
+	 * {@link JXLEncoder#streamTo(java.io.OutputStream) streaming}.
+	 */
+	public JXLEncoder commit(int channels, JXLDataType dataType, JXLByteOrder endianness, int align, JXLFrameSupplier supplier) {
+		this.frameSupplier = supplier;
+		this.data = new JXLFrameData(channels, dataType, endianness, align, null);
+		return owner.frameCommitted(this);
+	}
+
+	/**
+	 * Supplies the pixels of a frame one horizontal strip at a time.
+	 * @see JXLFrameBuilder#commitChunked
+	 */
+	@FunctionalInterface
+	public interface JXLStripSource {
+		/**
+		 * Fill {@code dest} with {@code rows} rows of pixel data, starting at row {@code y}, in the
+		 * format that was given to {@link JXLFrameBuilder#commitChunked commitChunked}. The
+		 * segment is reused for the next strip once this method returns.
+		 */
+		void fill(int y, int rows, MemorySegment dest) throws IOException;
+	}
+	
+	/**
+	 * Commit this frame to the encoder, with its pixel data to be pulled from the given source in
+	 * strips of {@code stripHeight} rows. Only one strip is held in memory at a time, allowing
+	 * images far larger than the heap to be encoded.
+	 * <p>
+	 * The source is not called until the frame is actually encoded, which is during the encode
+	 * call, or immediately if the encoder is {@link JXLEncoder#streamTo(java.io.OutputStream)
+	 * streaming}. Extra channel data cannot be committed separately for chunked frames; include
+	 * any alpha channel in the pixel data instead.
+	 */
+	public JXLEncoder commitChunked(int channels, JXLDataType dataType, JXLByteOrder endianness, int align, int stripHeight, JXLStripSource source) {
+		if (!extraChannelData.isEmpty()) throw new IllegalArgumentException("Chunked frames cannot have separate extra channel data");
+		if (stripHeight <= 0) throw new IllegalArgumentException("Strip height must be positive");
+		this.stripSource = source;
+		this.stripHeight = stripHeight;
+		this.data = new JXLFrameData(channels, dataType, endianness, align, null);
+		return owner.frameCommitted(this);
 	}
 
 	/**
@@ -903,35 +1051,65 @@ public class JXLFrameBuilder {
 		if (!extraChannelData.isEmpty()) throw new IllegalArgumentException("Attempting to commit a frame as JPEG when it has already had raw data added");
 		this.isJpeg = true;
 		this.data = new JXLFrameData(0, null, null, 0, ensureNative(data));
-		owner.frames.add(this);
-		return owner;
+		return owner.frameCommitted(this);
 	}
 	
 	void checkDataSize(int channels, JXLDataType dataType, int align, MemorySegment data) {
+		long expectedSize = rowBytes(channels, dataType, align)*frameHeight();
+		if (data.byteSize() < expectedSize) throw new IllegalArgumentException("Not enough data for specified frame size and data format (need "+expectedSize+" bytes, got "+data.byteSize()+" bytes). Did you forget to set a crop?");
+	}
+	
+	/**
+	 * @return the width of the pixel data expected for this frame, taking crop and resampling into
+	 * 		account
+	 */
+	int frameWidth() {
 		int w = haveCrop ? xsize : owner.xsize;
+		return alreadyDownsampled ? (int)divRoundUp(w, resampling) : w;
+	}
+	
+	/**
+	 * @return the height of the pixel data expected for this frame, taking crop and resampling into
+	 * 		account
+	 */
+	int frameHeight() {
 		int h = haveCrop ? ysize : owner.ysize;
-		if (alreadyDownsampled) {
-			w = divRoundUp(w, resampling);
-			h = divRoundUp(h, resampling);
-		}
+		return alreadyDownsampled ? (int)divRoundUp(h, resampling) : h;
+	}
+	
+	/**
+	 * @return the number of bytes between the start of each row of this frame's pixel data
+	 */
+	long rowBytes(int channels, JXLDataType dataType, int align) {
 		if (align == 0) align = 1;
-		int expectedSize = channels*(divRoundUp(w*dataType.bytes, align)*align)*h;
-		if (data.byteSize() < expectedSize) throw new IllegalArgumentException("Not enough data for specified frame size and data format (need "+expectedSize+" bytes, got "+data.byteSize()+" bytes). Did you forget to set a crop?");
+		return divRoundUp((long)frameWidth()*channels*dataType.bytes, align)*align;
 	}
 	
-	private static int divRoundUp(int p, int q) {
+	private static long divRoundUp(long p, long q) {
 		return (p+(q-1))/q;
 	}
 	
 	MemorySegment ensureNative(MemorySegment data) {
 		if (data.array().isPresent()) {
-			var cpy = SegmentAllocator.nativeAllocator(SegmentScope.auto()).allocate(data.byteSize());
+			var cpy = owner.stage(this, data.byteSize());
 			cpy.copyFrom(data);
 			return cpy;
 		}
 		return data;
 	}
 	
+	void releaseStaging() {
+		if (staging != null) {
+			staging.close();
+			staging = null;
+		}
+		for (var buf : borrowed) {
+			buf.release();
+		}
+		borrowed.clear();
+		owner.staged.remove(this);
+	}
+	
 	private void checkModularOption() {
 		if (modular == 0) throw new IllegalStateException("Attempting to set a Modular-only option in VarDCT mode");
 	}
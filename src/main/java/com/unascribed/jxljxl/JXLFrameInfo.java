@@ -0,0 +1,46 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+/**
+ * Information about a single frame of a JXL file, as read by a {@link JXLDecoder}.
+ * 
+ * @param index the index of this frame within the file, counting from 0
+ * @param name the frame's name, or {@code null} if it has none
+ * @param duration how long this frame is displayed for, in animation ticks
+ * @param timecode the SMPTE timecode of this frame, if the image has timecodes
+ * @param x the x offset of this frame within the image; always 0 when coalescing
+ * @param y the y offset of this frame within the image; always 0 when coalescing
+ * @param xsize the width of this frame's pixel data
+ * @param ysize the height of this frame's pixel data
+ * @param last whether this is the last frame of the file
+ */
+public record JXLFrameInfo(int index, String name, int duration, int timecode,
+		int x, int y, int xsize, int ysize, boolean last) {
+	
+	public long pixels() {
+		return (long)xsize*ysize;
+	}
+	
+}
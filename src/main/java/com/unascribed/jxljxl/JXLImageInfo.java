@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.util.List;
+
+import com.unascribed.jxljxl.JXLExtraChannelBuilder.JXLExtraChannelType;
+
+/**
+ * Image-wide information about a JXL file, as read from its header by a {@link JXLDecoder}.
+ * 
+ * @param xsize width of the image in pixels, before applying orientation
+ * @param ysize height of the image in pixels, before applying orientation
+ * @param bitsPerSample original image color channel bit depth
+ * @param exponentBitsPerSample original image color channel floating point exponent bits, or 0 if
+ * 		the samples are integers
+ * @param numColorChannels 1 for grayscale images, 3 for color
+ * @param alphaBits bit depth of the main alpha channel, or 0 if there is none
+ * @param alphaPremultiplied whether the main alpha channel is premultiplied
+ * @param orientation rotation to be applied to the image after decoding; decoders apply it
+ * 		themselves unless told not to
+ * @param intensityTarget upper bound on the intensity level present in the image, in nits
+ * @param usesOriginalProfile {@code false} if the image was encoded in the XYB color space, in
+ * 		which case the color encoding only describes what the image originally was
+ * @param haveAnimation whether the image is an animation
+ * @param tpsNumerator animation tick rate numerator, if animated
+ * @param tpsDenominator animation tick rate denominator, if animated
+ * @param numLoops number of times the animation plays, or 0 to loop forever
+ * @param colorEncoding color encoding of the decoded pixel data; a {@link JXLCustomColorEncoding}
+ * 		when the file describes it that way, or otherwise an {@link JXLICCColorEncoding}
+ * @param extraChannels all extra channels, including the main alpha channel
+ */
+public record JXLImageInfo(
+		int xsize, int ysize,
+		int bitsPerSample, int exponentBitsPerSample,
+		int numColorChannels,
+		int alphaBits, boolean alphaPremultiplied,
+		JXLOrientation orientation,
+		float intensityTarget,
+		boolean usesOriginalProfile,
+		boolean haveAnimation, int tpsNumerator, int tpsDenominator, int numLoops,
+		JXLColorEncoding colorEncoding,
+		List<JXLExtraChannelInfo> extraChannels) {
+
+	public record JXLExtraChannelInfo(JXLExtraChannelType type, int bitsPerSample, int exponentBitsPerSample,
+			int dimShift, String name, boolean alphaPremultiplied, float[] spotColor, int cfaChannel) {}
+	
+	public JXLImageInfo {
+		extraChannels = List.copyOf(extraChannels);
+	}
+	
+	public int numExtraChannels() {
+		return extraChannels.size();
+	}
+	
+	public boolean hasAlpha() {
+		return alphaBits != 0;
+	}
+	
+	/**
+	 * @return the index of the main alpha channel within {@link #extraChannels()}, or -1
+	 */
+	public int alphaChannel() {
+		for (int i = 0; i < extraChannels.size(); i++) {
+			if (extraChannels.get(i).type() == JXLExtraChannelType.ALPHA) return i;
+		}
+		return -1;
+	}
+	
+}
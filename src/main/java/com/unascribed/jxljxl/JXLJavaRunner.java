@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.unascribed.jxljxl;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentScope;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unascribed.jxljxl.panama.JxlParallelRunFunction;
+import com.unascribed.jxljxl.panama.JxlParallelRunInit;
+import com.unascribed.jxljxl.panama.JxlParallelRunner;
+
+/**
+ * A parallel runner implemented in Java, which fans libjxl's work out to an Executor via upcalls.
+ * The calling thread always takes part in the work, so a run completes even if the executor is
+ * too busy to pick up any of the tasks submitted to it.
+ */
+final class JXLJavaRunner extends JXLRunner {
+
+	private static final int JXL_PARALLEL_RET_RUNNER_ERROR = -1;
+	
+	private static final MemorySegment RUNNER = JxlParallelRunner.allocate(JXLJavaRunner::run, SegmentScope.global());
+	
+	private final Executor executor;
+	private final int parallelism;
+	private final MemorySegment opaque;
+	private volatile boolean closed = false;
+	
+	JXLJavaRunner(Executor executor, int parallelism) {
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.opaque = Opaques.register(this);
+	}
+	
+	private static int run(MemorySegment runnerOpaque, MemorySegment jpegxlOpaque, MemorySegment init, MemorySegment func, int startRange, int endRange) {
+		// throwing out of an upcall kills the JVM, so everything must be caught here
+		try {
+			var self = Opaques.get(runnerOpaque, JXLJavaRunner.class);
+			if (self == null) return JXL_PARALLEL_RET_RUNNER_ERROR;
+			int count = endRange-startRange;
+			int workers = Math.max(1, Math.min(self.parallelism, count));
+			if (JxlParallelRunInit.ofAddress(init, SegmentScope.global()).apply(jpegxlOpaque, workers) != 0) {
+				return JXL_PARALLEL_RET_RUNNER_ERROR;
+			}
+			if (count <= 0) return 0;
+			var fn = JxlParallelRunFunction.ofAddress(func, SegmentScope.global());
+			if (workers == 1) {
+				for (int i = startRange; i < endRange; i++) {
+					fn.apply(jpegxlOpaque, i, 0);
+				}
+				return 0;
+			}
+			var next = new AtomicInteger(startRange);
+			var remaining = new AtomicInteger(count);
+			var done = new CountDownLatch(1);
+			for (int t = 1; t < workers; t++) {
+				int threadId = t;
+				try {
+					self.executor.execute(() -> work(fn, jpegxlOpaque, threadId, next, endRange, remaining, done));
+				} catch (RuntimeException e) {
+					// rejected; the threads we do have will pick up the slack
+					break;
+				}
+			}
+			work(fn, jpegxlOpaque, 0, next, endRange, remaining, done);
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			return 0;
+		} catch (Throwable t) {
+			return JXL_PARALLEL_RET_RUNNER_ERROR;
+		}
+	}
+	
+	private static void work(JxlParallelRunFunction fn, MemorySegment jpegxlOpaque, int threadId,
+			AtomicInteger next, int endRange, AtomicInteger remaining, CountDownLatch done) {
+		int i;
+		while ((i = next.getAndIncrement()) < endRange) {
+			fn.apply(jpegxlOpaque, i, threadId);
+			if (remaining.decrementAndGet() == 0) done.countDown();
+		}
+	}
+	
+	@Override
+	public int threads() {
+		return parallelism;
+	}
+	
+	@Override
+	boolean acquire() {
+		if (closed) throw new IllegalStateException("This JXLRunner has been closed");
+		return true;
+	}
+	
+	@Override
+	void release() {}
+	
+	@Override
+	MemorySegment function() {
+		return RUNNER;
+	}
+	
+	@Override
+	MemorySegment opaque() {
+		return opaque;
+	}
+	
+	/**
+	 * Detach this runner from libjxl. The executor is not shut down, as it belongs to the caller.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Opaques.unregister(opaque);
+	}
+	
+}
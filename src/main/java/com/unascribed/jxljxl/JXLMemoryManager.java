@@ -0,0 +1,212 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.SegmentScope;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+
+import com.unascribed.jxljxl.panama.JxlMemoryManagerStruct;
+import com.unascribed.jxljxl.panama.jpegxl_alloc_func;
+import com.unascribed.jxljxl.panama.jpegxl_free_func;
+
+/**
+ * Tracks, and optionally limits, the native memory used by libjxl. By default libjxl allocates
+ * with malloc directly and its memory usage is invisible to Java; encoders given a memory manager
+ * route all of their allocations through it instead.
+ * <p>
+ * A memory manager can be given to a single encoder to measure that encoder alone, or shared
+ * between many to enforce one budget across all of them. When an allocation would take the
+ * live total over the budget, it is refused and the encode fails with a {@link JXLException},
+ * rather than the process being killed for running out of memory later on.
+ * <p>
+ * Memory managers are thread-safe.
+ * @see JXLEncoder#memoryManager(JXLMemoryManager)
+ * @see JXLEncoderPool#JXLEncoderPool(int, JXLMemoryManager)
+ */
+public final class JXLMemoryManager {
+
+	private static final StructLayout STATE = MemoryLayout.structLayout(
+			ValueLayout.JAVA_LONG.withName("live"),
+			ValueLayout.JAVA_LONG.withName("peak"),
+			ValueLayout.JAVA_LONG.withName("allocations"),
+			ValueLayout.JAVA_LONG.withName("failures"),
+			ValueLayout.JAVA_LONG.withName("budget")
+		);
+	private static final VarHandle LIVE = STATE.varHandle(MemoryLayout.PathElement.groupElement("live"));
+	private static final VarHandle PEAK = STATE.varHandle(MemoryLayout.PathElement.groupElement("peak"));
+	private static final VarHandle ALLOCATIONS = STATE.varHandle(MemoryLayout.PathElement.groupElement("allocations"));
+	private static final VarHandle FAILURES = STATE.varHandle(MemoryLayout.PathElement.groupElement("failures"));
+	private static final VarHandle BUDGET = STATE.varHandle(MemoryLayout.PathElement.groupElement("budget"));
+	
+	// each allocation is prefixed with its size, so that free knows how much to give back
+	// 16 bytes rather than 8 to keep the alignment malloc guarantees
+	private static final long HEADER = 16;
+	
+	private static final MethodHandle MALLOC;
+	private static final MethodHandle FREE;
+	
+	static {
+		var linker = Linker.nativeLinker();
+		var libc = linker.defaultLookup();
+		MALLOC = linker.downcallHandle(libc.find("malloc").orElseThrow(),
+				FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.JAVA_LONG));
+		FREE = linker.downcallHandle(libc.find("free").orElseThrow(),
+				FunctionDescriptor.ofVoid(ValueLayout.ADDRESS));
+	}
+	
+	private static final MemorySegment ALLOC = jpegxl_alloc_func.allocate(JXLMemoryManager::alloc, SegmentScope.global());
+	private static final MemorySegment FREE_FUNC = jpegxl_free_func.allocate(JXLMemoryManager::free, SegmentScope.global());
+	
+	/**
+	 * The counters live in native memory and their address is handed to libjxl as the opaque
+	 * pointer, so the upcalls can update them without having to look anything up.
+	 */
+	private final MemorySegment state;
+	
+	/**
+	 * Create a memory manager that tracks usage but doesn't limit it.
+	 */
+	public JXLMemoryManager() {
+		this(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Create a memory manager that refuses any allocation that would make libjxl's live native
+	 * memory usage exceed {@code budget} bytes.
+	 */
+	public JXLMemoryManager(long budget) {
+		if (budget <= 0) throw new IllegalArgumentException("Budget must be positive");
+		this.state = MemorySegment.allocateNative(STATE, SegmentScope.auto());
+		BUDGET.setVolatile(state, budget);
+	}
+	
+	/**
+	 * @return the number of bytes libjxl currently has allocated through this manager
+	 */
+	public long liveBytes() {
+		return (long)LIVE.getVolatile(state);
+	}
+	
+	/**
+	 * @return the highest value {@link #liveBytes()} has reached since this manager was created,
+	 * 		or since the last call to {@link #resetPeak()}
+	 */
+	public long peakBytes() {
+		return (long)PEAK.getVolatile(state);
+	}
+	
+	/**
+	 * Restart peak tracking from the current live usage.
+	 */
+	public void resetPeak() {
+		PEAK.setVolatile(state, liveBytes());
+	}
+	
+	/**
+	 * @return the total number of allocations made through this manager
+	 */
+	public long allocations() {
+		return (long)ALLOCATIONS.getVolatile(state);
+	}
+	
+	/**
+	 * @return the number of allocations that were refused for exceeding the budget
+	 */
+	public long failedAllocations() {
+		return (long)FAILURES.getVolatile(state);
+	}
+	
+	/**
+	 * @return the maximum number of bytes libjxl may have allocated through this manager at once
+	 */
+	public long budget() {
+		return (long)BUDGET.getVolatile(state);
+	}
+	
+	/**
+	 * Allocate a JxlMemoryManagerStruct that routes allocations through this manager. libjxl
+	 * copies the struct when an encoder or decoder is created, so it only needs to live that
+	 * long; the manager itself must stay reachable for as long as the encoder exists.
+	 */
+	MemorySegment struct(SegmentAllocator alloc) {
+		var mm = JxlMemoryManagerStruct.allocate(alloc);
+		JxlMemoryManagerStruct.opaque$set(mm, state);
+		JxlMemoryManagerStruct.alloc$set(mm, ALLOC);
+		JxlMemoryManagerStruct.free$set(mm, FREE_FUNC);
+		return mm;
+	}
+	
+	private static MemorySegment alloc(MemorySegment opaque, long size) {
+		// throwing out of an upcall kills the JVM, so everything must be caught here
+		try {
+			var state = MemorySegment.ofAddress(opaque.address(), STATE.byteSize(), SegmentScope.global());
+			long budget = (long)BUDGET.getVolatile(state);
+			long live;
+			do {
+				live = (long)LIVE.getVolatile(state);
+				if (size > budget-live) {
+					FAILURES.getAndAdd(state, 1L);
+					return MemorySegment.NULL;
+				}
+			} while (!LIVE.compareAndSet(state, live, live+size));
+			var ptr = (MemorySegment)MALLOC.invokeExact(size+HEADER);
+			if (ptr.address() == 0) {
+				LIVE.getAndAdd(state, -size);
+				FAILURES.getAndAdd(state, 1L);
+				return MemorySegment.NULL;
+			}
+			ALLOCATIONS.getAndAdd(state, 1L);
+			long now = live+size;
+			long peak;
+			do {
+				peak = (long)PEAK.getVolatile(state);
+			} while (now > peak && !PEAK.compareAndSet(state, peak, now));
+			MemorySegment.ofAddress(ptr.address(), HEADER, SegmentScope.global()).set(ValueLayout.JAVA_LONG, 0, size);
+			return MemorySegment.ofAddress(ptr.address()+HEADER);
+		} catch (Throwable t) {
+			return MemorySegment.NULL;
+		}
+	}
+	
+	private static void free(MemorySegment opaque, MemorySegment address) {
+		try {
+			if (address.address() == 0) return;
+			var state = MemorySegment.ofAddress(opaque.address(), STATE.byteSize(), SegmentScope.global());
+			var ptr = MemorySegment.ofAddress(address.address()-HEADER, HEADER, SegmentScope.global());
+			LIVE.getAndAdd(state, -ptr.get(ValueLayout.JAVA_LONG, 0));
+			FREE.invokeExact(ptr);
+		} catch (Throwable t) {
+			// nothing sensible can be done; leaking is better than crashing
+		}
+	}
+	
+}
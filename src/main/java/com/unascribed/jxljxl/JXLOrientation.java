@@ -24,6 +24,8 @@
 
 package com.unascribed.jxljxl;
 
+import static com.unascribed.jxljxl.panama.LibJxl.*;
+
 public enum JXLOrientation {
 	IDENTITY,
 	FLIP_HORIZONTAL,
@@ -34,4 +36,15 @@ public enum JXLOrientation {
 	ANTI_TRANSPOSE,
 	ROTATE_90_CCW,
 	;
+	
+	static JXLOrientation fromNative(int i) {
+		if (i == JXL_ORIENT_FLIP_HORIZONTAL()) return FLIP_HORIZONTAL;
+		if (i == JXL_ORIENT_ROTATE_180()) return ROTATE_180;
+		if (i == JXL_ORIENT_FLIP_VERTICAL()) return FLIP_VERTICAL;
+		if (i == JXL_ORIENT_TRANSPOSE()) return TRANSPOSE;
+		if (i == JXL_ORIENT_ROTATE_90_CW()) return ROTATE_90_CW;
+		if (i == JXL_ORIENT_ANTI_TRANSPOSE()) return ANTI_TRANSPOSE;
+		if (i == JXL_ORIENT_ROTATE_90_CCW()) return ROTATE_90_CCW;
+		return IDENTITY;
+	}
 }
@@ -0,0 +1,222 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.unascribed.jxljxl;
+
+import static com.unascribed.jxljxl.panama.LibJxl.*;
+
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.unascribed.jxljxl.panama.FunctionAddresses;
+
+/**
+ * A handle to a parallel runner, which libjxl uses to split encoding and decoding work across
+ * multiple threads.
+ * <p>
+ * A native runner serves one encode at a time. If an encode finds its runner already busy, it runs
+ * single-threaded rather than waiting, as libjxl's thread runner cannot be re-entered. Give each
+ * concurrent encode its own runner (or {@link #none()}) to control exactly how threads are
+ * distributed, or use an {@link #of(Executor, int) executor-backed runner}, which can be shared
+ * freely.
+ */
+public abstract class JXLRunner implements AutoCloseable {
+
+	private static final Object defaultLock = new Object();
+	private static JXLRunner defaultRunner;
+	
+	JXLRunner() {}
+	
+	/**
+	 * Create a new runner backed by libjxl's own thread pool, with the given number of worker
+	 * threads. The threads are stopped when this runner is closed.
+	 * @throws JXLException if libjxl fails to create the runner
+	 */
+	public static JXLRunner create(int threads) throws JXLException {
+		if (threads <= 0) throw new IllegalArgumentException("Thread count must be positive");
+		var opaque = JxlThreadParallelRunnerCreate(MemorySegment.NULL, threads);
+		if (opaque == null || opaque.address() == 0) throw new JXLException("Creating parallel runner failed");
+		return new NativeRunner(opaque, threads, false);
+	}
+	
+	/**
+	 * Create a new runner that hands libjxl's work to the given executor via upcalls, so that it
+	 * shares your application's thread budget rather than competing with threads of its own. Each
+	 * parallel section is split across at most {@code parallelism} tasks, one of which always runs
+	 * on the calling thread.
+	 * <p>
+	 * Unlike a native runner, this runner can be used by any number of encodes at once. Closing it
+	 * does not shut down the executor.
+	 */
+	public static JXLRunner of(Executor executor, int parallelism) {
+		if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive");
+		return new JXLJavaRunner(executor, parallelism);
+	}
+	
+	/**
+	 * Create a new runner that hands libjxl's work to the given ForkJoinPool, using as many tasks
+	 * as the pool has parallelism.
+	 * @see #of(Executor, int)
+	 */
+	public static JXLRunner of(ForkJoinPool pool) {
+		return of(pool, pool.getParallelism());
+	}
+	
+	/**
+	 * Returns a runner that does nothing, causing libjxl to do all of its work on the thread that
+	 * called into it. This is the best choice when running many encodes in parallel.
+	 */
+	public static JXLRunner none() {
+		return NoRunner.INSTANCE;
+	}
+	
+	/**
+	 * Returns the runner used by encoders that haven't been given one explicitly. It has one
+	 * thread for every two available processors, is created the first time it's needed, and
+	 * lives for the rest of the JVM's lifetime. Closing it has no effect.
+	 */
+	public static JXLRunner getDefault() {
+		synchronized (defaultLock) {
+			if (defaultRunner == null) {
+				int threads = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+				var opaque = JxlThreadParallelRunnerCreate(MemorySegment.NULL, threads);
+				if (opaque == null || opaque.address() == 0) {
+					defaultRunner = NoRunner.INSTANCE;
+				} else {
+					defaultRunner = new NativeRunner(opaque, threads, true);
+				}
+			}
+			return defaultRunner;
+		}
+	}
+	
+	/**
+	 * @return the number of threads this runner spreads work across, or 1 for {@link #none()}
+	 */
+	public abstract int threads();
+	
+	/**
+	 * Claim this runner for one encode or decode.
+	 * @return {@code true} if the runner should be installed via {@link #function} and
+	 * 		{@link #opaque}, and must later be given back via {@link #release}
+	 */
+	abstract boolean acquire();
+	
+	abstract void release();
+	
+	abstract MemorySegment function();
+	
+	abstract MemorySegment opaque();
+	
+	/**
+	 * Shut down this runner. It must not be closed while an encode is using it.
+	 */
+	@Override
+	public abstract void close();
+	
+	private static final class NativeRunner extends JXLRunner {
+		
+		private final MemorySegment opaque;
+		private final int threads;
+		private final boolean permanent;
+		private final AtomicBoolean inUse = new AtomicBoolean();
+		private volatile boolean closed = false;
+		
+		NativeRunner(MemorySegment opaque, int threads, boolean permanent) {
+			this.opaque = opaque;
+			this.threads = threads;
+			this.permanent = permanent;
+		}
+		
+		@Override
+		public int threads() {
+			return threads;
+		}
+		
+		@Override
+		boolean acquire() {
+			if (closed) throw new IllegalStateException("This JXLRunner has been closed");
+			return inUse.compareAndSet(false, true);
+		}
+		
+		@Override
+		void release() {
+			inUse.set(false);
+		}
+		
+		@Override
+		MemorySegment function() {
+			return FunctionAddresses.JxlThreadParallelRunner$ADDR;
+		}
+		
+		@Override
+		MemorySegment opaque() {
+			return opaque;
+		}
+		
+		@Override
+		public void close() {
+			if (permanent || closed) return;
+			if (!inUse.compareAndSet(false, true)) throw new IllegalStateException("Cannot close a JXLRunner while it is in use");
+			closed = true;
+			JxlThreadParallelRunnerDestroy(opaque);
+		}
+		
+	}
+	
+	private static final class NoRunner extends JXLRunner {
+		
+		static final NoRunner INSTANCE = new NoRunner();
+		
+		@Override
+		public int threads() {
+			return 1;
+		}
+		
+		@Override
+		boolean acquire() {
+			return false;
+		}
+		
+		@Override
+		void release() {}
+		
+		@Override
+		MemorySegment function() {
+			return MemorySegment.NULL;
+		}
+		
+		@Override
+		MemorySegment opaque() {
+			return MemorySegment.NULL;
+		}
+		
+		@Override
+		public void close() {}
+		
+	}
+	
+}
@@ -0,0 +1,248 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of native buffers that committed pixel data is copied into on its way to libjxl. Without
+ * a pool, every commit of heap data allocates (and later frees) a native buffer the size of the
+ * whole frame; with one, services encoding similarly-sized images over and over reuse the same
+ * handful of buffers instead.
+ * <p>
+ * Buffers are pooled in power-of-two size classes. The pool only holds on to idle buffers up to
+ * a total size limit, and idle buffers that haven't been used for a while are freed the next time
+ * the pool is touched. Optionally, the total size of all buffers, both idle and borrowed, can be
+ * limited as well; once a commit would need a new buffer that takes the pool over that limit, idle
+ * buffers are freed to make room, and if that isn't enough the commit fails with an
+ * {@link UncheckedIOException} wrapping a {@link JXLException}.
+ * <p>
+ * Pools are thread-safe and may be shared by any number of {@link JXLEncoder}s.
+ * @see JXLEncoder#stagingPool(JXLStagingPool)
+ */
+public final class JXLStagingPool implements AutoCloseable {
+
+	private static final int MIN_CLASS = 12; // 4 KiB
+	
+	private final long maxIdleBytes;
+	private final long maxTotalBytes;
+	private final long idleTimeoutNanos;
+	@SuppressWarnings("unchecked")
+	private final ConcurrentLinkedDeque<Buffer>[] idle = new ConcurrentLinkedDeque[64];
+	private final AtomicLong idleBytes = new AtomicLong();
+	private final AtomicLong totalBytes = new AtomicLong();
+	private volatile boolean closed = false;
+	
+	/**
+	 * A buffer borrowed from a pool.
+	 */
+	static final class Buffer {
+		final JXLStagingPool pool;
+		final Arena arena;
+		final MemorySegment segment;
+		final int sizeClass;
+		long lastUsed;
+		
+		private Buffer(JXLStagingPool pool, int sizeClass) {
+			this.pool = pool;
+			// buffers are often returned on a different thread than they were borrowed on
+			this.arena = Arena.openShared();
+			this.segment = arena.allocate(1L << sizeClass);
+			this.sizeClass = sizeClass;
+		}
+		
+		void release() {
+			pool.release(this);
+		}
+	}
+	
+	/**
+	 * Create a new pool that keeps at most {@code maxIdleBytes} of idle buffers around, and never
+	 * lets its buffers, idle or borrowed, add up to more than {@code maxTotalBytes}. Buffers that
+	 * have been idle for longer than the given timeout are freed.
+	 */
+	public JXLStagingPool(long maxIdleBytes, long maxTotalBytes, long idleTimeout, TimeUnit unit) {
+		if (maxIdleBytes < 0) throw new IllegalArgumentException("maxIdleBytes cannot be negative");
+		if (maxTotalBytes <= 0) throw new IllegalArgumentException("maxTotalBytes must be positive");
+		if (idleTimeout < 0) throw new IllegalArgumentException("idleTimeout cannot be negative");
+		this.maxIdleBytes = Math.min(maxIdleBytes, maxTotalBytes);
+		this.maxTotalBytes = maxTotalBytes;
+		this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+		for (int i = 0; i < idle.length; i++) {
+			idle[i] = new ConcurrentLinkedDeque<>();
+		}
+	}
+	
+	/**
+	 * Create a new pool that keeps at most {@code maxIdleBytes} of idle buffers around, freeing
+	 * buffers that have been idle for longer than the given timeout. The total size of borrowed
+	 * buffers is not limited.
+	 */
+	public JXLStagingPool(long maxIdleBytes, long idleTimeout, TimeUnit unit) {
+		this(maxIdleBytes, Long.MAX_VALUE, idleTimeout, unit);
+	}
+	
+	/**
+	 * Create a new pool that keeps at most {@code maxIdleBytes} of idle buffers around, freeing
+	 * buffers that have been idle for longer than 30 seconds. The total size of borrowed buffers
+	 * is not limited.
+	 */
+	public JXLStagingPool(long maxIdleBytes) {
+		this(maxIdleBytes, 30, TimeUnit.SECONDS);
+	}
+	
+	Buffer borrow(long size) {
+		if (closed) throw new IllegalStateException("This JXLStagingPool has been closed");
+		int sizeClass = Math.max(MIN_CLASS, 64-Long.numberOfLeadingZeros(Math.max(size, 1)-1));
+		if (sizeClass >= 63) throw new IllegalArgumentException("Cannot stage "+size+" bytes");
+		evictExpired();
+		var buf = idle[sizeClass].pollFirst();
+		if (buf != null) {
+			idleBytes.addAndGet(-buf.segment.byteSize());
+			return buf;
+		}
+		long classSize = 1L << sizeClass;
+		reserve(classSize);
+		try {
+			return new Buffer(this, sizeClass);
+		} catch (Throwable t) {
+			totalBytes.addAndGet(-classSize);
+			throw t;
+		}
+	}
+	
+	/**
+	 * Account for a new buffer of the given size, freeing idle buffers of other sizes to make room
+	 * for it if necessary.
+	 */
+	private void reserve(long size) {
+		while (true) {
+			long total = totalBytes.get();
+			if (size <= maxTotalBytes-total) {
+				if (totalBytes.compareAndSet(total, total+size)) return;
+			} else if (!evictLeastRecentlyUsed()) {
+				throw new UncheckedIOException(new JXLException("Staging "+size+" bytes would exceed the staging pool's limit of "
+						+maxTotalBytes+" bytes ("+total+" bytes already in use)"));
+			}
+		}
+	}
+	
+	/**
+	 * @return {@code false} if there were no idle buffers to free
+	 */
+	private boolean evictLeastRecentlyUsed() {
+		ConcurrentLinkedDeque<Buffer> oldestQueue = null;
+		Buffer oldest = null;
+		for (var q : idle) {
+			var buf = q.peekLast();
+			if (buf != null && (oldest == null || buf.lastUsed-oldest.lastUsed < 0)) {
+				oldest = buf;
+				oldestQueue = q;
+			}
+		}
+		if (oldest == null) return false;
+		// if someone else got to it first, it's still worth checking the limit again
+		if (oldestQueue.removeLastOccurrence(oldest)) {
+			idleBytes.addAndGet(-oldest.segment.byteSize());
+			free(oldest);
+		}
+		return true;
+	}
+	
+	private void free(Buffer buf) {
+		totalBytes.addAndGet(-buf.segment.byteSize());
+		buf.arena.close();
+	}
+	
+	void release(Buffer buf) {
+		long size = buf.segment.byteSize();
+		if (closed || idleBytes.addAndGet(size) > maxIdleBytes) {
+			idleBytes.addAndGet(-size);
+			free(buf);
+			return;
+		}
+		buf.lastUsed = System.nanoTime();
+		idle[buf.sizeClass].offerFirst(buf);
+		if (closed) trim();
+		evictExpired();
+	}
+	
+	private void evictExpired() {
+		long now = System.nanoTime();
+		for (var q : idle) {
+			Buffer buf;
+			// the least recently used buffer of each class is always at the end
+			while ((buf = q.peekLast()) != null && now-buf.lastUsed > idleTimeoutNanos) {
+				if (q.removeLastOccurrence(buf)) {
+					idleBytes.addAndGet(-buf.segment.byteSize());
+					free(buf);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the total size of the buffers currently idle in this pool
+	 */
+	public long idleBytes() {
+		return idleBytes.get();
+	}
+	
+	/**
+	 * @return the total size of all the buffers allocated by this pool that haven't been freed yet,
+	 * 		both idle and borrowed
+	 */
+	public long totalBytes() {
+		return totalBytes.get();
+	}
+	
+	/**
+	 * Free all idle buffers.
+	 */
+	public void trim() {
+		for (var q : idle) {
+			Buffer buf;
+			while ((buf = q.pollFirst()) != null) {
+				idleBytes.addAndGet(-buf.segment.byteSize());
+				free(buf);
+			}
+		}
+	}
+	
+	/**
+	 * Free all idle buffers. Buffers currently in use will be freed when they're returned, and
+	 * no further buffers can be borrowed from this pool.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		trim();
+	}
+	
+}
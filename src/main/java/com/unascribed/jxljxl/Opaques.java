@@ -0,0 +1,55 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.unascribed.jxljxl;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out opaque pointers for Java objects, so that upcalls from libjxl can find the object a
+ * callback was registered for. The "pointers" are just IDs, and are never dereferenced.
+ */
+final class Opaques {
+
+	private static final AtomicLong nextId = new AtomicLong(1);
+	private static final Map<Long, Object> objects = new ConcurrentHashMap<>();
+	
+	static MemorySegment register(Object o) {
+		long id = nextId.getAndIncrement();
+		objects.put(id, o);
+		return MemorySegment.ofAddress(id);
+	}
+	
+	static <T> T get(MemorySegment opaque, Class<T> clazz) {
+		return clazz.cast(objects.get(opaque.address()));
+	}
+	
+	static void unregister(MemorySegment opaque) {
+		objects.remove(opaque.address());
+	}
+	
+}
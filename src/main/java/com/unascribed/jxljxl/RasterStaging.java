@@ -0,0 +1,237 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import com.unascribed.jxljxl.JXLFrameBuilder.JXLByteOrder;
+
+/**
+ * Copies pixels straight out of the backing arrays of BufferedImages of well-known types, rather
+ * than going through getRGB and its per-pixel color model conversions.
+ */
+final class RasterStaging {
+
+	/**
+	 * Commit the given region of the image to the frame, if there's a fast path for its type.
+	 * @return the frame's encoder, or null if the image needs to go through getRGB instead
+	 */
+	static JXLEncoder commit(JXLFrameBuilder frame, BufferedImage img, int x, int y, int w, int h) {
+		var raster = img.getRaster();
+		checkBounds(raster, x, y, w, h);
+		// child rasters (e.g. from getSubimage) share their parent's array at an offset
+		int sx = x-raster.getSampleModelTranslateX();
+		int sy = y-raster.getSampleModelTranslateY();
+		int type = img.getType();
+		switch (type) {
+			case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE,
+					BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR -> {
+				var sm = (SinglePixelPackedSampleModel)raster.getSampleModel();
+				var db = (DataBufferInt)raster.getDataBuffer();
+				int[] src = db.getData();
+				int stride = sm.getScanlineStride();
+				int base = db.getOffset()+(sy*stride)+sx;
+				if (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE) {
+					var dst = frame.owner.stage(frame, w*h*4L);
+					if (stride == w) {
+						Swizzle.argbToRgba(src, base, dst, 0, w*h, true);
+					} else {
+						for (int row = 0; row < h; row++) {
+							Swizzle.argbToRgba(src, base+(row*stride), dst, row*w*4L, w, true);
+						}
+					}
+					return frame.commit(4, JXLDataType.UINT8, JXLByteOrder.BIG, 0, dst);
+				} else {
+					boolean bgr = type == BufferedImage.TYPE_INT_BGR;
+					var dst = frame.owner.stage(frame, w*h*3L);
+					for (int row = 0; row < h; row++) {
+						Swizzle.xrgbToRgb(src, base+(row*stride), dst, row*w*3L, w, bgr);
+					}
+					return frame.commit(3, JXLDataType.UINT8, JXLByteOrder.BIG, 0, dst);
+				}
+			}
+			case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_4BYTE_ABGR_PRE -> {
+				var sm = (ComponentSampleModel)raster.getSampleModel();
+				var db = (DataBufferByte)raster.getDataBuffer();
+				byte[] src = db.getData();
+				int stride = sm.getScanlineStride();
+				int channels = sm.getPixelStride();
+				int base = db.getOffset()+(sy*stride)+(sx*channels);
+				var dst = frame.owner.stage(frame, (long)w*h*channels);
+				for (int row = 0; row < h; row++) {
+					if (channels == 3) {
+						Swizzle.bgrToRgb(src, base+(row*stride), dst, (long)row*w*3, w);
+					} else {
+						Swizzle.abgrToRgba(src, base+(row*stride), dst, (long)row*w*4, w);
+					}
+				}
+				return frame.commit(channels, JXLDataType.UINT8, JXLByteOrder.BIG, 0, dst);
+			}
+			case BufferedImage.TYPE_BYTE_GRAY -> {
+				var sm = (ComponentSampleModel)raster.getSampleModel();
+				var db = (DataBufferByte)raster.getDataBuffer();
+				int stride = sm.getScanlineStride();
+				int base = db.getOffset()+(sy*stride)+sx;
+				var rows = copyRows(frame, MemorySegment.ofArray(db.getData()), base, stride, w, h);
+				return frame.commit(1, JXLDataType.UINT8, JXLByteOrder.BIG, rows.align(), rows.data());
+			}
+			case BufferedImage.TYPE_USHORT_GRAY -> {
+				var sm = (ComponentSampleModel)raster.getSampleModel();
+				var db = (DataBufferUShort)raster.getDataBuffer();
+				int stride = sm.getScanlineStride();
+				int base = db.getOffset()+(sy*stride)+sx;
+				var rows = copyRows(frame, MemorySegment.ofArray(db.getData()), base*2L, stride*2L, w*2L, h);
+				return frame.commit(1, JXLDataType.UINT16, JXLByteOrder.NATIVE, rows.align(), rows.data());
+			}
+			default -> {
+				// TYPE_CUSTOM images from e.g. 16-bit PNGs; indexed images have component sample
+				// models too, but their samples aren't colors
+				if (!(img.getColorModel() instanceof ComponentColorModel)) return null;
+				return commitComponents(frame, raster, x, y, w, h);
+			}
+		}
+	}
+	
+	/**
+	 * Commit the given region of a raster with a component sample model to the frame, keeping
+	 * the raster's sample format. Double samples are narrowed to floats, as libjxl doesn't
+	 * accept doubles.
+	 * @return the frame's encoder, or null if the raster's layout isn't supported
+	 */
+	static JXLEncoder commitComponents(JXLFrameBuilder frame, Raster raster, int x, int y, int w, int h) {
+		if (!(raster.getSampleModel() instanceof ComponentSampleModel sm)) return null;
+		checkBounds(raster, x, y, w, h);
+		int bands = sm.getNumBands();
+		if (bands > 4) throw new IllegalArgumentException("Rasters can have at most 4 bands, got "+bands);
+		var db = raster.getDataBuffer();
+		JXLDataType type;
+		ValueLayout layout;
+		if (db instanceof DataBufferByte) {
+			type = JXLDataType.UINT8;
+			layout = ValueLayout.JAVA_BYTE;
+		} else if (db instanceof DataBufferUShort) {
+			type = JXLDataType.UINT16;
+			layout = ValueLayout.JAVA_SHORT_UNALIGNED;
+		} else if (db instanceof DataBufferFloat) {
+			type = JXLDataType.FLOAT32;
+			layout = ValueLayout.JAVA_FLOAT_UNALIGNED;
+		} else if (db instanceof DataBufferDouble) {
+			type = JXLDataType.FLOAT32;
+			layout = ValueLayout.JAVA_DOUBLE_UNALIGNED;
+		} else {
+			return null;
+		}
+		long size = layout.byteSize();
+		int sx = x-raster.getSampleModelTranslateX();
+		int sy = y-raster.getSampleModelTranslateY();
+		int stride = sm.getScanlineStride();
+		int pixelStride = sm.getPixelStride();
+		int[] bandOffsets = sm.getBandOffsets();
+		int[] banks = sm.getBankIndices();
+		var src = new MemorySegment[bands];
+		var base = new long[bands];
+		boolean packed = layout != ValueLayout.JAVA_DOUBLE_UNALIGNED && pixelStride == bands;
+		for (int b = 0; b < bands; b++) {
+			src[b] = bank(db, banks[b]);
+			base[b] = (db.getOffsets()[banks[b]]+((long)sy*stride)+((long)sx*pixelStride)+bandOffsets[b])*size;
+			if (banks[b] != banks[0] || bandOffsets[b] != bandOffsets[0]+b) packed = false;
+		}
+		if (packed) {
+			var rows = copyRows(frame, src[0], base[0], stride*size, w*bands*size, h);
+			return frame.commit(bands, type, JXLByteOrder.NATIVE, rows.align(), rows.data());
+		}
+		var dst = frame.owner.stage(frame, (long)w*h*bands*type.bytes);
+		long d = 0;
+		for (int row = 0; row < h; row++) {
+			long rowOff = (long)row*stride*size;
+			for (int px = 0; px < w; px++) {
+				long pxOff = rowOff+((long)px*pixelStride*size);
+				for (int b = 0; b < bands; b++) {
+					if (layout == ValueLayout.JAVA_DOUBLE_UNALIGNED) {
+						dst.set(ValueLayout.JAVA_FLOAT_UNALIGNED, d, (float)src[b].get(ValueLayout.JAVA_DOUBLE_UNALIGNED, base[b]+pxOff));
+					} else {
+						MemorySegment.copy(src[b], base[b]+pxOff, dst, d, size);
+					}
+					d += type.bytes;
+				}
+			}
+		}
+		return frame.commit(bands, type, JXLByteOrder.NATIVE, 0, dst);
+	}
+	
+	private record Rows(MemorySegment data, int align) {}
+	
+	/**
+	 * Copy {@code h} rows of {@code rowBytes} bytes each, which are {@code strideBytes} apart in
+	 * {@code src}, into staging memory. If the rows are close enough together, the whole block is
+	 * copied in one go, gaps and all, and libjxl is told to skip over the gaps via the align
+	 * parameter; otherwise the rows are packed together.
+	 * <p>
+	 * There's no way to skip the copy entirely, even though align could describe the source's
+	 * stride: AWT rasters are always backed by Java arrays, and libjxl can only be handed native
+	 * memory. Once a copy has to happen anyway, packing the rows of a narrow crop moves fewer
+	 * bytes than copying the gaps along with them.
+	 */
+	private static Rows copyRows(JXLFrameBuilder frame, MemorySegment src, long srcOff, long strideBytes, long rowBytes, int h) {
+		if (strideBytes == rowBytes || (strideBytes <= rowBytes+(rowBytes/4) && strideBytes <= Integer.MAX_VALUE)) {
+			var dst = frame.owner.stage(frame, strideBytes*h);
+			// the last row may be right at the end of the array, with no gap after it
+			MemorySegment.copy(src, srcOff, dst, 0, (strideBytes*(h-1))+rowBytes);
+			return new Rows(dst, strideBytes == rowBytes ? 0 : (int)strideBytes);
+		}
+		var dst = frame.owner.stage(frame, rowBytes*h);
+		for (int row = 0; row < h; row++) {
+			MemorySegment.copy(src, srcOff+(row*strideBytes), dst, row*rowBytes, rowBytes);
+		}
+		return new Rows(dst, 0);
+	}
+	
+	private static MemorySegment bank(DataBuffer db, int bank) {
+		if (db instanceof DataBufferByte d) return MemorySegment.ofArray(d.getData(bank));
+		if (db instanceof DataBufferUShort d) return MemorySegment.ofArray(d.getData(bank));
+		if (db instanceof DataBufferFloat d) return MemorySegment.ofArray(d.getData(bank));
+		if (db instanceof DataBufferDouble d) return MemorySegment.ofArray(d.getData(bank));
+		throw new AssertionError();
+	}
+	
+	private static void checkBounds(Raster raster, int x, int y, int w, int h) {
+		if (x < raster.getMinX() || y < raster.getMinY() || x+w > raster.getMinX()+raster.getWidth() || y+h > raster.getMinY()+raster.getHeight()) {
+			throw new IllegalArgumentException("Frame region "+w+"x"+h+" at "+x+","+y+" is out of bounds for a "
+					+raster.getWidth()+"x"+raster.getHeight()+" raster at "+raster.getMinX()+","+raster.getMinY());
+		}
+	}
+	
+}
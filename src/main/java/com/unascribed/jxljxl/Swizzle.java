@@ -0,0 +1,168 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Converts pixel data from the layouts Java likes to the layouts libjxl accepts. Uses the Vector
+ * API when the jdk.incubator.vector module is available, and plain loops otherwise.
+ */
+final class Swizzle {
+
+	static final ValueLayout.OfInt SWAPPED_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	static final ValueLayout.OfInt LE_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	
+	/**
+	 * Arrays at least this long are split up and converted on the common ForkJoinPool.
+	 */
+	private static final int PARALLEL_THRESHOLD = 2*1024*1024;
+	private static final int PARALLEL_CHUNK = 256*1024;
+	
+	/**
+	 * The operations that have a Vector API implementation.
+	 */
+	interface Kernels {
+		void argbToRgba(int[] src, int srcOff, MemorySegment dst, long dstOff, int count);
+		/**
+		 * Reverse the byte order of {@code count} ints.
+		 */
+		void reverseInts(MemorySegment src, long srcOff, MemorySegment dst, long dstOff, int count);
+	}
+	
+	/**
+	 * The Vector API implementations, or null if jdk.incubator.vector isn't available.
+	 */
+	private static final Kernels VECTOR = loadVector();
+	
+	/**
+	 * Convert Java ARGB ints into RGBA bytes.
+	 * @param parallel {@code true} if {@code dst} may be written to from other threads
+	 */
+	static void argbToRgba(int[] src, MemorySegment dst, boolean parallel) {
+		argbToRgba(src, 0, dst, 0, src.length, parallel);
+	}
+	
+	/**
+	 * Convert {@code count} Java ARGB ints starting at {@code src[srcOff]} into RGBA bytes
+	 * starting at {@code dstOff}.
+	 * @param parallel {@code true} if {@code dst} may be written to from other threads
+	 */
+	static void argbToRgba(int[] src, int srcOff, MemorySegment dst, long dstOff, int count, boolean parallel) {
+		if (parallel && count >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+			int chunks = (count+PARALLEL_CHUNK-1)/PARALLEL_CHUNK;
+			IntStream.range(0, chunks).parallel().forEach(c -> {
+				int from = c*PARALLEL_CHUNK;
+				int n = Math.min(count-from, PARALLEL_CHUNK);
+				argbToRgba(src, srcOff+from, dst, dstOff+from*4L, n);
+			});
+		} else {
+			argbToRgba(src, srcOff, dst, dstOff, count);
+		}
+	}
+	
+	private static void argbToRgba(int[] src, int srcOff, MemorySegment dst, long dstOff, int count) {
+		if (VECTOR != null) {
+			VECTOR.argbToRgba(src, srcOff, dst, dstOff, count);
+		} else {
+			argbToRgbaScalar(src, srcOff, dst, dstOff, count);
+		}
+	}
+	
+	static void argbToRgbaScalar(int[] src, int srcOff, MemorySegment dst, long dstOff, int count) {
+		for (int i = 0; i < count; i++) {
+			dst.set(SWAPPED_INT, dstOff+i*4L, Integer.rotateLeft(src[srcOff+i], 8));
+		}
+	}
+	
+	/**
+	 * Convert {@code count} pixels of ABGR bytes (as used by TYPE_4BYTE_ABGR) into RGBA bytes.
+	 */
+	static void abgrToRgba(byte[] src, int srcOff, MemorySegment dst, long dstOff, int count) {
+		var srcSeg = MemorySegment.ofArray(src);
+		if (VECTOR != null) {
+			VECTOR.reverseInts(srcSeg, srcOff, dst, dstOff, count);
+		} else {
+			reverseIntsScalar(srcSeg, srcOff, dst, dstOff, count);
+		}
+	}
+	
+	static void reverseIntsScalar(MemorySegment src, long srcOff, MemorySegment dst, long dstOff, int count) {
+		for (int i = 0; i < count; i++) {
+			dst.set(SWAPPED_INT, dstOff+i*4L, src.get(LE_INT, srcOff+i*4L));
+		}
+	}
+	
+	/**
+	 * Convert {@code count} pixels of BGR bytes (as used by TYPE_3BYTE_BGR) into RGB bytes.
+	 */
+	static void bgrToRgb(byte[] src, int srcOff, MemorySegment dst, long dstOff, int count) {
+		for (int i = 0; i < count; i++) {
+			int s = srcOff+(i*3);
+			long d = dstOff+(i*3L);
+			dst.set(ValueLayout.JAVA_BYTE, d, src[s+2]);
+			dst.set(ValueLayout.JAVA_BYTE, d+1, src[s+1]);
+			dst.set(ValueLayout.JAVA_BYTE, d+2, src[s]);
+		}
+	}
+	
+	/**
+	 * Convert {@code count} pixels of packed 0x00RRGGBB ints (or 0x00BBGGRR if {@code bgr} is
+	 * set) into RGB bytes.
+	 */
+	static void xrgbToRgb(int[] src, int srcOff, MemorySegment dst, long dstOff, int count, boolean bgr) {
+		int rs = bgr ? 0 : 16;
+		int bs = bgr ? 16 : 0;
+		for (int i = 0; i < count; i++) {
+			int p = src[srcOff+i];
+			long d = dstOff+(i*3L);
+			dst.set(ValueLayout.JAVA_BYTE, d, (byte)(p >> rs));
+			dst.set(ValueLayout.JAVA_BYTE, d+1, (byte)(p >> 8));
+			dst.set(ValueLayout.JAVA_BYTE, d+2, (byte)(p >> bs));
+		}
+	}
+	
+	private static Kernels loadVector() {
+		if (Boolean.getBoolean("jxljxl.disableVector")) return null;
+		// jdk.incubator.vector is only resolved if it was asked for with --add-modules
+		var vector = ModuleLayer.boot().findModule("jdk.incubator.vector");
+		if (vector.isEmpty()) return null;
+		try {
+			// we don't declare a dependency on the module, so that nobody gets the incubator
+			// warning unless they opted in; read it now that we know it's there
+			Swizzle.class.getModule().addReads(vector.get());
+			var kernels = (Kernels)Class.forName("com.unascribed.jxljxl.VectorSwizzle")
+					.getDeclaredConstructor().newInstance();
+			kernels.argbToRgba(new int[0], 0, MemorySegment.NULL, 0, 0);
+			return kernels;
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+	
+}
@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+class AsyncEncodeTest {
+
+	@Test
+	void encodeAsyncRoundTrips() throws Exception {
+		var img = TestImages.argb();
+		byte[] res = TestImages.lossless(img).encodeAsync().get();
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(res).pixels());
+	}
+	
+	@Test
+	void encodeRunsOnTheGivenExecutor() throws Exception {
+		var exec = JXLEncoder.newEncodeExecutor(1);
+		try {
+			String[] thread = {null};
+			var img = TestImages.argb();
+			var enc = TestImages.lossless(img);
+			byte[] res = enc.encodeAsync(r -> exec.execute(() -> {
+				thread[0] = Thread.currentThread().getName();
+				r.run();
+			})).get();
+			assertTrue(thread[0].startsWith("JXLJXL encode thread"));
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(res).pixels());
+		} finally {
+			exec.shutdown();
+		}
+	}
+	
+	@Test
+	void segmentAsyncUsesSharedArena() throws Exception {
+		var img = TestImages.argb();
+		try (var arena = Arena.openShared()) {
+			var seg = TestImages.lossless(img).encodeToSegmentAsync(arena).get();
+			assertEquals(arena.scope(), seg.scope());
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(seg).pixels());
+		}
+	}
+	
+	@Test
+	void failuresCompleteTheFuture() {
+		// no color encoding
+		var enc = JXLEncoder.create().size(8, 8).bitsPerSample(8).numChannels(3, 0);
+		var e = assertThrows(ExecutionException.class, () -> enc.encodeAsync().get());
+		assertInstanceOf(IllegalArgumentException.class, e.getCause());
+	}
+	
+	@Test
+	void rejectionCompletesTheFuture() {
+		var exec = JXLEncoder.newEncodeExecutor(1);
+		exec.shutdown();
+		try (var enc = TestImages.lossless(TestImages.argb())) {
+			var e = assertThrows(ExecutionException.class, () -> enc.encodeAsync(exec).get());
+			assertInstanceOf(RejectedExecutionException.class, e.getCause());
+		}
+	}
+	
+	@Test
+	void executorConcurrencyMustBePositive() {
+		assertThrows(IllegalArgumentException.class, () -> JXLEncoder.newEncodeExecutor(0));
+	}
+	
+}
@@ -0,0 +1,184 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.unascribed.jxljxl.JXLFrameBuilder.JXLByteOrder;
+
+class BatchEncoderTest {
+
+	private static final int W = TestImages.WIDTH;
+	private static final int H = TestImages.HEIGHT;
+	
+	/**
+	 * @return an encoder whose frame isn't rendered until {@code release} is counted down, and
+	 * 		which records the name of the thread encoding it
+	 */
+	private static JXLEncoder blocking(CountDownLatch started, CountDownLatch release, String[] thread) {
+		byte[] rgba = TestImages.rgba(TestImages.argb());
+		return TestImages.rgbaEncoder(W, H)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, dest -> {
+						thread[0] = Thread.currentThread().getName();
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new AssertionError(e);
+						}
+						MemorySegment.copy(MemorySegment.ofArray(rgba), 0, dest, 0, dest.byteSize());
+					});
+	}
+	
+	@Test
+	void jobsRoundTrip() throws Exception {
+		var imgs = new ArrayList<BufferedImage>();
+		var futures = new ArrayList<CompletableFuture<byte[]>>();
+		try (var batch = new JXLBatchEncoder(2, 4, Long.MAX_VALUE)) {
+			for (int i = 0; i < 8; i++) {
+				var img = TestImages.noise(W, H, i);
+				imgs.add(img);
+				futures.add(batch.submit(TestImages.lossless(img)));
+			}
+			for (int i = 0; i < imgs.size(); i++) {
+				assertArrayEquals(TestImages.rgba(imgs.get(i)), TestImages.decode(futures.get(i).get()).pixels());
+			}
+			var stats = batch.stats();
+			assertEquals(8, stats.submitted());
+			assertEquals(8, stats.completed());
+			assertEquals(0, stats.failed());
+			assertEquals(0, stats.queueDepth());
+			assertTrue(stats.latencyP50().compareTo(stats.latencyMax()) <= 0);
+		}
+	}
+	
+	@Test
+	void largeImagesGoToTheWideLane() throws Exception {
+		String[] narrow = {null};
+		String[] wide = {null};
+		try (var batch = new JXLBatchEncoder(2, 4, W*H)) {
+			var wideJob = batch.submit(blocking(new CountDownLatch(1), new CountDownLatch(0), wide));
+			var small = TestImages.rgbaEncoder(W, H-1)
+					.newFrame()
+						.distance(0)
+						.effort(1)
+						.commit(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, dest -> narrow[0] = Thread.currentThread().getName());
+			var narrowJob = batch.submit(small);
+			wideJob.get();
+			narrowJob.get();
+		}
+		assertEquals("JXLJXL batch encoder (large images)", wide[0]);
+		assertTrue(narrow[0].startsWith("JXLJXL batch encoder #"));
+	}
+	
+	@Test
+	void offerTimesOutWhenFull() throws Exception {
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		String[] thread = {null};
+		List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+		try (var batch = new JXLBatchEncoder(1, 1, Long.MAX_VALUE)) {
+			// the only worker is stuck on this one...
+			futures.add(batch.submit(blocking(started, release, thread)));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			// ...so this one fills the queue
+			futures.add(batch.submit(TestImages.lossless(TestImages.argb())));
+			assertEquals(1, batch.queueDepth());
+			var enc = TestImages.lossless(TestImages.argb());
+			assertNull(batch.offer(enc, 50, TimeUnit.MILLISECONDS));
+			enc.close();
+			release.countDown();
+			futures.add(batch.offer(TestImages.lossless(TestImages.argb()), 10, TimeUnit.SECONDS));
+			assertNotNull(futures.get(2));
+		}
+		for (var f : futures) {
+			assertTrue(f.isDone());
+			assertFalse(f.isCompletedExceptionally());
+		}
+	}
+	
+	@Test
+	void closeFinishesQueuedJobs() throws Exception {
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		String[] thread = {null};
+		List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+		var batch = new JXLBatchEncoder(1, 8, Long.MAX_VALUE);
+		futures.add(batch.submit(blocking(started, release, thread)));
+		for (int i = 0; i < 4; i++) {
+			futures.add(batch.submit(TestImages.lossless(TestImages.argb())));
+		}
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		release.countDown();
+		batch.close();
+		for (var f : futures) {
+			assertTrue(f.isDone());
+			assertNotNull(f.getNow(null));
+		}
+		assertEquals(5, batch.stats().completed());
+		assertThrows(IllegalStateException.class, () -> batch.submit(TestImages.lossless(TestImages.argb())));
+		assertThrows(IllegalStateException.class, () -> batch.offer(TestImages.lossless(TestImages.argb()), 1, TimeUnit.SECONDS));
+		// closing again is harmless
+		batch.close();
+	}
+	
+	@Test
+	void failuresAreCounted() throws Exception {
+		try (var batch = new JXLBatchEncoder(1, 1, Long.MAX_VALUE)) {
+			// libjxl rejects bit depths over 24 for integer samples
+			var bad = TestImages.rgbaEncoder(W, H)
+					.bitsPerSample(40)
+					.newFrame()
+						.commit(TestImages.argb());
+			var e = assertThrows(ExecutionException.class, () -> batch.submit(bad).get());
+			assertInstanceOf(JXLException.class, e.getCause());
+			batch.submit(TestImages.lossless(TestImages.argb())).get();
+			var stats = batch.stats();
+			assertEquals(2, stats.submitted());
+			assertEquals(1, stats.completed());
+			assertEquals(1, stats.failed());
+		}
+	}
+	
+	@Test
+	void invalidSizesAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new JXLBatchEncoder(0, 1, 1));
+		assertThrows(IllegalArgumentException.class, () -> new JXLBatchEncoder(1, 0, 1));
+	}
+	
+}
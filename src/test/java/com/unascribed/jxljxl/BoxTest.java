@@ -0,0 +1,156 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BoxTest {
+
+	@TempDir
+	Path dir;
+	
+	private static byte[] random(int n, long seed) {
+		byte[] res = new byte[n];
+		new Random(seed).nextBytes(res);
+		return res;
+	}
+	
+	private static Map<String, byte[]> boxes(byte[] file) throws IOException {
+		var res = new LinkedHashMap<String, byte[]>();
+		var listener = new TestImages.Collector() {
+			@Override
+			public void box(String type, MemorySegment contents) {
+				res.put(type, contents.toArray(ValueLayout.JAVA_BYTE));
+			}
+		};
+		JXLDecoder.create()
+			.pixelFormat(4, JXLDataType.UINT8)
+			.boxes(true)
+			.decode(MemorySegment.ofArray(file), listener);
+		assertEquals(1, listener.frames.size());
+		return res;
+	}
+	
+	@Test
+	void everySourceRoundTrips() throws IOException {
+		byte[] array = random(100, 1);
+		byte[] heap = random(200, 2);
+		byte[] mapped = random(300, 3);
+		byte[] seekable = random(400, 4);
+		// past the first 64K read buffer, so it has to grow
+		byte[] stream = random(200*1024, 5);
+		var mappedFile = dir.resolve("mapped.bin");
+		var seekableFile = dir.resolve("seekable.bin");
+		Files.write(mappedFile, mapped);
+		Files.write(seekableFile, seekable);
+		try (var arena = Arena.openConfined();
+				var ch = FileChannel.open(seekableFile)) {
+			var nativeSeg = arena.allocate(500);
+			nativeSeg.copyFrom(MemorySegment.ofArray(random(500, 6)));
+			var enc = TestImages.lossless(TestImages.argb());
+			enc.addBox("aaaa").commit(array);
+			enc.addBox("bbbb").commit(MemorySegment.ofArray(heap));
+			enc.addBox("cccc").commit(nativeSeg);
+			enc.addBox("dddd").commit(mappedFile);
+			enc.addBox("eeee").commit(ch);
+			enc.addBox("ffff").commit(Channels.newChannel(new ByteArrayInputStream(stream)));
+			var boxes = boxes(enc.encode());
+			assertArrayEquals(array, boxes.get("aaaa"));
+			assertArrayEquals(heap, boxes.get("bbbb"));
+			assertArrayEquals(nativeSeg.toArray(ValueLayout.JAVA_BYTE), boxes.get("cccc"));
+			assertArrayEquals(mapped, boxes.get("dddd"));
+			assertArrayEquals(seekable, boxes.get("eeee"));
+			assertArrayEquals(stream, boxes.get("ffff"));
+		}
+	}
+	
+	@Test
+	void compressedBoxIsUnwrapped() throws IOException {
+		// compressible, so the brob box is smaller than the contents
+		byte[] contents = new byte[64*1024];
+		var plain = TestImages.lossless(TestImages.argb()).encode();
+		var file = TestImages.lossless(TestImages.argb())
+				.addBox("xml ").compressed().commit(contents)
+				.encode();
+		assertTrue(file.length < plain.length+contents.length);
+		assertArrayEquals(contents, boxes(file).get("xml "));
+	}
+	
+	@Test
+	void channelIsReadAtCommit() throws IOException {
+		byte[] contents = random(1000, 7);
+		var in = new ByteArrayInputStream(contents);
+		var enc = TestImages.lossless(TestImages.argb());
+		enc.addBox("abcd").commit(Channels.newChannel(in));
+		// the box owns its own copy, so the channel is done with
+		assertEquals(0, in.available());
+		assertArrayEquals(contents, boxes(enc.encode()).get("abcd"));
+	}
+	
+	@Test
+	void closingEncoderFreesBoxes() throws IOException {
+		var enc = TestImages.lossless(TestImages.argb());
+		enc.addBox("abcd").commit(Channels.newChannel(new ByteArrayInputStream(random(1000, 8))));
+		var box = enc.boxes.get(0);
+		var contents = box.contents;
+		enc.close();
+		assertNull(box.contents);
+		assertThrows(IllegalStateException.class, () -> contents.get(ValueLayout.JAVA_BYTE, 0));
+	}
+	
+	@Test
+	void nonBlockingChannelIsRejected() throws IOException {
+		var pipe = Pipe.open();
+		try (var source = pipe.source(); var sink = pipe.sink();
+				var enc = TestImages.lossless(TestImages.argb())) {
+			source.configureBlocking(false);
+			assertThrows(IllegalArgumentException.class, () -> enc.addBox("abcd").commit(source));
+		}
+	}
+	
+	@Test
+	void invalidTypeIsRejected() {
+		try (var enc = TestImages.lossless(TestImages.argb())) {
+			assertThrows(IllegalArgumentException.class, () -> enc.addBox("abc"));
+		}
+	}
+	
+}
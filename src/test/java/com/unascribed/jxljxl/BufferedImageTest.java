@@ -0,0 +1,147 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class BufferedImageTest {
+
+	private static final int W = TestImages.WIDTH;
+	private static final int H = TestImages.HEIGHT;
+	
+	private static BufferedImage convert(BufferedImage src, int type) {
+		var img = new BufferedImage(src.getWidth(), src.getHeight(), type);
+		for (int y = 0; y < src.getHeight(); y++) {
+			for (int x = 0; x < src.getWidth(); x++) {
+				img.setRGB(x, y, src.getRGB(x, y));
+			}
+		}
+		return img;
+	}
+	
+	private static JXLEncoder rgbEncoder(int w, int h) {
+		return JXLEncoder.create()
+				.size(w, h)
+				.bitsPerSample(8)
+				.numChannels(3, 0)
+				.colorEncoding(JXLPredefinedColorEncoding.SRGB);
+	}
+	
+	private static JXLEncoder grayEncoder(int w, int h, int bits) {
+		return JXLEncoder.create()
+				.size(w, h)
+				.bitsPerSample(bits)
+				.numChannels(1, 0)
+				.colorEncoding(JXLPredefinedColorEncoding.SRGB_GRAY);
+	}
+	
+	@ParameterizedTest
+	@ValueSource(ints = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR})
+	void opaqueTypes(int type) throws IOException {
+		var img = convert(TestImages.argb(), type);
+		var file = rgbEncoder(W, H)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(img)
+				.encode();
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(file).pixels());
+	}
+	
+	@ParameterizedTest
+	@ValueSource(ints = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR})
+	void alphaTypes(int type) throws IOException {
+		var img = convert(TestImages.argb(), type);
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(TestImages.lossless(img).encode()).pixels());
+	}
+	
+	@Test
+	void byteGray() throws IOException {
+		var img = new BufferedImage(W, H, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		byte[] expected = new byte[W*H];
+		for (int y = 0; y < H; y++) {
+			for (int x = 0; x < W; x++) {
+				int v = ((x*7)+(y*13))&0xFF;
+				raster.setSample(x, y, 0, v);
+				expected[(y*W)+x] = (byte)v;
+			}
+		}
+		var file = grayEncoder(W, H, 8)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(img)
+				.encode();
+		assertArrayEquals(expected, TestImages.decode(file, 1, JXLDataType.UINT8).pixels());
+	}
+	
+	@Test
+	void ushortGray() throws IOException {
+		var img = new BufferedImage(W, H, BufferedImage.TYPE_USHORT_GRAY);
+		var raster = img.getRaster();
+		short[] expected = new short[W*H];
+		for (int y = 0; y < H; y++) {
+			for (int x = 0; x < W; x++) {
+				// use the low bits too, so a round trip through 8 bits would be caught
+				int v = ((x*977)+(y*4099))&0xFFFF;
+				raster.setSample(x, y, 0, v);
+				expected[(y*W)+x] = (short)v;
+			}
+		}
+		var file = grayEncoder(W, H, 16)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(img)
+				.encode();
+		byte[] decoded = TestImages.decode(file, 1, JXLDataType.UINT16).pixels();
+		assertArrayEquals(expected, MemorySegment.ofArray(decoded).toArray(ValueLayout.JAVA_SHORT_UNALIGNED));
+	}
+	
+	@Test
+	void otherTypesGoThroughGetRGB() throws IOException {
+		var img = convert(TestImages.argb(), BufferedImage.TYPE_BYTE_INDEXED);
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(TestImages.lossless(img).encode()).pixels());
+	}
+	
+	@Test
+	void premultipliedMismatchIsRejected() {
+		var img = convert(TestImages.argb(), BufferedImage.TYPE_INT_ARGB_PRE);
+		try (var enc = TestImages.rgbaEncoder(W, H)) {
+			var frame = enc.newFrame();
+			assertThrows(IllegalArgumentException.class, () -> frame.commit(img));
+		}
+	}
+	
+}
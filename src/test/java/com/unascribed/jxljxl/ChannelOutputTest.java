@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+import org.junit.jupiter.api.Test;
+
+class ChannelOutputTest {
+
+	@Test
+	void channelRoundTrip() throws IOException {
+		var img = TestImages.argb();
+		var out = new ByteArrayOutputStream();
+		TestImages.lossless(img).encodeTo(Channels.newChannel(out));
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(out.toByteArray()).pixels());
+	}
+	
+	@Test
+	void consumerGetsReadOnlyChunksOfFixedSize() throws IOException {
+		var img = TestImages.argb();
+		var out = new ByteArrayOutputStream();
+		int[] chunks = {0};
+		TestImages.lossless(img)
+			.outputChunkSize(256)
+			.encodeTo((ByteBuffer bb) -> {
+				assertTrue(bb.isReadOnly());
+				assertTrue(bb.remaining() <= 256);
+				byte[] arr = new byte[bb.remaining()];
+				bb.get(arr);
+				out.writeBytes(arr);
+				chunks[0]++;
+			});
+		assertTrue(chunks[0] > 1, "expected output to span several 256 byte chunks");
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(out.toByteArray()).pixels());
+	}
+	
+	@Test
+	void streamMatchesChannel() throws IOException {
+		var img = TestImages.argb();
+		var viaStream = new ByteArrayOutputStream();
+		TestImages.lossless(img).runner(JXLRunner.none()).encodeToStream(viaStream);
+		var viaChannel = new ByteArrayOutputStream();
+		TestImages.lossless(img).runner(JXLRunner.none()).encodeTo(Channels.newChannel(viaChannel));
+		assertArrayEquals(viaStream.toByteArray(), viaChannel.toByteArray());
+	}
+	
+	@Test
+	void nonBlockingChannelIsRejected() throws IOException {
+		var pipe = Pipe.open();
+		try (var sink = pipe.sink(); var source = pipe.source(); var enc = TestImages.lossless(TestImages.argb())) {
+			sink.configureBlocking(false);
+			assertThrows(IllegalArgumentException.class, () -> enc.encodeTo(sink));
+		}
+	}
+	
+}
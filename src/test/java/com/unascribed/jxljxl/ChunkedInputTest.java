@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.unascribed.jxljxl.JXLFrameBuilder.JXLByteOrder;
+
+class ChunkedInputTest {
+
+	@Test
+	void stripsRoundTrip() throws IOException {
+		var img = TestImages.noise(TestImages.WIDTH, TestImages.HEIGHT, 7);
+		byte[] rgba = TestImages.rgba(img);
+		long rowBytes = TestImages.WIDTH*4L;
+		List<int[]> calls = new ArrayList<>();
+		byte[] res = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commitChunked(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, 16, (y, rows, dest) -> {
+						calls.add(new int[] {y, rows});
+						assertEquals(rowBytes*rows, dest.byteSize());
+						MemorySegment.copy(MemorySegment.ofArray(rgba), y*rowBytes, dest, 0, rows*rowBytes);
+					})
+				.encode();
+		// 45 rows in strips of 16
+		assertEquals(3, calls.size());
+		assertArrayEquals(new int[] {0, 16}, calls.get(0));
+		assertArrayEquals(new int[] {16, 16}, calls.get(1));
+		assertArrayEquals(new int[] {32, 13}, calls.get(2));
+		assertArrayEquals(rgba, TestImages.decode(res).pixels());
+	}
+	
+	@Test
+	void sourceIsNotCalledUntilEncode() {
+		boolean[] called = {false};
+		var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)
+				.newFrame()
+					.commitChunked(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, 8, (y, rows, dest) -> called[0] = true);
+		assertFalse(called[0]);
+		enc.close();
+	}
+	
+	@Test
+	void sourceErrorsPropagate() {
+		var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)
+				.newFrame()
+					.commitChunked(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, 8, (y, rows, dest) -> {
+						throw new IOException("source failed");
+					});
+		var e = assertThrows(IOException.class, enc::encode);
+		assertEquals("source failed", e.getMessage());
+	}
+	
+	@Test
+	void stripHeightMustBePositive() {
+		try (var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)) {
+			assertThrows(IllegalArgumentException.class, () -> enc.newFrame()
+					.commitChunked(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, 0, (y, rows, dest) -> {}));
+		}
+	}
+	
+}
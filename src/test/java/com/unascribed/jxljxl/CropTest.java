@@ -0,0 +1,124 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class CropTest {
+
+	private static final int W = TestImages.WIDTH;
+	private static final int H = TestImages.HEIGHT;
+	
+	private static BufferedImage convert(BufferedImage src, int type) {
+		var img = new BufferedImage(src.getWidth(), src.getHeight(), type);
+		for (int y = 0; y < src.getHeight(); y++) {
+			for (int x = 0; x < src.getWidth(); x++) {
+				img.setRGB(x, y, src.getRGB(x, y));
+			}
+		}
+		return img;
+	}
+	
+	@ParameterizedTest
+	@ValueSource(ints = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_INDEXED})
+	void croppedLayerReadsOnlyItsRegion(int type) throws IOException {
+		var base = TestImages.argb();
+		var layer = convert(TestImages.noise(W, H, 3), type);
+		int cx = 11, cy = 7, cw = 29, ch = 17;
+		byte[] file = TestImages.rgbaEncoder(W, H)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(base)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.crop(cx, cy, cw, ch)
+					.commit(layer)
+				.encode();
+		// the layer replaces the region it covers, and nothing else
+		var expected = convert(base, BufferedImage.TYPE_INT_ARGB);
+		for (int y = cy; y < cy+ch; y++) {
+			for (int x = cx; x < cx+cw; x++) {
+				expected.setRGB(x, y, layer.getRGB(x, y));
+			}
+		}
+		assertArrayEquals(TestImages.rgba(expected), TestImages.decode(file).pixels());
+	}
+	
+	@ParameterizedTest
+	@ValueSource(ints = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_INDEXED})
+	void subimageIsReadAtItsOffset(int type) throws IOException {
+		var img = convert(TestImages.argb(), type);
+		var sub = img.getSubimage(5, 9, 31, 20);
+		assertArrayEquals(TestImages.rgba(sub), TestImages.decode(TestImages.lossless(sub).encode()).pixels());
+	}
+	
+	@Test
+	void grayCropCopiesOnlyTheRegion() throws IOException {
+		var img = new BufferedImage(W, H, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		for (int y = 0; y < H; y++) {
+			for (int x = 0; x < W; x++) {
+				raster.setSample(x, y, 0, ((x*7)+(y*13))&0xFF);
+			}
+		}
+		// a narrow crop of a wide raster, so the rows get packed rather than copied with their gaps
+		var sub = img.getSubimage(40, 3, 9, 30);
+		byte[] file = JXLEncoder.create()
+				.size(9, 30)
+				.bitsPerSample(8)
+				.numChannels(1, 0)
+				.colorEncoding(JXLPredefinedColorEncoding.SRGB_GRAY)
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(sub)
+				.encode();
+		byte[] expected = new byte[9*30];
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 9; x++) {
+				expected[(y*9)+x] = (byte)raster.getSample(40+x, 3+y, 0);
+			}
+		}
+		assertArrayEquals(expected, TestImages.decode(file, 1, JXLDataType.UINT8).pixels());
+	}
+	
+	@Test
+	void cropOutsideImageIsRejected() {
+		var img = TestImages.argb();
+		try (var enc = TestImages.rgbaEncoder(W, H)) {
+			var frame = enc.newFrame().crop(W-10, 0, 20, 10);
+			assertThrows(IllegalArgumentException.class, () -> frame.commit(img));
+		}
+	}
+	
+}
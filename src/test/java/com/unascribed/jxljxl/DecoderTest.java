@@ -0,0 +1,164 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class DecoderTest {
+
+	/**
+	 * Hands out at most a few bytes per read, like a slow network connection.
+	 */
+	private static InputStream trickle(byte[] data) {
+		return new FilterInputStream(new ByteArrayInputStream(data)) {
+			int n = 0;
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 1+(n++%7)));
+			}
+		};
+	}
+	
+	private static TestImages.Decoded decode(JXLDecoder decoder, InputStream in) throws IOException {
+		var listener = new TestImages.Collector();
+		decoder.pixelFormat(4, JXLDataType.UINT8).decode(in, listener);
+		return new TestImages.Decoded(listener.info, listener.frames);
+	}
+	
+	@Test
+	void streamsAndChannelsRoundTrip() throws IOException {
+		var img = TestImages.noise(300, 200, 1);
+		byte[] file = TestImages.lossless(img).encode();
+		byte[] expected = TestImages.rgba(img);
+		assertArrayEquals(expected, decode(JXLDecoder.create(), new ByteArrayInputStream(file)).pixels());
+		var listener = new TestImages.Collector();
+		JXLDecoder.create().pixelFormat(4, JXLDataType.UINT8).decode(Channels.newChannel(new ByteArrayInputStream(file)), listener);
+		assertArrayEquals(expected, listener.frames.get(0));
+	}
+	
+	@Test
+	void tinyWindowAndShortReads() throws IOException {
+		var img = TestImages.noise(300, 200, 2);
+		byte[] file = TestImages.lossless(img).encode();
+		var res = decode(JXLDecoder.create().inputWindow(16), trickle(file));
+		assertEquals(300, res.info().xsize());
+		assertEquals(200, res.info().ysize());
+		assertArrayEquals(TestImages.rgba(img), res.pixels());
+	}
+	
+	@Test
+	void pooledDecodersAreReused() throws IOException {
+		var img = TestImages.argb();
+		byte[] file = TestImages.lossless(img).encode();
+		var pool = new JXLDecoderPool(1);
+		var decoder = JXLDecoder.create().pool(pool);
+		assertEquals(0, pool.idleCount());
+		for (int i = 0; i < 3; i++) {
+			// a reset decoder must not remember anything from the last image
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(decoder, MemorySegment.ofArray(file)).pixels());
+			assertEquals(1, pool.idleCount());
+		}
+		assertEquals(TestImages.WIDTH, decoder.probe(MemorySegment.ofArray(file)).xsize());
+		assertEquals(1, pool.idleCount());
+		pool.close();
+		assertEquals(0, pool.idleCount());
+		assertThrows(IllegalStateException.class, () -> TestImages.decode(decoder, MemorySegment.ofArray(file)));
+	}
+	
+	@Test
+	void pooledDecoderSurvivesAFailure() throws IOException {
+		var img = TestImages.argb();
+		byte[] file = TestImages.lossless(img).encode();
+		try (var pool = new JXLDecoderPool(1)) {
+			var decoder = JXLDecoder.create().pool(pool);
+			byte[] truncated = Arrays.copyOf(file, file.length/2);
+			assertThrows(JXLException.class, () -> TestImages.decode(decoder, MemorySegment.ofArray(truncated)));
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(decoder, MemorySegment.ofArray(file)).pixels());
+		}
+	}
+	
+	@Test
+	void truncatedFilesFail() throws IOException {
+		byte[] file = TestImages.lossless(TestImages.noise(100, 100, 3)).encode();
+		byte[] truncated = Arrays.copyOf(file, file.length-10);
+		assertThrows(JXLException.class, () -> TestImages.decode(truncated));
+		assertThrows(JXLException.class, () -> decode(JXLDecoder.create(), new ByteArrayInputStream(truncated)));
+		assertThrows(JXLException.class, () -> TestImages.decode(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+	}
+	
+	@Test
+	void listenerErrorsPropagate() throws IOException {
+		byte[] file = TestImages.lossless(TestImages.argb()).encode();
+		var e = assertThrows(IOException.class, () -> JXLDecoder.create().decode(MemorySegment.ofArray(file), new JXLDecoder.JXLDecodeListener() {
+			@Override
+			public void imageInfo(JXLImageInfo info) throws IOException {
+				throw new IOException("listener failed");
+			}
+		}));
+		assertEquals("listener failed", e.getMessage());
+	}
+	
+	@Test
+	void exceedingTheBudgetFailsTheDecode() throws IOException {
+		byte[] file = TestImages.lossless(TestImages.noise(256, 256, 4)).encode();
+		var mm = new JXLMemoryManager(4096);
+		var decoder = JXLDecoder.create().memoryManager(mm);
+		var e = assertThrows(JXLException.class, () -> TestImages.decode(decoder, MemorySegment.ofArray(file)));
+		assertTrue(e.getMessage().contains("budget of 4096 bytes exceeded"), e.getMessage());
+		assertTrue(mm.failedAllocations() > 0);
+		assertEquals(0, mm.liveBytes());
+	}
+	
+	@Test
+	void nonBlockingChannelIsRejected() throws IOException {
+		var pipe = Pipe.open();
+		try (var source = pipe.source(); var sink = pipe.sink()) {
+			source.configureBlocking(false);
+			var decoder = JXLDecoder.create();
+			assertThrows(IllegalArgumentException.class, () -> decoder.decode(source, new TestImages.Collector()));
+			assertThrows(IllegalArgumentException.class, () -> decoder.probe(source));
+		}
+	}
+	
+	@Test
+	void invalidSettingsAreRejected() {
+		var decoder = JXLDecoder.create();
+		assertThrows(IllegalArgumentException.class, () -> decoder.inputWindow(0));
+		assertThrows(IllegalArgumentException.class, () -> decoder.pixelFormat(5, JXLDataType.UINT8));
+		assertThrows(IllegalArgumentException.class, () -> new JXLDecoderPool(-1));
+	}
+	
+}
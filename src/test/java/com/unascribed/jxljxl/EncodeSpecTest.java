@@ -0,0 +1,135 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+class EncodeSpecTest {
+
+	private static final int W = TestImages.WIDTH;
+	private static final int H = TestImages.HEIGHT;
+	
+	private static JXLEncodeSpec losslessSpec() {
+		var enc = TestImages.rgbaEncoder(W, H);
+		enc.frameDefaults().distance(0).effort(1);
+		return enc.toSpec();
+	}
+	
+	@Test
+	void specIsReusable() throws Exception {
+		var spec = losslessSpec();
+		assertEquals(W, spec.xsize());
+		assertEquals(H, spec.ysize());
+		for (int i = 0; i < 3; i++) {
+			var img = TestImages.noise(W, H, i);
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(spec.encode(img)).pixels());
+		}
+	}
+	
+	@Test
+	void specIsSharedBetweenThreads() throws Exception {
+		var spec = losslessSpec();
+		var exec = Executors.newFixedThreadPool(4);
+		try {
+			var futures = new ArrayList<CompletableFuture<byte[]>>();
+			for (int i = 0; i < 8; i++) {
+				var img = TestImages.noise(W, H, i);
+				futures.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return spec.newEncoder().runner(JXLRunner.none()).newFrame().commit(img).encode();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}, exec));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				assertArrayEquals(TestImages.rgba(TestImages.noise(W, H, i)), TestImages.decode(futures.get(i).get()).pixels());
+			}
+		} finally {
+			exec.shutdown();
+		}
+	}
+	
+	@Test
+	void boxesAreCopiedIntoTheSpec() throws Exception {
+		byte[] contents = {1, 2, 3, 4, 5};
+		JXLEncodeSpec spec;
+		try (var arena = Arena.openConfined()) {
+			var seg = arena.allocate(contents.length);
+			seg.copyFrom(MemorySegment.ofArray(contents));
+			var enc = TestImages.rgbaEncoder(W, H);
+			enc.frameDefaults().distance(0).effort(1);
+			enc.addBox("abcd").commit(seg);
+			spec = enc.toSpec();
+		}
+		// the memory the box was committed with is gone, but the spec has its own copy
+		byte[][] found = {null};
+		var listener = new TestImages.Collector() {
+			@Override
+			public void box(String type, MemorySegment data) {
+				if (type.equals("abcd")) found[0] = data.toArray(ValueLayout.JAVA_BYTE);
+			}
+		};
+		for (int i = 0; i < 2; i++) {
+			found[0] = null;
+			JXLDecoder.create().boxes(true).decode(MemorySegment.ofArray(spec.encode(TestImages.argb())), listener);
+			assertArrayEquals(contents, found[0]);
+		}
+	}
+	
+	@Test
+	void encodersFromASpecCanBeChanged() throws Exception {
+		var spec = losslessSpec();
+		var small = TestImages.argb(W/2, H/2);
+		byte[] res = spec.newEncoder().size(W/2, H/2).newFrame().commit(small).encode();
+		assertArrayEquals(TestImages.rgba(small), TestImages.decode(res).pixels());
+		// and the spec itself is unaffected
+		var img = TestImages.argb();
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(spec.encode(img)).pixels());
+	}
+	
+	@Test
+	void toSpecClosesTheEncoder() {
+		var enc = TestImages.rgbaEncoder(W, H);
+		enc.toSpec();
+		assertThrows(IllegalStateException.class, () -> enc.newFrame().commit(TestImages.argb()));
+	}
+	
+	@Test
+	void toSpecRefusesCommittedFrames() {
+		try (var enc = TestImages.lossless(TestImages.argb())) {
+			assertThrows(IllegalStateException.class, enc::toSpec);
+		}
+	}
+	
+}
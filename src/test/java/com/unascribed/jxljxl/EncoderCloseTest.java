@@ -0,0 +1,71 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class EncoderCloseTest {
+
+	@Test
+	void closeDropsCommittedFrames() {
+		var enc = TestImages.lossless(TestImages.argb());
+		assertEquals(1, enc.frames.size());
+		enc.close();
+		assertTrue(enc.frames.isEmpty());
+		// closing again is harmless
+		enc.close();
+	}
+	
+	@Test
+	void closedEncoderCannotBeUsed() {
+		var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT);
+		enc.close();
+		assertThrows(IllegalStateException.class, () -> enc.newFrame().commit(TestImages.argb()));
+		assertThrows(IllegalStateException.class, enc::encode);
+	}
+	
+	@Test
+	void encodingClosesTheEncoder() throws IOException {
+		var enc = TestImages.lossless(TestImages.argb());
+		enc.encode();
+		assertTrue(enc.frames.isEmpty());
+		assertThrows(IllegalStateException.class, enc::encode);
+	}
+	
+	@Test
+	void failedEncodeStillCloses() {
+		// libjxl rejects bit depths over 24 for integer samples
+		var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)
+				.bitsPerSample(40)
+				.newFrame()
+					.commit(TestImages.argb());
+		assertThrows(JXLException.class, enc::encode);
+		assertThrows(IllegalStateException.class, enc::encode);
+	}
+	
+}
@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class EncoderPoolTest {
+
+	@Test
+	void encoderIsReturnedAndReused() throws IOException {
+		try (var pool = new JXLEncoderPool(2)) {
+			assertEquals(0, pool.idleCount());
+			TestImages.lossless(TestImages.argb()).pool(pool).encode();
+			assertEquals(1, pool.idleCount());
+			TestImages.lossless(TestImages.argb()).pool(pool).encode();
+			assertEquals(1, pool.idleCount());
+		}
+	}
+	
+	@Test
+	void resetEncoderKeepsNoSettings() throws IOException {
+		var first = TestImages.argb(30, 20);
+		var second = TestImages.argb(17, 41);
+		byte[] expected = TestImages.lossless(second).runner(JXLRunner.none()).encode();
+		try (var pool = new JXLEncoderPool(1)) {
+			// a lossy encode with a container and a box, none of which should leak into the next
+			TestImages.rgbaEncoder(30, 20)
+				.withContainer()
+				.addBox("test").commit(new byte[] {1, 2, 3})
+				.pool(pool)
+				.runner(JXLRunner.none())
+				.newFrame()
+					.distance(3)
+					.commit(first)
+				.encode();
+			byte[] pooled = TestImages.lossless(second).pool(pool).runner(JXLRunner.none()).encode();
+			assertArrayEquals(expected, pooled);
+		}
+	}
+	
+	@Test
+	void zeroIdleDestroysEncoders() throws IOException {
+		try (var pool = new JXLEncoderPool(0)) {
+			TestImages.lossless(TestImages.argb()).pool(pool).encode();
+			assertEquals(0, pool.idleCount());
+		}
+	}
+	
+	@Test
+	void closedPoolRefusesEncodes() throws IOException {
+		var pool = new JXLEncoderPool(1);
+		TestImages.lossless(TestImages.argb()).pool(pool).encode();
+		pool.close();
+		assertEquals(0, pool.idleCount());
+		assertThrows(IllegalStateException.class, () -> TestImages.lossless(TestImages.argb()).pool(pool).encode());
+	}
+	
+}
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileOutputTest {
+
+	@TempDir
+	Path dir;
+	
+	@Test
+	void fileMatchesByteArray() throws IOException {
+		var img = TestImages.argb();
+		byte[] expected = TestImages.lossless(img).runner(JXLRunner.none()).encode();
+		var file = dir.resolve("out.jxl");
+		TestImages.lossless(img).runner(JXLRunner.none()).encodeToFile(file);
+		assertArrayEquals(expected, Files.readAllBytes(file));
+	}
+	
+	@Test
+	void existingFileIsReplacedAndTruncated() throws IOException {
+		var file = dir.resolve("out.jxl");
+		Files.write(file, new byte[1024*1024]);
+		var img = TestImages.argb();
+		TestImages.lossless(img).encodeToFile(file);
+		assertTrue(Files.size(file) < 1024*1024);
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(Files.readAllBytes(file)).pixels());
+	}
+	
+	@Test
+	void outputSpanningSeveralWindowsRoundTrips() throws IOException {
+		// well past the first 1 MiB mapping
+		var img = TestImages.noise(1024, 1024, 2);
+		var file = dir.resolve("big.jxl");
+		TestImages.lossless(img).encodeToFile(file);
+		assertTrue(Files.size(file) > 2*1024*1024);
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(Files.readAllBytes(file)).pixels());
+	}
+	
+}
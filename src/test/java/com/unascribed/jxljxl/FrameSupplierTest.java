@@ -0,0 +1,100 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.unascribed.jxljxl.JXLFrameBuilder.JXLByteOrder;
+
+class FrameSupplierTest {
+
+	private static final int W = TestImages.WIDTH;
+	private static final int H = TestImages.HEIGHT;
+	
+	@Test
+	void framesAreRenderedInOrderIntoOneBuffer() throws IOException {
+		var imgs = new BufferedImage[] {TestImages.noise(W, H, 1), TestImages.argb(), TestImages.noise(W, H, 2)};
+		List<Integer> calls = new ArrayList<>();
+		List<Long> addresses = new ArrayList<>();
+		var enc = TestImages.rgbaEncoder(W, H)
+				.withAnimation(10, 1).loopInfinitely().done();
+		enc.frameDefaults().distance(0).effort(1);
+		for (int i = 0; i < imgs.length; i++) {
+			int idx = i;
+			enc.newFrame(1).commit(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, dest -> {
+				calls.add(idx);
+				addresses.add(dest.address());
+				assertEquals(W*H*4L, dest.byteSize());
+				MemorySegment.copy(MemorySegment.ofArray(TestImages.rgba(imgs[idx])), 0, dest, 0, dest.byteSize());
+			});
+		}
+		assertTrue(calls.isEmpty());
+		var decoded = TestImages.decode(enc.encode());
+		assertEquals(List.of(0, 1, 2), calls);
+		assertEquals(1, addresses.stream().distinct().count());
+		assertEquals(imgs.length, decoded.frames().size());
+		for (int i = 0; i < imgs.length; i++) {
+			assertArrayEquals(TestImages.rgba(imgs[i]), decoded.frames().get(i));
+		}
+	}
+	
+	@Test
+	void supplierIsCalledImmediatelyWhenStreaming() throws IOException {
+		var img = TestImages.argb();
+		boolean[] called = {false};
+		var out = new ByteArrayOutputStream();
+		var enc = TestImages.rgbaEncoder(W, H).streamTo(out);
+		enc.newFrame()
+			.distance(0)
+			.effort(1)
+			.commit(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, dest -> {
+				called[0] = true;
+				MemorySegment.copy(MemorySegment.ofArray(TestImages.rgba(img)), 0, dest, 0, dest.byteSize());
+			});
+		assertTrue(called[0]);
+		enc.finishStream();
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(out.toByteArray()).pixels());
+	}
+	
+	@Test
+	void supplierErrorsPropagate() {
+		var enc = TestImages.rgbaEncoder(W, H)
+				.newFrame()
+					.commit(4, JXLDataType.UINT8, JXLByteOrder.NATIVE, 0, dest -> {
+						throw new IOException("supplier failed");
+					});
+		var e = assertThrows(IOException.class, enc::encode);
+		assertEquals("supplier failed", e.getMessage());
+	}
+	
+}
@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class JavaRunnerTest {
+
+	@Test
+	void parallelismComesFromPool() {
+		var pool = new ForkJoinPool(3);
+		try (var runner = JXLRunner.of(pool)) {
+			assertEquals(3, runner.threads());
+		} finally {
+			pool.shutdown();
+		}
+		assertThrows(IllegalArgumentException.class, () -> JXLRunner.of(ForkJoinPool.commonPool(), 0));
+	}
+	
+	@Test
+	void workIsHandedToTheExecutor() throws IOException {
+		var tasks = new AtomicInteger();
+		Executor counting = r -> {
+			tasks.incrementAndGet();
+			ForkJoinPool.commonPool().execute(r);
+		};
+		var img = TestImages.noise(512, 512, 5);
+		try (var runner = JXLRunner.of(counting, 4)) {
+			byte[] res = TestImages.lossless(img).runner(runner).encode();
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(res).pixels());
+		}
+		assertTrue(tasks.get() > 0, "expected libjxl's parallel sections to reach the executor");
+	}
+	
+	@Test
+	void runnerCanBeSharedByConcurrentEncodes() throws Exception {
+		var img = TestImages.noise(256, 256, 6);
+		try (var runner = JXLRunner.of(ForkJoinPool.commonPool(), 4)) {
+			var futures = new CompletableFuture<?>[4];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = CompletableFuture.supplyAsync(() -> {
+					try {
+						return TestImages.lossless(img).runner(runner).encode();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+			}
+			for (var f : futures) {
+				assertArrayEquals(TestImages.rgba(img), TestImages.decode((byte[])f.get()).pixels());
+			}
+		}
+	}
+	
+}
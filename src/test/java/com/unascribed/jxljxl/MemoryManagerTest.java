@@ -0,0 +1,76 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class MemoryManagerTest {
+
+	@Test
+	void allocationsAreTrackedAndFreed() throws IOException {
+		var mm = new JXLMemoryManager();
+		var img = TestImages.argb();
+		byte[] res = TestImages.lossless(img).memoryManager(mm).encode();
+		assertTrue(mm.allocations() > 0);
+		assertTrue(mm.peakBytes() > 0);
+		assertEquals(0, mm.liveBytes(), "the encoder should have been destroyed along with everything it allocated");
+		assertEquals(0, mm.failedAllocations());
+		assertEquals(Long.MAX_VALUE, mm.budget());
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(res).pixels());
+		mm.resetPeak();
+		assertEquals(0, mm.peakBytes());
+	}
+	
+	@Test
+	void pooledEncodersKeepTheirMemory() throws IOException {
+		var mm = new JXLMemoryManager();
+		try (var pool = new JXLEncoderPool(1, mm)) {
+			TestImages.lossless(TestImages.argb()).pool(pool).encode();
+			assertTrue(mm.liveBytes() > 0);
+			pool.close();
+			assertEquals(0, mm.liveBytes());
+		}
+	}
+	
+	@Test
+	void exceedingTheBudgetFailsTheEncode() {
+		var mm = new JXLMemoryManager(4096);
+		var enc = TestImages.lossless(TestImages.noise(256, 256, 8)).memoryManager(mm);
+		var e = assertThrows(JXLException.class, enc::encode);
+		assertTrue(e.getMessage().contains("budget of 4096 bytes exceeded"), e.getMessage());
+		assertTrue(mm.failedAllocations() > 0);
+		assertTrue(mm.peakBytes() <= 4096);
+		assertEquals(0, mm.liveBytes());
+	}
+	
+	@Test
+	void budgetMustBePositive() {
+		assertThrows(IllegalArgumentException.class, () -> new JXLMemoryManager(0));
+	}
+	
+}
@@ -0,0 +1,81 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PathDecodeTest {
+
+	@TempDir
+	Path dir;
+	
+	private static TestImages.Decoded decode(Path file) throws IOException {
+		var listener = new TestImages.Collector();
+		JXLDecoder.create().pixelFormat(4, JXLDataType.UINT8).decode(file, listener);
+		return new TestImages.Decoded(listener.info, listener.frames);
+	}
+	
+	@Test
+	void mappedFileRoundTrips() throws IOException {
+		var img = TestImages.noise(300, 200, 1);
+		var file = dir.resolve("noise.jxl");
+		TestImages.lossless(img).encodeToFile(file);
+		var res = decode(file);
+		assertEquals(300, res.info().xsize());
+		assertArrayEquals(TestImages.rgba(img), res.pixels());
+		// the mapping is gone once the decode returns, so the file can be replaced right away
+		var other = TestImages.argb();
+		TestImages.lossless(other).encodeToFile(file);
+		assertArrayEquals(TestImages.rgba(other), decode(file).pixels());
+	}
+	
+	@Test
+	void truncatedFileFails() throws IOException {
+		byte[] data = TestImages.lossless(TestImages.noise(100, 100, 2)).encode();
+		var file = dir.resolve("truncated.jxl");
+		Files.write(file, Arrays.copyOf(data, data.length-10));
+		assertThrows(JXLException.class, () -> decode(file));
+	}
+	
+	@Test
+	void emptyFileFails() throws IOException {
+		var file = Files.createFile(dir.resolve("empty.jxl"));
+		assertThrows(JXLException.class, () -> decode(file));
+	}
+	
+	@Test
+	void missingFileFails() {
+		assertThrows(NoSuchFileException.class, () -> decode(dir.resolve("missing.jxl")));
+	}
+	
+}
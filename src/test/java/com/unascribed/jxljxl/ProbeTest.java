@@ -0,0 +1,108 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProbeTest {
+
+	@TempDir
+	Path dir;
+	
+	private static void assertHeader(JXLImageInfo info) {
+		assertEquals(300, info.xsize());
+		assertEquals(200, info.ysize());
+		assertEquals(8, info.bitsPerSample());
+		assertEquals(3, info.numColorChannels());
+		assertEquals(8, info.alphaBits());
+		assertFalse(info.haveAnimation());
+		assertTrue(info.usesOriginalProfile());
+		assertNotNull(info.colorEncoding());
+	}
+	
+	@Test
+	void everySourceReadsTheHeader() throws IOException {
+		byte[] file = TestImages.lossless(TestImages.noise(300, 200, 1)).encode();
+		var path = dir.resolve("noise.jxl");
+		Files.write(path, file);
+		var decoder = JXLDecoder.create();
+		assertHeader(decoder.probe(path));
+		assertHeader(decoder.probe(new ByteArrayInputStream(file)));
+		assertHeader(decoder.probe(MemorySegment.ofArray(file)));
+		try (var arena = Arena.openConfined()) {
+			var seg = arena.allocate(file.length);
+			seg.copyFrom(MemorySegment.ofArray(file));
+			assertHeader(decoder.probe(seg));
+		}
+		try (var pool = new JXLDecoderPool(1)) {
+			assertHeader(decoder.pool(pool).probe(path));
+			assertEquals(1, pool.idleCount());
+		}
+	}
+	
+	@Test
+	void probeReadsOnlyTheStartOfAStream() throws IOException {
+		// noise doesn't compress, so this is far bigger than a probe should ever read
+		byte[] file = TestImages.lossless(TestImages.noise(300, 200, 2)).encode();
+		var in = new ByteArrayInputStream(file);
+		assertHeader(JXLDecoder.create().probe(in));
+		int consumed = file.length-in.available();
+		assertTrue(consumed > 0);
+		assertTrue(consumed <= 4096, "probe read "+consumed+" of "+file.length+" bytes");
+	}
+	
+	@Test
+	void probeSeesAnimation() throws IOException {
+		var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)
+				.withAnimation(30, 1).loop(3).done();
+		enc.frameDefaults().distance(0).effort(1);
+		enc.newFrame(1).commit(TestImages.argb());
+		enc.newFrame(1).commit(TestImages.argb());
+		var info = JXLDecoder.create().probe(MemorySegment.ofArray(enc.encode()));
+		assertTrue(info.haveAnimation());
+		assertEquals(30, info.tpsNumerator());
+		assertEquals(1, info.tpsDenominator());
+		assertEquals(3, info.numLoops());
+	}
+	
+	@Test
+	void truncatedHeaderFails() throws IOException {
+		byte[] file = TestImages.lossless(TestImages.argb()).encode();
+		byte[] truncated = Arrays.copyOf(file, 4);
+		assertThrows(JXLException.class, () -> JXLDecoder.create().probe(new ByteArrayInputStream(truncated)));
+		assertThrows(JXLException.class, () -> JXLDecoder.create().probe(MemorySegment.ofArray(truncated)));
+	}
+	
+}
@@ -0,0 +1,132 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.unascribed.jxljxl.JXLDecoder.JXLDecodeListener;
+import com.unascribed.jxljxl.JXLDecoder.JXLProgressiveDetail;
+
+class ProgressiveTest {
+
+	private static final int SIZE = 512;
+	
+	/**
+	 * Records every call, in order, as "progress N" or "image".
+	 */
+	private static final class Recorder implements JXLDecodeListener {
+		final List<String> calls = new ArrayList<>();
+		int firstDownsampling = -1;
+		long progressSize = -1;
+		long imageSize = -1;
+		
+		@Override
+		public void progress(JXLFrameInfo frame, MemorySegment pixels, List<MemorySegment> extraChannels, int downsampling) {
+			calls.add("progress "+downsampling);
+			if (firstDownsampling == -1) firstDownsampling = downsampling;
+			progressSize = pixels.byteSize();
+		}
+		
+		@Override
+		public void image(JXLFrameInfo frame, MemorySegment pixels, List<MemorySegment> extraChannels) {
+			calls.add("image");
+			imageSize = pixels.byteSize();
+		}
+	}
+	
+	/**
+	 * Hands out the file a kilobyte at a time, so libjxl gets to stop partway through each frame.
+	 */
+	private static InputStream slow(byte[] data) {
+		return new FilterInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 1024));
+			}
+		};
+	}
+	
+	private static byte[] lossy() throws IOException {
+		return TestImages.rgbaEncoder(SIZE, SIZE)
+				.newFrame()
+					.distance(1)
+					.effort(3)
+					.commit(TestImages.argb(SIZE, SIZE))
+				.encode();
+	}
+	
+	@Test
+	void progressComesBeforeTheImage() throws IOException {
+		byte[] file = lossy();
+		var rec = new Recorder();
+		JXLDecoder.create()
+			.pixelFormat(4, JXLDataType.UINT8)
+			.progressive(JXLProgressiveDetail.DC)
+			.inputWindow(1024)
+			.decode(slow(file), rec);
+		assertTrue(rec.calls.size() >= 2, rec.calls.toString());
+		assertEquals("image", rec.calls.get(rec.calls.size()-1));
+		assertEquals(1, rec.calls.stream().filter("image"::equals).count());
+		// the first render is from the DC, well before full detail
+		assertTrue(rec.calls.get(0).startsWith("progress "), rec.calls.toString());
+		assertTrue(rec.firstDownsampling > 1, rec.calls.toString());
+		// and renders go into the same buffer the final image does
+		assertEquals(SIZE*SIZE*4L, rec.progressSize);
+		assertEquals(rec.imageSize, rec.progressSize);
+	}
+	
+	@Test
+	void noProgressByDefault() throws IOException {
+		byte[] file = lossy();
+		var rec = new Recorder();
+		JXLDecoder.create()
+			.pixelFormat(4, JXLDataType.UINT8)
+			.inputWindow(1024)
+			.decode(slow(file), rec);
+		assertEquals(List.of("image"), rec.calls);
+	}
+	
+	@Test
+	void progressiveDecodeGivesTheSameImage() throws IOException {
+		byte[] file = lossy();
+		var plain = TestImages.decode(file).pixels();
+		var listener = new TestImages.Collector();
+		JXLDecoder.create()
+			.pixelFormat(4, JXLDataType.UINT8)
+			.progressive(JXLProgressiveDetail.PASSES)
+			.decode(slow(file), listener);
+		assertArrayEquals(plain, listener.frames.get(0));
+	}
+	
+}
@@ -0,0 +1,168 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Point;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import org.junit.jupiter.api.Test;
+
+class RasterTest {
+
+	private static final int W = TestImages.WIDTH;
+	private static final int H = TestImages.HEIGHT;
+	
+	private static JXLEncoder rgbEncoder(int bits) {
+		return JXLEncoder.create()
+				.size(W, H)
+				.bitsPerSample(bits)
+				.numChannels(3, 0)
+				.colorEncoding(JXLPredefinedColorEncoding.SRGB);
+	}
+	
+	private static JXLEncoder floatEncoder() {
+		return JXLEncoder.create()
+				.size(W, H)
+				.bitsPerSample(32)
+				.withFloatingSamples(8)
+				.numChannels(3, 0)
+				.colorEncoding(JXLPredefinedColorEncoding.LINEAR_SRGB);
+	}
+	
+	private static byte[] encode(JXLEncoder enc, Raster raster) throws IOException {
+		return enc.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(raster)
+				.encode();
+	}
+	
+	private static short[] fillUShort(WritableRaster raster) {
+		short[] expected = new short[W*H*3];
+		for (int y = 0; y < H; y++) {
+			for (int x = 0; x < W; x++) {
+				for (int b = 0; b < 3; b++) {
+					int v = ((x*977)+(y*4099)+(b*12345))&0xFFFF;
+					raster.setSample(x, y, b, v);
+					expected[(((y*W)+x)*3)+b] = (short)v;
+				}
+			}
+		}
+		return expected;
+	}
+	
+	private static short[] decodeUShort(byte[] file) throws IOException {
+		byte[] decoded = TestImages.decode(file, 3, JXLDataType.UINT16).pixels();
+		return MemorySegment.ofArray(decoded).toArray(ValueLayout.JAVA_SHORT_UNALIGNED);
+	}
+	
+	@Test
+	void ushortKeepsSixteenBits() throws IOException {
+		var raster = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, W, H, 3, null);
+		short[] expected = fillUShort(raster);
+		assertArrayEquals(expected, decodeUShort(encode(rgbEncoder(16), raster)));
+	}
+	
+	@Test
+	void bandedRasterIsInterleaved() throws IOException {
+		// each band in its own bank, which can't be copied in one go
+		var raster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_USHORT, W, H, 3), null);
+		short[] expected = fillUShort(raster);
+		assertArrayEquals(expected, decodeUShort(encode(rgbEncoder(16), raster)));
+	}
+	
+	@Test
+	void floatAndDoubleSamples() throws IOException {
+		float[] expected = new float[W*H*3];
+		var floats = Raster.createWritableRaster(new PixelInterleavedSampleModel(DataBuffer.TYPE_FLOAT, W, H, 3, W*3, new int[] {0, 1, 2}), null);
+		var doubles = Raster.createWritableRaster(new PixelInterleavedSampleModel(DataBuffer.TYPE_DOUBLE, W, H, 3, W*3, new int[] {0, 1, 2}), null);
+		for (int y = 0; y < H; y++) {
+			for (int x = 0; x < W; x++) {
+				for (int b = 0; b < 3; b++) {
+					double v = ((x+1)*(y+1)*(b+1))/(double)(W*H*3);
+					floats.setSample(x, y, b, (float)v);
+					doubles.setSample(x, y, b, v);
+					expected[(((y*W)+x)*3)+b] = (float)v;
+				}
+			}
+		}
+		for (var raster : new Raster[] {floats, doubles}) {
+			byte[] decoded = TestImages.decode(encode(floatEncoder(), raster), 3, JXLDataType.FLOAT32).pixels();
+			assertArrayEquals(expected, MemorySegment.ofArray(decoded).toArray(ValueLayout.JAVA_FLOAT_UNALIGNED));
+		}
+	}
+	
+	@Test
+	void translatedRasterStartsAtItsMinimum() throws IOException {
+		var raster = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, W, H, 3, new Point(-5, 10));
+		short[] expected = new short[W*H*3];
+		for (int y = 0; y < H; y++) {
+			for (int x = 0; x < W; x++) {
+				for (int b = 0; b < 3; b++) {
+					int v = ((x*31)+(y*1009)+b)&0xFFFF;
+					raster.setSample(x-5, y+10, b, v);
+					expected[(((y*W)+x)*3)+b] = (short)v;
+				}
+			}
+		}
+		assertArrayEquals(expected, decodeUShort(encode(rgbEncoder(16), raster)));
+	}
+	
+	@Test
+	void packedRasterIsRejected() {
+		var raster = TestImages.argb().getRaster();
+		try (var enc = TestImages.rgbaEncoder(W, H)) {
+			var frame = enc.newFrame();
+			assertThrows(IllegalArgumentException.class, () -> frame.commit(raster));
+		}
+	}
+	
+	@Test
+	void tooManyBandsIsRejected() {
+		var raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, W, H, 5, null);
+		try (var enc = TestImages.rgbaEncoder(W, H)) {
+			var frame = enc.newFrame();
+			assertThrows(IllegalArgumentException.class, () -> frame.commit(raster));
+		}
+	}
+	
+	@Test
+	void smallRasterIsRejected() {
+		var raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, W-1, H, 4, null);
+		try (var enc = TestImages.rgbaEncoder(W, H)) {
+			var frame = enc.newFrame();
+			assertThrows(IllegalArgumentException.class, () -> frame.commit(raster));
+		}
+	}
+	
+}
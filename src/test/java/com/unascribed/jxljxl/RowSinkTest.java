@@ -0,0 +1,159 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.unascribed.jxljxl.JXLDecoder.JXLDecodeListener;
+import com.unascribed.jxljxl.JXLDecoder.JXLRowSink;
+
+class RowSinkTest {
+
+	/**
+	 * Reassembles a frame from the runs it's given, counting how many times each pixel arrives.
+	 */
+	private static final class Canvas implements JXLRowSink {
+		final int w;
+		final byte[] rgba;
+		final int[] hits;
+		final List<String> calls = new ArrayList<>();
+		final AtomicInteger badThreadIds = new AtomicInteger();
+		volatile int threads = -1;
+		
+		Canvas(int w, int h) {
+			this.w = w;
+			this.rgba = new byte[w*h*4];
+			this.hits = new int[w*h];
+		}
+		
+		@Override
+		public synchronized void start(int threads) {
+			calls.add("start");
+			this.threads = threads;
+		}
+		
+		@Override
+		public void pixels(int threadId, int x, int y, int numPixels, MemorySegment pixels) {
+			if (threadId < 0 || threadId >= threads) badThreadIds.incrementAndGet();
+			assertEquals(numPixels*4L, pixels.byteSize());
+			synchronized (this) {
+				MemorySegment.copy(pixels, 0, MemorySegment.ofArray(rgba), ((y*(long)w)+x)*4, pixels.byteSize());
+				for (int i = 0; i < numPixels; i++) {
+					hits[(y*w)+x+i]++;
+				}
+			}
+		}
+		
+		@Override
+		public synchronized void end(List<MemorySegment> extraChannels) {
+			calls.add("end");
+		}
+	}
+	
+	@Test
+	void sinkReceivesEveryPixelOnce() throws IOException {
+		var img = TestImages.noise(300, 200, 1);
+		byte[] file = TestImages.lossless(img).encode();
+		var canvas = new Canvas(300, 200);
+		boolean[] imageCalled = {false};
+		try (var runner = JXLRunner.create(4)) {
+			JXLDecoder.create()
+				.runner(runner)
+				.pixelFormat(4, JXLDataType.UINT8)
+				.decode(MemorySegment.ofArray(file), new JXLDecodeListener() {
+					@Override
+					public JXLRowSink rowSink(JXLFrameInfo frame) {
+						return canvas;
+					}
+					
+					@Override
+					public void image(JXLFrameInfo frame, MemorySegment pixels, List<MemorySegment> extraChannels) {
+						imageCalled[0] = true;
+					}
+				});
+		}
+		assertFalse(imageCalled[0]);
+		assertEquals(List.of("start", "end"), canvas.calls);
+		assertTrue(canvas.threads > 0);
+		assertEquals(0, canvas.badThreadIds.get());
+		for (int i = 0; i < canvas.hits.length; i++) {
+			assertEquals(1, canvas.hits[i], "pixel "+i);
+		}
+		assertArrayEquals(TestImages.rgba(img), canvas.rgba);
+	}
+	
+	@Test
+	void sinkIsChosenPerFrame() throws IOException {
+		var first = TestImages.noise(TestImages.WIDTH, TestImages.HEIGHT, 2);
+		var second = TestImages.noise(TestImages.WIDTH, TestImages.HEIGHT, 3);
+		var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)
+				.withAnimation(10, 1).loopInfinitely().done();
+		enc.frameDefaults().distance(0).effort(1);
+		enc.newFrame(1).commit(first);
+		enc.newFrame(1).commit(second);
+		var canvas = new Canvas(TestImages.WIDTH, TestImages.HEIGHT);
+		var listener = new TestImages.Collector() {
+			@Override
+			public JXLRowSink rowSink(JXLFrameInfo frame) {
+				return frame.index() == 0 ? canvas : null;
+			}
+		};
+		JXLDecoder.create()
+			.pixelFormat(4, JXLDataType.UINT8)
+			.decode(MemorySegment.ofArray(enc.encode()), listener);
+		assertEquals(List.of("start", "end"), canvas.calls);
+		assertArrayEquals(TestImages.rgba(first), canvas.rgba);
+		assertEquals(1, listener.frames.size());
+		assertArrayEquals(TestImages.rgba(second), listener.frames.get(0));
+	}
+	
+	@Test
+	void sinkErrorsPropagate() throws IOException {
+		var img = TestImages.argb();
+		byte[] file = TestImages.lossless(img).encode();
+		try (var pool = new JXLDecoderPool(1)) {
+			var decoder = JXLDecoder.create().pool(pool).pixelFormat(4, JXLDataType.UINT8);
+			var e = assertThrows(IOException.class, () -> decoder.decode(MemorySegment.ofArray(file), new JXLDecodeListener() {
+				@Override
+				public JXLRowSink rowSink(JXLFrameInfo frame) {
+					return (threadId, x, y, numPixels, pixels) -> {
+						throw new IOException("sink failed");
+					};
+				}
+			}));
+			assertEquals("sink failed", e.getMessage());
+			// the pooled decoder is still good for the next image
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(decoder, MemorySegment.ofArray(file)).pixels());
+		}
+	}
+	
+}
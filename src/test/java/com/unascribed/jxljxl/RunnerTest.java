@@ -0,0 +1,89 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+class RunnerTest {
+
+	@Test
+	void threadCounts() throws JXLException {
+		try (var runner = JXLRunner.create(3)) {
+			assertEquals(3, runner.threads());
+		}
+		assertEquals(1, JXLRunner.none().threads());
+		assertThrows(IllegalArgumentException.class, () -> JXLRunner.create(0));
+	}
+	
+	@Test
+	void defaultRunnerIsSharedAndPermanent() throws IOException {
+		var runner = JXLRunner.getDefault();
+		assertSame(runner, JXLRunner.getDefault());
+		runner.close();
+		var img = TestImages.argb();
+		assertArrayEquals(TestImages.rgba(img), TestImages.decode(TestImages.lossless(img).runner(runner).encode()).pixels());
+	}
+	
+	@Test
+	void nativeRunnerRoundTrips() throws IOException {
+		var img = TestImages.noise(256, 256, 3);
+		try (var runner = JXLRunner.create(4)) {
+			byte[] res = TestImages.lossless(img).runner(runner).encode();
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(res).pixels());
+		}
+	}
+	
+	@Test
+	void busyNativeRunnerFallsBackToSingleThreaded() throws Exception {
+		var img = TestImages.noise(256, 256, 4);
+		try (var runner = JXLRunner.create(2)) {
+			var futures = new CompletableFuture<?>[4];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = CompletableFuture.supplyAsync(() -> {
+					try {
+						return TestImages.lossless(img).runner(runner).encode();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+			}
+			for (var f : futures) {
+				assertArrayEquals(TestImages.rgba(img), TestImages.decode((byte[])f.get()).pixels());
+			}
+		}
+	}
+	
+	@Test
+	void closedRunnerIsRefused() throws JXLException {
+		var runner = JXLRunner.create(2);
+		runner.close();
+		assertThrows(IllegalStateException.class, () -> TestImages.lossless(TestImages.argb()).runner(runner).encode());
+	}
+	
+}
@@ -0,0 +1,68 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.ValueLayout;
+
+import org.junit.jupiter.api.Test;
+
+class SegmentOutputTest {
+
+	@Test
+	void segmentMatchesByteArray() throws IOException {
+		var img = TestImages.argb();
+		byte[] expected = TestImages.lossless(img).runner(JXLRunner.none()).encode();
+		try (var arena = Arena.openConfined()) {
+			var seg = TestImages.lossless(img).runner(JXLRunner.none()).encodeToSegment(arena);
+			assertTrue(seg.isNative());
+			assertEquals(expected.length, seg.byteSize());
+			assertArrayEquals(expected, seg.toArray(ValueLayout.JAVA_BYTE));
+		}
+	}
+	
+	@Test
+	void outputLargerThanInitialBufferRoundTrips() throws IOException {
+		// noise barely compresses, so this is well past the initial quarter byte per pixel guess
+		var img = TestImages.noise(512, 512, 1);
+		try (var arena = Arena.openConfined()) {
+			var seg = TestImages.lossless(img).encodeToSegment(arena);
+			assertTrue(seg.byteSize() > 512*512/4);
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(seg).pixels());
+		}
+	}
+	
+	@Test
+	void segmentBelongsToCallersArena() throws IOException {
+		var arena = Arena.openConfined();
+		var seg = TestImages.lossless(TestImages.argb()).encodeToSegment(arena);
+		assertEquals(arena.scope(), seg.scope());
+		arena.close();
+		assertThrows(IllegalStateException.class, () -> seg.get(ValueLayout.JAVA_BYTE, 0));
+	}
+	
+}
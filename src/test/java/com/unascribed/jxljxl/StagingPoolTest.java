@@ -0,0 +1,131 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class StagingPoolTest {
+
+	@Test
+	void buffersAreRoundedAndReused() {
+		try (var pool = new JXLStagingPool(1024*1024)) {
+			var buf = pool.borrow(5000);
+			assertEquals(8192, buf.segment.byteSize());
+			long address = buf.segment.address();
+			buf.release();
+			assertEquals(8192, pool.idleBytes());
+			var again = pool.borrow(6000);
+			assertEquals(address, again.segment.address());
+			assertEquals(0, pool.idleBytes());
+			again.release();
+		}
+	}
+	
+	@Test
+	void idleBuffersBeyondTheLimitAreFreed() {
+		try (var pool = new JXLStagingPool(4096)) {
+			var small = pool.borrow(4096);
+			var big = pool.borrow(8192);
+			assertEquals(4096+8192, pool.totalBytes());
+			small.release();
+			big.release();
+			assertEquals(4096, pool.idleBytes());
+			assertEquals(4096, pool.totalBytes());
+		}
+	}
+	
+	@Test
+	void idleBuffersExpire() throws InterruptedException {
+		try (var pool = new JXLStagingPool(1024*1024, 10, TimeUnit.MILLISECONDS)) {
+			pool.borrow(4096).release();
+			Thread.sleep(50);
+			// expiry happens whenever the pool is touched
+			pool.borrow(8192).release();
+			assertEquals(8192, pool.idleBytes());
+		}
+	}
+	
+	@Test
+	void totalLimitFailsBorrowsThatDontFit() {
+		try (var pool = new JXLStagingPool(1024*1024, 64*1024, 30, TimeUnit.SECONDS)) {
+			var a = pool.borrow(32*1024);
+			var b = pool.borrow(32*1024);
+			var e = assertThrows(UncheckedIOException.class, () -> pool.borrow(32*1024));
+			assertInstanceOf(JXLException.class, e.getCause());
+			assertEquals(64*1024, pool.totalBytes());
+			a.release();
+			// the idle buffer is handed back out without counting against the limit again
+			var c = pool.borrow(32*1024);
+			assertEquals(64*1024, pool.totalBytes());
+			b.release();
+			c.release();
+		}
+	}
+	
+	@Test
+	void totalLimitEvictsIdleBuffersToMakeRoom() {
+		try (var pool = new JXLStagingPool(1024*1024, 64*1024, 30, TimeUnit.SECONDS)) {
+			pool.borrow(16*1024).release();
+			pool.borrow(32*1024).release();
+			assertEquals(48*1024, pool.idleBytes());
+			var big = pool.borrow(64*1024);
+			assertEquals(0, pool.idleBytes());
+			assertEquals(64*1024, pool.totalBytes());
+			big.release();
+		}
+	}
+	
+	@Test
+	void closedPoolRefusesBorrows() {
+		var pool = new JXLStagingPool(1024*1024);
+		var buf = pool.borrow(4096);
+		pool.close();
+		buf.release();
+		assertEquals(0, pool.totalBytes());
+		assertThrows(IllegalStateException.class, () -> pool.borrow(4096));
+	}
+	
+	@Test
+	void encoderReturnsBuffersAfterEncode() throws IOException {
+		try (var pool = new JXLStagingPool(16*1024*1024)) {
+			var img = TestImages.argb();
+			byte[] res = TestImages.rgbaEncoder(img.getWidth(), img.getHeight())
+					.stagingPool(pool)
+					.newFrame()
+						.distance(0)
+						.effort(1)
+						.commit(img)
+					.encode();
+			assertTrue(pool.idleBytes() >= img.getWidth()*img.getHeight()*4L);
+			assertArrayEquals(TestImages.rgba(img), TestImages.decode(res).pixels());
+		}
+	}
+	
+}
@@ -0,0 +1,127 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+class StreamingTest {
+
+	private static JXLEncoder animation() {
+		var enc = TestImages.rgbaEncoder(TestImages.WIDTH, TestImages.HEIGHT)
+				.withAnimation(10, 1).loopInfinitely().done();
+		enc.frameDefaults().distance(0).effort(1);
+		return enc;
+	}
+	
+	private static BufferedImage[] frames(int n) {
+		var res = new BufferedImage[n];
+		for (int i = 0; i < n; i++) {
+			res[i] = TestImages.noise(TestImages.WIDTH, TestImages.HEIGHT, 100+i);
+		}
+		return res;
+	}
+	
+	@Test
+	void streamedFramesRoundTrip() throws IOException {
+		var frames = frames(3);
+		var out = new ByteArrayOutputStream();
+		var enc = animation().streamTo(out);
+		int afterHeader = out.size();
+		for (var frame : frames) {
+			int before = out.size();
+			enc.newFrame(1).commit(frame);
+			// each frame is written out as soon as it's committed, not held until the end
+			assertTrue(out.size() > before);
+		}
+		assertTrue(out.size() > afterHeader);
+		enc.finishStream();
+		var decoded = TestImages.decode(out.toByteArray());
+		assertTrue(decoded.info().haveAnimation());
+		assertEquals(frames.length, decoded.frames().size());
+		for (int i = 0; i < frames.length; i++) {
+			assertArrayEquals(TestImages.rgba(frames[i]), decoded.frames().get(i));
+		}
+	}
+	
+	@Test
+	void framesCommittedBeforeStreamingAreSent() throws IOException {
+		var frames = frames(2);
+		var out = new ByteArrayOutputStream();
+		var enc = animation();
+		enc.newFrame(1).commit(frames[0]);
+		enc.streamTo(out);
+		enc.newFrame(1).commit(frames[1]);
+		enc.finishStream();
+		var decoded = TestImages.decode(out.toByteArray());
+		assertEquals(2, decoded.frames().size());
+		assertArrayEquals(TestImages.rgba(frames[0]), decoded.frames().get(0));
+		assertArrayEquals(TestImages.rgba(frames[1]), decoded.frames().get(1));
+	}
+	
+	@Test
+	void framesCanBeCommittedFromAnotherThread() throws Exception {
+		var frames = frames(2);
+		var out = new ByteArrayOutputStream();
+		var enc = animation().streamTo(out);
+		enc.newFrame(1).commit(frames[0]);
+		var exec = Executors.newSingleThreadExecutor();
+		try {
+			exec.submit(() -> enc.newFrame(1).commit(frames[1])).get();
+		} finally {
+			exec.shutdown();
+		}
+		enc.finishStream();
+		var decoded = TestImages.decode(out.toByteArray());
+		assertEquals(2, decoded.frames().size());
+		assertArrayEquals(TestImages.rgba(frames[1]), decoded.frames().get(1));
+	}
+	
+	@Test
+	void misuseIsRefused() throws IOException {
+		var enc = animation().streamTo(new ByteArrayOutputStream());
+		assertThrows(IllegalStateException.class, () -> enc.streamTo(new ByteArrayOutputStream()));
+		assertThrows(IllegalStateException.class, enc::encode);
+		enc.newFrame(1).commit(TestImages.argb());
+		enc.finishStream();
+		assertThrows(IllegalStateException.class, enc::finishStream);
+		assertThrows(IllegalStateException.class, () -> enc.newFrame(1).commit(TestImages.argb()));
+	}
+	
+	@Test
+	void animationFlagFollowsAnimationNotPreview() throws IOException {
+		var enc = animation();
+		enc.newFrame(1).commit(TestImages.argb());
+		enc.newFrame(1).commit(TestImages.argb());
+		assertTrue(TestImages.decode(enc.encode()).info().haveAnimation());
+		assertFalse(TestImages.decode(TestImages.lossless(TestImages.argb()).encode()).info().haveAnimation());
+	}
+	
+}
@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The test task adds jdk.incubator.vector, so these cover the Vector API path when it loads and
+ * the plain loops otherwise; either way, the results must match the scalar reference exactly.
+ */
+class SwizzleTest {
+
+	private static int[] randomInts(int n, long seed) {
+		var rand = new Random(seed);
+		int[] res = new int[n];
+		for (int i = 0; i < n; i++) {
+			res[i] = rand.nextInt();
+		}
+		return res;
+	}
+	
+	@Test
+	void argbToRgbaMatchesScalar() {
+		// odd lengths and offsets, so the vector loop leaves a scalar tail
+		for (int n : new int[] {0, 1, 7, 31, 1001}) {
+			int[] src = randomInts(n+3, n);
+			try (var arena = Arena.openConfined()) {
+				var expected = arena.allocate(n*4L+4);
+				var actual = arena.allocate(n*4L+4);
+				Swizzle.argbToRgbaScalar(src, 3, expected, 4, n);
+				Swizzle.argbToRgba(src, 3, actual, 4, n, false);
+				assertEquals(-1, expected.mismatch(actual), "length "+n);
+				for (int i = 0; i < n; i++) {
+					int p = src[3+i];
+					long o = 4+(i*4L);
+					assertEquals((byte)(p >> 16), actual.get(ValueLayout.JAVA_BYTE, o));
+					assertEquals((byte)(p >> 8), actual.get(ValueLayout.JAVA_BYTE, o+1));
+					assertEquals((byte)p, actual.get(ValueLayout.JAVA_BYTE, o+2));
+					assertEquals((byte)(p >> 24), actual.get(ValueLayout.JAVA_BYTE, o+3));
+				}
+			}
+		}
+	}
+	
+	@Test
+	void parallelConversionMatchesScalar() {
+		// past the parallel threshold, with a partial last chunk
+		int n = 2*1024*1024+12345;
+		int[] src = randomInts(n, 9);
+		try (var arena = Arena.openShared()) {
+			var expected = arena.allocate(n*4L);
+			var actual = arena.allocate(n*4L);
+			Swizzle.argbToRgbaScalar(src, 0, expected, 0, n);
+			Swizzle.argbToRgba(src, actual, true);
+			assertEquals(-1, expected.mismatch(actual));
+		}
+	}
+	
+	@Test
+	void abgrToRgbaMatchesScalar() {
+		for (int n : new int[] {0, 1, 9, 33, 1003}) {
+			byte[] src = new byte[n*4+2];
+			new Random(n).nextBytes(src);
+			try (var arena = Arena.openConfined()) {
+				var expected = arena.allocate(n*4L);
+				var actual = arena.allocate(n*4L);
+				Swizzle.reverseIntsScalar(MemorySegment.ofArray(src), 2, expected, 0, n);
+				Swizzle.abgrToRgba(src, 2, actual, 0, n);
+				assertEquals(-1, expected.mismatch(actual), "length "+n);
+				for (int i = 0; i < n; i++) {
+					for (int c = 0; c < 4; c++) {
+						assertEquals(src[2+(i*4)+(3-c)], actual.get(ValueLayout.JAVA_BYTE, (i*4L)+c));
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	void threeByteAndPackedRgb() {
+		byte[] bgr = {1, 2, 3, 4, 5, 6};
+		int[] xrgb = {0x00112233, 0xFF445566};
+		try (var arena = Arena.openConfined()) {
+			var dst = arena.allocate(6);
+			Swizzle.bgrToRgb(bgr, 0, dst, 0, 2);
+			assertArrayEquals(new byte[] {3, 2, 1, 6, 5, 4}, dst.toArray(ValueLayout.JAVA_BYTE));
+			Swizzle.xrgbToRgb(xrgb, 0, dst, 0, 2, false);
+			assertArrayEquals(new byte[] {0x11, 0x22, 0x33, 0x44, 0x55, 0x66}, dst.toArray(ValueLayout.JAVA_BYTE));
+			Swizzle.xrgbToRgb(xrgb, 0, dst, 0, 2, true);
+			assertArrayEquals(new byte[] {0x33, 0x22, 0x11, 0x66, 0x55, 0x44}, dst.toArray(ValueLayout.JAVA_BYTE));
+		}
+	}
+	
+}
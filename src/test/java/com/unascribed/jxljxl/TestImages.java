@@ -0,0 +1,174 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.unascribed.jxljxl.JXLDecoder.JXLDecodeListener;
+
+/**
+ * Shared fixtures for the tests: small deterministic images, lossless encoders for them, and a
+ * decoder that collects every frame as RGBA bytes so round trips can be compared exactly.
+ */
+final class TestImages {
+
+	static final int WIDTH = 67;
+	static final int HEIGHT = 45;
+	
+	/**
+	 * @return an image with a different color in every pixel, and alpha that's never 0 so that
+	 * 		lossless encoding can't throw away invisible pixels
+	 */
+	static BufferedImage argb(int w, int h) {
+		var img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int a = 128+((x*y)%128);
+				int r = (x*255)/Math.max(1, w-1);
+				int g = (y*255)/Math.max(1, h-1);
+				int b = (x^y)&0xFF;
+				img.setRGB(x, y, (a<<24)|(r<<16)|(g<<8)|b);
+			}
+		}
+		return img;
+	}
+	
+	static BufferedImage argb() {
+		return argb(WIDTH, HEIGHT);
+	}
+	
+	/**
+	 * @return an opaque image of random noise, which compresses poorly and so makes for large
+	 * 		output
+	 */
+	static BufferedImage noise(int w, int h, long seed) {
+		var img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		var rand = new Random(seed);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				img.setRGB(x, y, 0xFF000000|rand.nextInt(0x1000000));
+			}
+		}
+		return img;
+	}
+	
+	/**
+	 * @return the pixels of the given image as straight RGBA bytes, which is what decoding a
+	 * 		lossless encode of it should give back
+	 */
+	static byte[] rgba(BufferedImage img) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		byte[] out = new byte[w*h*4];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int p = img.getRGB(x, y);
+				int i = ((y*w)+x)*4;
+				out[i] = (byte)(p >> 16);
+				out[i+1] = (byte)(p >> 8);
+				out[i+2] = (byte)p;
+				out[i+3] = (byte)(p >> 24);
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * @return an encoder for 8-bit sRGB images with alpha of the given size
+	 */
+	static JXLEncoder rgbaEncoder(int w, int h) {
+		return JXLEncoder.create()
+				.size(w, h)
+				.bitsPerSample(8)
+				.numChannels(3, 1)
+				.bitsPerAlphaSample(8)
+				.colorEncoding(JXLPredefinedColorEncoding.SRGB);
+	}
+	
+	/**
+	 * @return an encoder with the given image committed as a single lossless frame
+	 */
+	static JXLEncoder lossless(BufferedImage img) {
+		return rgbaEncoder(img.getWidth(), img.getHeight())
+				.newFrame()
+					.distance(0)
+					.effort(1)
+					.commit(img);
+	}
+	
+	record Decoded(JXLImageInfo info, List<byte[]> frames) {
+		byte[] pixels() {
+			return frames.get(0);
+		}
+	}
+	
+	/**
+	 * Decode every frame of the given file as RGBA bytes.
+	 */
+	static Decoded decode(byte[] file) throws IOException {
+		return decode(JXLDecoder.create(), MemorySegment.ofArray(file));
+	}
+	
+	static Decoded decode(MemorySegment file) throws IOException {
+		return decode(JXLDecoder.create(), file);
+	}
+	
+	/**
+	 * Decode every frame of the given file in the given pixel format, for images that can't be
+	 * compared as 8-bit RGBA.
+	 */
+	static Decoded decode(byte[] file, int channels, JXLDataType type) throws IOException {
+		var listener = new Collector();
+		JXLDecoder.create().pixelFormat(channels, type).decode(MemorySegment.ofArray(file), listener);
+		return new Decoded(listener.info, listener.frames);
+	}
+	
+	static Decoded decode(JXLDecoder decoder, MemorySegment file) throws IOException {
+		var listener = new Collector();
+		decoder.pixelFormat(4, JXLDataType.UINT8).decode(file, listener);
+		return new Decoded(listener.info, listener.frames);
+	}
+	
+	static class Collector implements JXLDecodeListener {
+		JXLImageInfo info;
+		final List<byte[]> frames = new ArrayList<>();
+		
+		@Override
+		public void imageInfo(JXLImageInfo info) {
+			this.info = info;
+		}
+		
+		@Override
+		public void image(JXLFrameInfo frame, MemorySegment pixels, List<MemorySegment> extraChannels) {
+			frames.add(pixels.toArray(ValueLayout.JAVA_BYTE));
+		}
+	}
+	
+}
@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 Una Thompson (unascribed)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.unascribed.jxljxl;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API implementations for {@link Swizzle}. Lives in its own source set, so that only this
+ * class is compiled against jdk.incubator.vector, and is loaded reflectively by Swizzle once it
+ * has checked the module is available.
+ */
+final class VectorSwizzle implements Swizzle.Kernels {
+
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	
+	@Override
+	public void argbToRgba(int[] src, int srcOff, MemorySegment dst, long dstOff, int count) {
+		int i = 0;
+		int bound = INTS.loopBound(count);
+		for (; i < bound; i += INTS.length()) {
+			IntVector.fromArray(INTS, src, srcOff+i)
+				.lanewise(VectorOperators.ROL, 8)
+				.intoMemorySegment(dst, dstOff+i*4L, ByteOrder.BIG_ENDIAN);
+		}
+		Swizzle.argbToRgbaScalar(src, srcOff+i, dst, dstOff+i*4L, count-i);
+	}
+	
+	@Override
+	public void reverseInts(MemorySegment src, long srcOff, MemorySegment dst, long dstOff, int count) {
+		int i = 0;
+		int bound = INTS.loopBound(count);
+		for (; i < bound; i += INTS.length()) {
+			IntVector.fromMemorySegment(INTS, src, srcOff+i*4L, ByteOrder.LITTLE_ENDIAN)
+				.intoMemorySegment(dst, dstOff+i*4L, ByteOrder.BIG_ENDIAN);
+		}
+		Swizzle.reverseIntsScalar(src, srcOff+i*4L, dst, dstOff+i*4L, count-i);
+	}
+	
+}
@@ -47,10 +47,7 @@ import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.lang.foreign.MemorySegment;
-import java.lang.foreign.SegmentAllocator;
-import java.lang.foreign.SegmentScope;
 import java.lang.foreign.ValueLayout;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -80,16 +77,12 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
 import org.imgscalr.Scalr;
 
-import com.unascribed.jxljxl.JXLException;
+import com.unascribed.jxljxl.JXLDataType;
+import com.unascribed.jxljxl.JXLDecoder;
+import com.unascribed.jxljxl.JXLDecoder.JXLDecodeListener;
 import com.unascribed.jxljxl.JXLExtraChannelBuilder.JXLExtraChannelType;
-import com.unascribed.jxljxl.panama.FunctionAddresses;
-import com.unascribed.jxljxl.panama.JxlBasicInfo;
-import com.unascribed.jxljxl.panama.JxlExtraChannelInfo;
-import com.unascribed.jxljxl.panama.JxlFrameHeader;
-import com.unascribed.jxljxl.panama.JxlLayerInfo;
-import com.unascribed.jxljxl.panama.JxlPixelFormat;
-
-import static com.unascribed.jxljxl.panama.LibJxl.*;
+import com.unascribed.jxljxl.JXLFrameInfo;
+import com.unascribed.jxljxl.JXLImageInfo;
 
 public class JXLJXLViewer {
 	
@@ -118,7 +111,6 @@ public class JXLJXLViewer {
 	
 	static Font font;
 	
-	private static final MemorySegment jxl_runner = JxlThreadParallelRunnerCreate(MemorySegment.NULL, Runtime.getRuntime().availableProcessors()/2);
 
 	public static void main(String[] args) {
 		// enable a bunch of nice things that are off by default for legacy compat
@@ -398,193 +390,86 @@ public class JXLJXLViewer {
 					d.setVisible(true);
 					if (d.getFile() == null) return;
 					var f = new File(d.getDirectory(), d.getFile());
-					byte[] data;
-					try {
-						data = Files.readAllBytes(f.toPath());
-					} catch (IOException e) {
-						e.printStackTrace();
-						return;
-					}
-
-					var scope = SegmentScope.auto();
-					var alloc = SegmentAllocator.nativeAllocator(scope);
-					var dec = JxlDecoderCreate(MemorySegment.NULL);
-					try {
-						if (dec == null || dec.address() == 0) throw new JXLException("Creating decoder failed");
-						check(JxlDecoderSubscribeEvents(dec, JXL_DEC_BASIC_INFO() | JXL_DEC_COLOR_ENCODING() | JXL_DEC_FRAME() | JXL_DEC_BOX() | JXL_DEC_PREVIEW_IMAGE() | JXL_DEC_FULL_IMAGE()));
-						
-						check(JxlDecoderSetParallelRunner(dec, FunctionAddresses.JxlThreadParallelRunner$ADDR, jxl_runner));
-						
-						var cpy = alloc.allocate(data.length);
-						cpy.copyFrom(MemorySegment.ofArray(data));
-						
-						JxlDecoderSetCoalescing(dec, 0);
-						JxlDecoderSetInput(dec, cpy, cpy.byteSize());
-						JxlDecoderSetDecompressBoxes(dec, 1);
-						JxlDecoderSetRenderSpotcolors(dec, 0);
-						JxlDecoderCloseInput(dec);
+					
+					List<ExtraChannel> extraChannels = new ArrayList<>();
+					List<FullFrame> frames = new ArrayList<>();
+					var listener = new JXLDecodeListener() {
+						JXLImageInfo info;
 						
-						record PartialFrame(int x, int y, int xsize, int ysize, String name) {
-							public int px() { return xsize*ysize; }
+						@Override
+						public void imageInfo(JXLImageInfo info) {
+							this.info = info;
+							for (var c : info.extraChannels()) {
+								extraChannels.add(new ExtraChannel(c.type(), c.bitsPerSample(), c.exponentBitsPerSample(),
+										c.dimShift(), c.name(), c.alphaPremultiplied(), c.spotColor(), c.cfaChannel()));
+							}
 						}
 						
-						var tmp = alloc.allocate(8);
-						var info = JxlBasicInfo.allocate(alloc);
-						var hdr = JxlFrameHeader.allocate(alloc);
-						var fmt = JxlPixelFormat.allocate(alloc);
-
-						MemorySegment imageout = null;
-						MemorySegment extraout = null;
-						List<ExtraChannel> extraChannels = new ArrayList<>();
-						PartialFrame currentFrame = null;
-						List<FullFrame> frames = new ArrayList<>();
-						int alphaIdx = -1;
-						
-						while (true) {
-							var event = JxlDecoderProcessInput(dec);
+						@Override
+						public void image(JXLFrameInfo frame, MemorySegment pixels, List<MemorySegment> extra) {
+							int px = (int)frame.pixels();
+							int alphaIdx = info.alphaChannel();
+							float[] rgb = pixels.toArray(ValueLayout.JAVA_FLOAT);
+							float[][] ex = new float[extra.size()][];
+							for (int i = 0; i < extra.size(); i++) {
+								ex[i] = extra.get(i).toArray(ValueLayout.JAVA_FLOAT);
+							}
 							
-							if (event == JXL_DEC_ERROR()) {
-								throw new JXLException("Decoding failed "+NO_MORE_INFO);
-							} else if (event == JXL_DEC_NEED_MORE_INPUT()) {
-								throw new JXLException("Decoding failed due to unexpected EOF");
-							} else if (event == JXL_DEC_BASIC_INFO()) {
-								check(JxlDecoderGetBasicInfo(dec, info));
-
-								imageout = alloc.allocate(
-										JxlBasicInfo.xsize$get(info)*JxlBasicInfo.ysize$get(info)*3*4
-									);
-								extraout = alloc.allocate(
-										JxlBasicInfo.xsize$get(info)*JxlBasicInfo.ysize$get(info)*JxlBasicInfo.num_extra_channels$get(info)*4
-									);
-								
-								var einfo = JxlExtraChannelInfo.allocate(alloc);
-								
-								for (int i = 0; i < JxlBasicInfo.num_extra_channels$get(info); i++) {
-									check(JxlDecoderGetExtraChannelInfo(dec, i, einfo));
-									int nl = JxlExtraChannelInfo.name_length$get(einfo);
-									var name = nl == 0 ? null : alloc.allocate(nl+1);
-									if (nl > 0) check(JxlDecoderGetExtraChannelName(dec, i, name, nl+1));
-									var c = new ExtraChannel(
-											JXLExtraChannelType.fromNative(JxlExtraChannelInfo.type$get(einfo)),
-											JxlExtraChannelInfo.bits_per_sample$get(einfo),
-											JxlExtraChannelInfo.exponent_bits_per_sample$get(einfo),
-											JxlExtraChannelInfo.dim_shift$get(einfo),
-											name == null ? null : name.getUtf8String(0),
-											JxlExtraChannelInfo.alpha_premultiplied$get(einfo) != 0,
-											JxlExtraChannelInfo.spot_color$slice(einfo).toArray(ValueLayout.JAVA_FLOAT),
-											JxlExtraChannelInfo.cfa_channel$get(einfo)
-									);
-									if (c.type == JXLExtraChannelType.ALPHA && alphaIdx == -1) {
-										alphaIdx = i;
-									}
-									extraChannels.add(c);
-								}
-							} else if (event == JXL_DEC_COLOR_ENCODING()) {
-								// TODO
-							} else if (event == JXL_DEC_FRAME()) {
-								check(JxlDecoderGetFrameHeader(dec, hdr));
-								var layer = JxlFrameHeader.layer_info$slice(hdr);
-								
-								int nl = JxlFrameHeader.name_length$get(hdr);
-								var name = nl == 0 ? null : alloc.allocate(nl+1);
-								if (nl > 0) check(JxlDecoderGetFrameName(dec, name, nl+1));
-								currentFrame = new PartialFrame(
-										JxlLayerInfo.crop_x0$get(layer), JxlLayerInfo.crop_y0$get(layer),
-										JxlLayerInfo.xsize$get(layer), JxlLayerInfo.ysize$get(layer),
-										name == null ? null : name.getUtf8String(0)
-									);
-							} else if (event == JXL_DEC_NEED_IMAGE_OUT_BUFFER()) {
-								check(JxlDecoderGetFrameHeader(dec, hdr));
-
-								JxlPixelFormat.num_channels$set(fmt, 3);
-								JxlPixelFormat.align$set(fmt, 0);
-								JxlPixelFormat.data_type$set(fmt, JXL_TYPE_FLOAT());
-								JxlPixelFormat.endianness$set(fmt, JXL_NATIVE_ENDIAN());
-								check(JxlDecoderSetImageOutBuffer(dec, fmt, imageout, imageout.byteSize()));
-								
-
-								JxlPixelFormat.num_channels$set(fmt, 1);
-								JxlPixelFormat.align$set(fmt, 0);
-								JxlPixelFormat.data_type$set(fmt, JXL_TYPE_FLOAT());
-								JxlPixelFormat.endianness$set(fmt, JXL_NATIVE_ENDIAN());
-								int n = currentFrame.px()*4;
-								for (int i = 0; i < extraChannels.size(); i++) {
-									check(JxlDecoderSetExtraChannelBuffer(dec, fmt, extraout.asSlice(i*n), n, i));
-								}
-								
-							} else if (event == JXL_DEC_BOX()) {
-								// TODO
-								check(JxlDecoderGetBoxType(dec, tmp, 1));
-								byte[] by = new byte[4];
-								MemorySegment.ofArray(by).copyFrom(tmp.asSlice(0, 4));
-							} else if (event == JXL_DEC_FULL_IMAGE()) {
-								JxlDecoderFlushImage(dec);
-								
-								float[] rgb = new float[currentFrame.px()*3];
-								MemorySegment.ofArray(rgb).copyFrom(imageout.asSlice(0, currentFrame.px()*3*4));
-								
-								float[][] ex = new float[extraChannels.size()][currentFrame.px()];
-								int n = currentFrame.px()*4;
-								for (int i = 0; i < extraChannels.size(); i++) {
-									MemorySegment.ofArray(ex[i]).copyFrom(extraout.asSlice(i*n, n));
-								}
-
-								var rgbimg = new BufferedImage(currentFrame.xsize(), currentFrame.ysize(), BufferedImage.TYPE_INT_ARGB);
-								int[] rgba = ((DataBufferInt)rgbimg.getRaster().getDataBuffer()).getData();
-								for (int i = 0; i < currentFrame.px(); i++) {
-									float r = Math.min(1, Math.max(0, rgb[(i*3)+0]));
-									float g = Math.min(1, Math.max(0, rgb[(i*3)+1]));
-									float b = Math.min(1, Math.max(0, rgb[(i*3)+2]));
-									float a = Math.min(1, Math.max(0, alphaIdx != -1 ? ex[alphaIdx][i] : 1));
-									int c = 0;
-									c |= ((int)(a*255)&0xFF)<<24;
-									c |= ((int)(r*255)&0xFF)<<16;
-									c |= ((int)(g*255)&0xFF)<< 8;
-									c |= ((int)(b*255)&0xFF)<< 0;
-									rgba[i] = c;
-								}
-								
-								BufferedImage thumb;
-								
-								if (rgbimg.getWidth() <= 128 && rgbimg.getHeight() <= 128) {
-									thumb = rgbimg;
-								} else {
-									thumb = Scalr.resize(rgbimg, Scalr.Method.QUALITY, Scalr.Mode.BEST_FIT_BOTH, 128, 128);
-								}
-								
-								frames.add(new FullFrame(currentFrame.x(), currentFrame.y(), currentFrame.xsize(), currentFrame.ysize(), currentFrame.name(),
-										rgb, rgbimg, ex, thumb));
-							} else if (event == JXL_DEC_PREVIEW_IMAGE()) {
-								System.out.println("preview");
-								// TODO
-							} else if (event == JXL_DEC_SUCCESS()) {
-								break;
+							var rgbimg = new BufferedImage(frame.xsize(), frame.ysize(), BufferedImage.TYPE_INT_ARGB);
+							int[] rgba = ((DataBufferInt)rgbimg.getRaster().getDataBuffer()).getData();
+							for (int i = 0; i < px; i++) {
+								float r = Math.min(1, Math.max(0, rgb[(i*3)+0]));
+								float g = Math.min(1, Math.max(0, rgb[(i*3)+1]));
+								float b = Math.min(1, Math.max(0, rgb[(i*3)+2]));
+								float a = Math.min(1, Math.max(0, alphaIdx != -1 ? ex[alphaIdx][i] : 1));
+								int c = 0;
+								c |= ((int)(a*255)&0xFF)<<24;
+								c |= ((int)(r*255)&0xFF)<<16;
+								c |= ((int)(g*255)&0xFF)<< 8;
+								c |= ((int)(b*255)&0xFF)<< 0;
+								rgba[i] = c;
+							}
+							
+							BufferedImage thumb;
+							
+							if (rgbimg.getWidth() <= 128 && rgbimg.getHeight() <= 128) {
+								thumb = rgbimg;
 							} else {
-								throw new JXLException("Unknown event 0x"+Integer.toHexString(event)+" from decoder");
+								thumb = Scalr.resize(rgbimg, Scalr.Method.QUALITY, Scalr.Mode.BEST_FIT_BOTH, 128, 128);
 							}
+							
+							frames.add(new FullFrame(frame.x(), frame.y(), frame.xsize(), frame.ysize(), frame.name(),
+									rgb, rgbimg, ex, thumb));
 						}
-						lastAutozoom = 1;
-						xo = yo = zoom = 0;
-						xsize = JxlBasicInfo.xsize$get(info);
-						ysize = JxlBasicInfo.ysize$get(info);
-						JXLJXLViewer.extraChannels.clear();
-						JXLJXLViewer.extraChannels.addAll(extraChannels);
-						JXLJXLViewer.frames.clear();
-						JXLJXLViewer.frames.addAll(frames);
-						channelsList.setModel(new ChannelsModel(extraChannels));
-						channelsList.setSelectedIndex(0);
-						channelsList.revalidate();
-						var mdl = new DefaultListModel<FullFrame>();
-						mdl.addAll(frames);
-						filmstripList.setModel(mdl);
-						filmstripList.setSelectedIndex(0);
-						filmstripList.revalidate();
-						frame.repaint();
-					} catch (JXLException e) {
+					};
+					try {
+						JXLDecoder.create()
+							.pixelFormat(3, JXLDataType.FLOAT32)
+							.extraChannels(true)
+							.coalescing(false)
+							.renderSpotColors(false)
+							.decode(f.toPath(), listener);
+					} catch (IOException e) {
 						e.printStackTrace();
-					} finally {
-						JxlDecoderDestroy(dec);
+						return;
 					}
+					lastAutozoom = 1;
+					xo = yo = zoom = 0;
+					xsize = listener.info.xsize();
+					ysize = listener.info.ysize();
+					JXLJXLViewer.extraChannels.clear();
+					JXLJXLViewer.extraChannels.addAll(extraChannels);
+					JXLJXLViewer.frames.clear();
+					JXLJXLViewer.frames.addAll(frames);
+					channelsList.setModel(new ChannelsModel(extraChannels));
+					channelsList.setSelectedIndex(0);
+					channelsList.revalidate();
+					var mdl = new DefaultListModel<FullFrame>();
+					mdl.addAll(frames);
+					filmstripList.setModel(mdl);
+					filmstripList.setSelectedIndex(0);
+					filmstripList.revalidate();
+					frame.repaint();
 				})
 				.item("Quit", () -> {
 					frame.dispose();
@@ -693,18 +578,6 @@ public class JXLJXLViewer {
 	
 	private static final byte[] VIRIDIS = {(byte)4,(byte)1,(byte)4,(byte)12,(byte)3,(byte)13,(byte)18,(byte)5,(byte)19,(byte)23,(byte)8,(byte)24,(byte)27,(byte)10,(byte)29,(byte)30,(byte)12,(byte)34,(byte)33,(byte)13,(byte)39,(byte)37,(byte)14,(byte)44,(byte)41,(byte)14,(byte)48,(byte)45,(byte)15,(byte)54,(byte)49,(byte)15,(byte)59,(byte)53,(byte)15,(byte)64,(byte)57,(byte)15,(byte)69,(byte)61,(byte)14,(byte)75,(byte)65,(byte)14,(byte)80,(byte)69,(byte)13,(byte)85,(byte)70,(byte)14,(byte)90,(byte)71,(byte)15,(byte)96,(byte)71,(byte)18,(byte)101,(byte)72,(byte)24,(byte)106,(byte)72,(byte)29,(byte)110,(byte)72,(byte)34,(byte)115,(byte)72,(byte)39,(byte)119,(byte)71,(byte)44,(byte)123,(byte)70,(byte)49,(byte)126,(byte)70,(byte)54,(byte)129,(byte)68,(byte)58,(byte)131,(byte)67,(byte)63,(byte)133,(byte)65,(byte)68,(byte)135,(byte)62,(byte)72,(byte)136,(byte)61,(byte)77,(byte)138,(byte)59,(byte)81,(byte)139,(byte)57,(byte)85,(byte)140,(byte)55,(byte)90,(byte)141,(byte)53,(byte)94,(byte)141,(byte)51,(byte)98,(byte)141,(byte)49,(byte)102,(byte)142,(byte)48,(byte)106,(byte)142,(byte)47,(byte)110,(byte)142,(byte)45,(byte)113,(byte)142,(byte)43,(byte)117,(byte)142,(byte)41,(byte)121,(byte)142,(byte)40,(byte)125,(byte)142,(byte)38,(byte)128,(byte)142,(byte)37,(byte)132,(byte)142,(byte)36,(byte)135,(byte)142,(byte)34,(byte)139,(byte)141,(byte)33,(byte)144,(byte)141,(byte)32,(byte)147,(byte)140,(byte)31,(byte)151,(byte)139,(byte)30,(byte)155,(byte)138,(byte)31,(byte)159,(byte)136,(byte)31,(byte)162,(byte)135,(byte)33,(byte)166,(byte)133,(byte)36,(byte)170,(byte)131,(byte)39,(byte)173,(byte)129,(byte)43,(byte)177,(byte)126,(byte)48,(byte)181,(byte)123,(byte)54,(byte)184,(byte)120,(byte)60,(byte)188,(byte)116,(byte)67,(byte)191,(byte)113,(byte)74,(byte)194,(byte)108,(byte)82,(byte)197,(byte)104,(byte)91,(byte)200,(byte)99,(byte)99,(byte)203,(byte)94,(byte)108,(byte)206,(byte)89,(byte)117,(byte)209,(byte)84,(byte)127,(byte)211,(byte)78,(byte)138,(byte)214,(byte)71,(byte)148,(byte)216,(byte)65,(byte)158,(byte)218,(byte)58,(byte)168,(byte)220,(byte)52,(byte)179,(byte)222,(byte)45,(byte)190,(byte)223,(byte)38,(byte)200,(byte)225,(byte)32,(byte)211,(byte)226,(byte)28,(byte)221,(byte)227,(byte)24,(byte)232,(byte)229,(byte)26,(byte)241,(byte)229,(byte)29,(byte)250,(byte)230,(byte)34};
 	
-	private static final String NO_MORE_INFO = " (no further detail is available, try compiling libjxl with -DJXL_DEBUG_ON_ERROR)";
-
-	private static void check(int res) throws JXLException {
-		switch (res) {
-			case 0x00 -> {}
-			case 0x01 -> throw new JXLException("libjxl returned a generic error"+NO_MORE_INFO);
-			case 0x02 -> throw new JXLException("Need more input");
-			
-			default -> throw new JXLException("libjxl returned unknown error 0x"+Integer.toHexString(res)+NO_MORE_INFO);
-		}
-	}
-
 	private static void drawJXLLogo(Graphics2D g2d, Consumer<Shape> draw) {
 		draw.accept(JXL_J);
 		draw.accept(JXL_X);